@@ -0,0 +1,116 @@
+/**
+ * JMH benchmarks of the AMFAC tick phases that integrate the fibroblast networks
+ * Set up like TickPhaseBenchmark, then run for one tick before measuring. Integration costs about
+ * half a millisecond per cell on one core, so the grids stop at 200x200 and the networks are solved
+ * on networkThreads threads (0 = every core). A 200x200 grid at full density is 40000 cells,
+ * about 20 s per pass on one core.
+ * See benchmarks/ReadMe.txt
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import repast.simphony.parameter.Parameters;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NetworkPhaseBenchmark {
+
+	//grid is gridSize x gridSize
+	@Param({"5", "50", "200"})
+	public int gridSize;
+
+	//fraction of the grid's sites holding a fibroblast
+	@Param({"0.25", "1.0"})
+	public double density;
+
+	@Param({"0"})
+	public int networkThreads;
+
+	private ModelRun run;
+	private HeadlessEngine engine;
+	private AMFACSpace space;
+	private File results;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		int sites = gridSize * gridSize;
+		Map<String, String> overrides = new LinkedHashMap<String, String>();
+		overrides.put("gridWidth", Integer.toString(gridSize));
+		overrides.put("gridHeight", Integer.toString(gridSize));
+		overrides.put("initialFibroblastCount", Long.toString(Math.max(1, Math.round(density * sites))));
+		overrides.put("networkEngine", "java");
+		overrides.put("networkThreads", Integer.toString(networkThreads));
+		overrides.put("TGFB_feedback", "true"); //so a tick includes TGFBactivation
+		overrides.put("outputFormat", "csv");
+		Parameters p = ModelParameters.load(ModelParameters.DEFAULT_FILE).create(overrides);
+
+		results = Files.createTempDirectory("amfac-bench").toFile();
+		run = new ModelRun(p, 1, results, null, null);
+		bind();
+		engine = new HeadlessEngine(run);
+		engine.start();
+		engine.step();
+		space = engine.getSpace();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		bind();
+		engine.finish();
+		ModelRun.setCurrent(null);
+		delete(results);
+	}
+
+	@Benchmark
+	public void tick() {
+		bind();
+		engine.step();
+	}
+
+	@Benchmark
+	public void processCellBehavior() {
+		bind();
+		space.processCellBehavior();
+	}
+
+	//ModelRun is per thread and JMH doesn't promise to call setup, the benchmarks and teardown
+	//on the same thread, so each of them makes the run current on the thread it is called on
+	private void bind() {
+		if (ModelRun.getCurrent() != run) {
+			ModelRun.setCurrent(run);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * JMH benchmarks of the grid and per-fibroblast phases of one AMFAC tick over grid size and cell density
+ * The model is built headless (see HeadlessEngine) from parameters.xml and initialized (tick 0) before
+ * measuring. Each benchmark call is one pass of a phase over the whole grid or every fibroblast,
+ * so scores are passes per second; run with -prof gc for allocation rate and GC pressure.
+ * The phases that integrate the networks are in NetworkPhaseBenchmark, whose grids are smaller:
+ * at about half a millisecond per cell, one pass over the 1000x1000 cases here would take minutes.
+ * See benchmarks/ReadMe.txt
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import repast.simphony.parameter.Parameters;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TickPhaseBenchmark {
+
+	//grid is gridSize x gridSize
+	@Param({"5", "50", "200", "1000"})
+	public int gridSize;
+
+	//fraction of the grid's capacity (cellsPerGrid per site) holding a fibroblast
+	@Param({"0.25", "1.0"})
+	public double density;
+
+	@Param({"csv"})
+	public String outputFormat;
+
+	private ModelRun run;
+	private HeadlessEngine engine;
+	private AMFACSpace space;
+	private Fibroblast[] cells;
+	private File results;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		int sites = gridSize * gridSize;
+		Map<String, String> overrides = new LinkedHashMap<String, String>();
+		overrides.put("gridWidth", Integer.toString(gridSize));
+		overrides.put("gridHeight", Integer.toString(gridSize));
+		overrides.put("initialFibroblastCount", Long.toString(Math.max(1, Math.round(density * sites))));
+		overrides.put("networkEngine", "java");
+		overrides.put("TGFB_feedback", "true"); //TGFBactivation only runs with feedback
+		overrides.put("outputFormat", outputFormat);
+		Parameters p = ModelParameters.load(ModelParameters.DEFAULT_FILE).create(overrides);
+
+		results = Files.createTempDirectory("amfac-bench").toFile();
+		run = new ModelRun(p, 1, results, null, null);
+		bind();
+		engine = new HeadlessEngine(run);
+		engine.start();
+		space = engine.getSpace();
+		List<Fibroblast> list = space.getFibroblasts();
+		cells = list.toArray(new Fibroblast[list.size()]);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		bind();
+		engine.finish();
+		ModelRun.setCurrent(null);
+		delete(results);
+	}
+
+	@Benchmark
+	public void writeOutputData() {
+		bind();
+		space.writeOutputData();
+	}
+
+	@Benchmark
+	public void TGFBactivation() {
+		bind();
+		space.TGFBactivation();
+	}
+
+	@Benchmark
+	public void initializeChemokineLayer() {
+		bind();
+		space.initializeChemokineLayer();
+	}
+
+	@Benchmark
+	public void getCellNetwork() {
+		bind();
+		for (Fibroblast f : cells) {
+			f.getCellNetwork();
+		}
+	}
+
+	@Benchmark
+	public void updateCollagen() {
+		bind();
+		for (Fibroblast f : cells) {
+			f.updateCollagen();
+		}
+	}
+
+	@Benchmark
+	public void move() {
+		bind();
+		for (Fibroblast f : cells) {
+			f.move();
+		}
+	}
+
+	//ModelRun is per thread and JMH doesn't promise to call setup, the benchmarks and teardown
+	//on the same thread, so each of them makes the run current on the thread it is called on
+	private void bind() {
+		if (ModelRun.getCurrent() != run) {
+			ModelRun.setCurrent(run);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		file.delete();
+	}
+}
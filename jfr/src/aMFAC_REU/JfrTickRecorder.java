@@ -0,0 +1,24 @@
+/**
+ * Commits a TickEvent per tick to a running flight recording
+ * Loaded by name by TickMetrics, so the model builds and runs without jdk.jfr (see jfr/ReadMe.txt)
+ */
+package aMFAC_REU;
+
+public class JfrTickRecorder implements TickRecorder {
+
+	public JfrTickRecorder() {
+		//fails here, not on the first tick, when the JVM has no flight recorder
+		new TickEvent();
+	}
+
+	@Override
+	public void commit(double tick, int liveCells, int sleepingCells, long[] phases, long steps, long rejected,
+			long evaluations, long bytes) {
+		TickEvent.commit(tick, liveCells, sleepingCells, phases, steps, rejected, evaluations, bytes);
+	}
+
+	@Override
+	public String toString() {
+		return "JfrTickRecorder";
+	}
+}
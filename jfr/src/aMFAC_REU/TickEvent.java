@@ -0,0 +1,89 @@
+/**
+ * Flight recorder event committed once per tick by JfrTickRecorder when metrics includes jfr
+ * Compiled separately from jfr/src (see jfr/ReadMe.txt) because jdk.jfr isn't part of the Java 8 API
+ */
+package aMFAC_REU;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("aMFAC_REU.Tick")
+@Label("AMFAC Tick")
+@Category("AMFAC_REU")
+class TickEvent extends Event {
+
+	@Label("Tick")
+	double tick;
+
+	@Label("Live Cells")
+	int liveCells;
+
+	@Label("Awake Cells")
+	int awakeCells;
+
+	@Label("Sleeping Cells")
+	int sleepingCells;
+
+	@Label("Diffuse Layers") @Timespan(Timespan.NANOSECONDS)
+	long diffuseLayers;
+
+	@Label("Go First") @Timespan(Timespan.NANOSECONDS)
+	long goFirst;
+
+	@Label("Go Second") @Timespan(Timespan.NANOSECONDS)
+	long goSecond;
+
+	@Label("Go Third") @Timespan(Timespan.NANOSECONDS)
+	long goThird;
+
+	@Label("Go Last") @Timespan(Timespan.NANOSECONDS)
+	long goLast;
+
+	@Label("Network Solve") @Timespan(Timespan.NANOSECONDS)
+	long solve;
+
+	@Label("Output") @Timespan(Timespan.NANOSECONDS)
+	long output;
+
+	@Label("Solver Steps")
+	long solverSteps;
+
+	@Label("Rejected Steps")
+	long rejectedSteps;
+
+	@Label("RHS Evaluations")
+	long evaluations;
+
+	@Label("Bytes Written")
+	long bytesWritten;
+
+	/**
+	 * @param phases nanoseconds of every phase, in TickMetrics order
+	 */
+	static void commit(double tick, int liveCells, int sleepingCells, long[] phases, long steps, long rejected,
+			long evaluations, long bytes) {
+		TickEvent e = new TickEvent();
+		if (!e.shouldCommit()) {
+			return;
+		}
+		e.tick = tick;
+		e.liveCells = liveCells;
+		e.awakeCells = liveCells - sleepingCells;
+		e.sleepingCells = sleepingCells;
+		e.diffuseLayers = phases[TickMetrics.DIFFUSE];
+		e.goFirst = phases[TickMetrics.GO_FIRST];
+		e.goSecond = phases[TickMetrics.GO_SECOND];
+		e.goThird = phases[TickMetrics.GO_THIRD];
+		e.goLast = phases[TickMetrics.GO_LAST];
+		e.solve = phases[TickMetrics.SOLVE];
+		e.output = phases[TickMetrics.OUTPUT];
+		e.solverSteps = steps;
+		e.rejectedSteps = rejected;
+		e.evaluations = evaluations;
+		e.bytesWritten = bytes;
+		e.commit();
+	}
+}
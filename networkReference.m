@@ -0,0 +1,34 @@
+%%Writes networkReference.csv, the reference the java network engine is
+%%checked against (java aMFAC_REU.NetworkReferenceCheck). Each case
+%%integrates initialNet with fixed cytokine weights for a number of
+%%ticks, setting the weights exactly as processCellBehavior.m does.
+%%Should be in the Eclipse workspace so it has access to network.mat
+
+load network.mat
+load initialNet.mat
+%TGFB IL1 IL6 TNFa ticks
+cases = [0.25 0.25 0.25 0.25 1
+    0.6 0 0 0 1
+    0 0.6 0.6 0.6 1
+    0.1 0.3 0.5 0.7 1
+    0.6 0 0 0 20
+    0 0.6 0.6 0.6 20
+    0.1 0.3 0.5 0.7 20];
+out = zeros(size(cases,1),5+length(initialNet));
+for c=1:size(cases,1)
+    p = params;
+    TGFB = cases(c,1);
+    IL1 = cases(c,2);
+    IL6 = cases(c,3);
+    TNFa = cases(c,4);
+    p{1}(1,1:11) = [0.25 TGFB 0.25 IL6 IL1 TNFa 0.25 0.25 0.25 0.25 0.25];
+    p{1}(1,12:13) = [0 0]; %turns off latent TGF-B feedback
+    p{1}(1,15:17) = [0 0 0]; %turns off IL-6 feedback
+    in = initialNet;
+    for k=1:cases(c,5) %one call per tick, like the model
+        [t,y]=ode23(@ODE,tspan,in,options,p,ODElist);
+        in = y(end,:);
+    end
+    out(c,:) = [cases(c,:) in];
+end
+dlmwrite('networkReference.csv',out,'precision','%.17g');
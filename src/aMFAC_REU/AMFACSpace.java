@@ -10,7 +10,6 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
@@ -19,46 +18,75 @@ import java.util.List;
 
 import org.apache.commons.lang3.ArrayUtils;
 
-import com.mathworks.engine.MatlabEngine;
-
 import repast.simphony.scenario.data.Classpath;
 
 import repast.simphony.context.DefaultContext;
 import repast.simphony.context.space.grid.GridFactoryFinder;
-import repast.simphony.engine.environment.RunEnvironment;
 import repast.simphony.engine.schedule.ISchedule;
+import repast.simphony.engine.schedule.ScheduleParameters;
 import repast.simphony.engine.schedule.ScheduledMethod;
 import repast.simphony.parameter.Parameters;
 import repast.simphony.random.RandomHelper;
 import repast.simphony.space.grid.Grid;
 import repast.simphony.space.grid.GridBuilderParameters;
 import repast.simphony.space.grid.GridPoint;
-import repast.simphony.space.grid.RandomGridAdder;
+import repast.simphony.space.grid.SimpleGridAdder;
 import repast.simphony.space.grid.StrictBorders;
 import repast.simphony.space.grid.WrapAroundBorders;
 import repast.simphony.space.grid.BouncyBorders;
 import repast.simphony.util.ClassPathEntry;
-import repast.simphony.valueLayer.GridValueLayer;
-import repast.simphony.valueLayer.ValueLayerDiffuser;
+import repast.simphony.valueLayer.ValueLayer;
 
 public class AMFACSpace extends DefaultContext<Object> {
 	
 	Grid<Object> grid;
+	private OccupancyIndex occupancy; //fibroblasts per grid point
 	
-	private Parameters p = RunEnvironment.getInstance().getParameters();
+	private Parameters p = ModelRun.getParameters();
 	private int gridWidth = (Integer) p.getValue("gridWidth");
 	private int gridHeight = (Integer) p.getValue("gridHeight");
 	int initialFibroblastCount = (Integer) p.getValue("initialFibroblastCount");
 	
 	//arraylist that will hold all fibroblasts in the world (useful for iteration)
+	//fibroblasts.get(i) always owns slot i of networkStates
 	private ArrayList<Fibroblast> fibroblasts = new ArrayList<Fibroblast>();
-
+	
+	//network states of all fibroblasts, cell-major; off-heap for stateStorage float64 or float32
+	private NetworkStateStore networkStates = new NetworkStateStore(91, initialFibroblastCount,
+			(String) p.getValue("stateStorage"));
+	//cells copied out of off-heap storage per solve, a multiple of ParallelCellIntegrator.LANE_WINDOW
+	private static final int STATE_CHUNK = 1 << 14;
+	private double[] stateChunk = new double[0];
+	private double[] inputChunk = new double[0];
+	//input weights and site of every cell for processCellBehavior, grown with the cell count
+	private double[] cellInputs = new double[0];
+	private int[] cellSites = new int[0];
+	
+	//scratch for writing per-cell outputs in grid order
+	private int[] siteOrder = new int[0];
+	private int[] siteCounts = new int[0];
+
+	//all chemokine layers and collagen, interleaved per grid point
+	private ChemokineField field;
+	private int collagenIdx; //index of collagen in field
+	private int[] fibroblastInputIdxs; //field index of every Fibroblast.INPUT_LAYER_NAMES, shared by all fibroblasts
+	
+	//rough heap per fibroblast besides its network state, on a 64-bit JVM with compressed references:
+	//the Fibroblast and its GridPoint, and its entries in the context and the Repast grid
+	//(hash map nodes, the location key and the site's occupant list)
+	private static final int FIBROBLAST_BYTES = 96;
+	private static final int GRID_ENTRY_BYTES = 200;
+	
 	//to keep track of all the layers.
 	//Entries are in the same order as the input entries in the Saucerman model file
-	public ArrayList<GridValueLayer> inputLayers = new ArrayList<GridValueLayer>();
-	private ArrayList<ValueLayerDiffuser> inputDiffuseLayers = new ArrayList<ValueLayerDiffuser>();
+	public ArrayList<FieldValueLayer> inputLayers = new ArrayList<FieldValueLayer>();
 	
-	private GridValueLayer collagen;
+	//diffusion and decay of input layers, see createDiffusers
+	private FieldDiffuser diffuser;
+	private double[] diffusionCoeffs;
+	private double[] decayRates;
+	
+	private FieldValueLayer collagen;
 	
 	//ints alternate from network indices to indices in the inputLayerNames arraylist
 	//for example, the 38th species in the network model is has idx 1 in inputLayerNames (TGFb)
@@ -70,17 +98,34 @@ public class AMFACSpace extends DefaultContext<Object> {
 	//These layers will be added to inputLayers
 	public String[] inputLayerNames = {"TGFB", "LatentTGFB", "Interleukin6", "Interleukin1",
 				"TNFalpha"};
-	private int[] inputDiffuseIdxs = {}; //numerical indices of inputLayerNames that should diffuse. MUST BE IN INCREASING ORDER
+	private int[] inputDiffuseIdxs = {}; //numerical indices of inputLayerNames that diffuse, filled by createDiffusers
 	
 	private double latentdegradationRate = 0.0; //constant degradation rate for latent TGFB
 	private double activedegradationRate = (Double) p.getValue("activedegRate"); //constant degradation rate for active TGFB
+	private boolean degradePerSite = ((String) p.getValue("TGFBdegradation")).equalsIgnoreCase("site"); //degrade active TGFB once per site instead of once per cell
+	private double[] siteActivation = new double[0]; //MMP activation of the cells of every site
+	private boolean[] siteOccupied = new boolean[0]; //sites the TGFBKernel updates
+	private boolean[] siteShared = new boolean[0]; //sites with more than one cell, updated cell by cell
+	private int[] sharedSites = new int[0];
+	private TGFBKernel tgfbKernel = VectorSupport.load((String) p.getValue("vectorKernels"), "aMFAC_REU.VectorTGFBKernel",
+			TGFBKernel.class, new ScalarTGFBKernel());
 	
 	//indices of inputLayerNames that are inflammatory or anti-inflammatory/fibrotic
 	//used for gradient orientation (e.g. the inflammatory cytokines are a gradient from left to right
 	private int[] inflam = {2,3,4};
 	private int[] antiInflam = {0};
 	
-	private MatlabEngine eng;
+	//solves the cell networks each tick, chosen by the networkEngine parameter
+	private NetworkSolver networkSolver;
+	private CachingNetworkSolver networkCache; //null unless networkCacheSize > 0
+	private QuiescenceTracker quiescence; //null unless quiescenceTolerance > 0
+	
+	//result files, written in the background. Stream order is the order of the observables
+	private ObservableRegistry observables;
+	private static final int OUTPUT_QUEUE_SIZE = 8;
+	private File resultsFolder = ModelRun.getResultsFolder();
+	private OutputPipeline output;
+	private TickMetrics metrics = TickMetrics.create((String) p.getValue("metrics"), resultsFolder); //null when off
 	
 	//define saturating concentrations for each of the chemokines in order to calculate weights for the network model
 	private double TGFBsat = 1;
@@ -94,8 +139,7 @@ public class AMFACSpace extends DefaultContext<Object> {
 
 	
 	//these variable are used for cytokines that change over time
-	private ArrayList<Double> relChemVals; //the array of relative levels
-	private int relChemFactorIdx;
+	private InputSchedule inputSchedule; //null unless inputSchedule lists inputs
 	
 
 	private int cellsPerGrid = 1;
@@ -112,24 +156,30 @@ public class AMFACSpace extends DefaultContext<Object> {
 
 		// Define the Grid Space
 		grid = GridFactoryFinder.createGridFactory(null).createGrid("grid", this,
-				new GridBuilderParameters<Object>(new BouncyBorders(), new RandomGridAdder<Object>(), false,
+				new GridBuilderParameters<Object>(new BouncyBorders(),
+						ModelRun.getResume() == null ? new RunGridAdder<Object>() : new SimpleGridAdder<Object>(), false,
 						gridWidth, gridHeight));
-
-		// Build all GridValueLayers
-		//initialize collagen layer at 3% area fraction
-		collagen = new GridValueLayer("collagen", 0.0, false, gridWidth, gridHeight);
+		occupancy = new OccupancyIndex(grid, gridWidth, gridHeight);
+
+		// Build the chemokine field, input layers first and collagen last
+		String[] fieldNames = Arrays.copyOf(inputLayerNames, inputLayerNames.length + 1);
+		fieldNames[inputLayerNames.length] = "collagen";
+		double[] initial = new double[fieldNames.length];
+		Arrays.fill(initial, 1.0);
+		collagenIdx = inputLayerNames.length;
+		initial[collagenIdx] = 0.0;
+		field = new ChemokineField(gridWidth, gridHeight, fieldNames, initial);
+		
+		//register every layer so displays and styles can find it by name
+		collagen = field.getLayer(collagenIdx);
 		this.addValueLayer(collagen);
-		
-		//create grid value layers
-		GridValueLayer layer;
 		for (int i=0; i < inputLayerNames.length; i++) {
-			layer = new GridValueLayer(inputLayerNames[i], 1.0, false, gridWidth, gridHeight);
-			inputLayers.add(layer);
-			this.addValueLayer(layer);
+			inputLayers.add(field.getLayer(i));
+			this.addValueLayer(field.getLayer(i));
 		}
 		
 
-		Parameters p = RunEnvironment.getInstance().getParameters();
+		Parameters p = ModelRun.getParameters();
 		boolean feedback = (Boolean) p.getValue("TGFB_feedback");
 		
 			if (feedback == true) {
@@ -144,76 +194,332 @@ public class AMFACSpace extends DefaultContext<Object> {
 		
 	}
 	
+	/**
+	 * Sets up diffusion and decay of the input layers from diffusionCoefficients and decayRates
+	 * (one comma separated value per input layer). Layers with both set to 0 don't diffuse
+	 */
 	public void createDiffusers() {
 		
 		//create diffusers
-		Parameters p = RunEnvironment.getInstance().getParameters();
-		double diffEvap = (Double) p.getValue("diffEvap");
-		double diffCoeff = (Double) p.getValue("diffCoeff");
-		ValueLayerDiffuser diffuse;
-		int difIdx;
-		difIdx = 0;
+		Parameters p = ModelRun.getParameters();
+		diffusionCoeffs = parseLayerValues((String) p.getValue("diffusionCoefficients"));
+		decayRates = parseLayerValues((String) p.getValue("decayRates"));
+		boolean ninePoint = (Integer) p.getValue("diffusionStencil") == 9;
+		int substeps = (Integer) p.getValue("diffusionSubsteps");
 		
+		inputDiffuseIdxs = new int[0];
 		for (int i=0; i < inputLayers.size(); i++) {
-			if (difIdx < inputDiffuseIdxs.length && i==inputDiffuseIdxs[difIdx]) { //if this layer needs a diffuser
-				diffuse = new ValueLayerDiffuser(inputLayers.get(inputDiffuseIdxs[i]), diffEvap, diffCoeff, true);
-				inputDiffuseLayers.add(diffuse);
-				difIdx++;
-			} //else {
-				//inputDiffuseLayers.add(null); //add null elements to fill in the gaps
-			//}
+			if (diffusionCoeffs[i] != 0 || decayRates[i] != 0) { //if this layer needs a diffuser
+				inputDiffuseIdxs = ArrayUtils.add(inputDiffuseIdxs, i);
+				if (diffusionCoeffs[i] / Math.max(1, substeps) > FieldDiffuser.maxStableCoefficient(ninePoint)) {
+					System.out.println("Warning: diffusion of " + inputLayerNames[i]
+							+ " is unstable, use more diffusionSubsteps");
+				}
+			}
+		}
+		if (inputDiffuseIdxs.length > 0) {
+			int threads = (Integer) p.getValue("networkThreads");
+			diffuser = new FieldDiffuser(gridWidth, gridHeight, ninePoint, substeps, threads);
 		}
 		
 		//System.out.println("Create Diffusers");
 	}
 	
+	private double[] parseLayerValues(String list) {
+		double[] values = new double[inputLayers.size()];
+		String[] parts = list.split(",");
+		for (int i=0; i < values.length && i < parts.length; i++) {
+			if (!parts[i].trim().isEmpty()) {
+				values[i] = Double.parseDouble(parts[i].trim());
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * Diffuses and decays the input layers that have a coefficient or decay rate, before the cells read them
+	 */
+	@ScheduledMethod(start = 1, interval = 1, priority = 4)
+	public void diffuseLayers() {
+		if (diffuser == null) {
+			return;
+		}
+		long start = metrics != null ? System.nanoTime() : 0;
+		for (int i=0; i < inputDiffuseIdxs.length; i++) {
+			//the field is diffused in place, one layer at a time
+			int idx = inputDiffuseIdxs[i];
+			diffuser.diffuse(field.getData(), idx, field.getLayerCount(), diffusionCoeffs[idx], decayRates[idx]);
+		}
+		if (metrics != null) {
+			metrics.add(TickMetrics.DIFFUSE, start);
+		}
+		//System.out.println("Diffuse");
+	}
+	
 	@ScheduledMethod(start = 0, priority = 1)
 	public void initialize() {
-		loadMatlab();
+		loadNetworkSolver();
 		initializeFibroblasts();
+		reportMemory();
 		initializeChemokineLayer();
+		loadInitialMaps();
+		loadInputSchedule();
 		initializeNetworkState();
-		//createDiffusers();
-		writeOutputData();
+		createDiffusers();
+		startOutput();
+		if (ModelRun.getResume() == null) { //a resumed run already wrote this tick
+			writeOutputData();
+		}
+		
+		//headless runs call finish themselves
+		ISchedule schedule = ModelRun.getSchedule();
+		if (schedule != null) {
+			schedule.schedule(ScheduleParameters.createAtEnd(ScheduleParameters.LAST_PRIORITY), this, "finish");
+		}
+	}
+	
+	/**
+	 * Replaces the starting values of layers with the maps listed in initialMaps,
+	 * e.g. "collagen = collagenDay7.jpg * 0.5, TNFalpha = TNFRing.csv" (see FieldMaps for the file types).
+	 * Maps are resampled to the grid; *factor scales a map
+	 */
+	public void loadInitialMaps() {
+		String list = ((String) p.getValue("initialMaps")).trim();
+		if (list.isEmpty()) {
+			return;
+		}
+		for (String entry : list.split(",")) {
+			int eq = entry.indexOf('=');
+			if (eq <= 0) {
+				System.out.println("Warning: initialMaps entry " + entry.trim() + " is not layer = file");
+				continue;
+			}
+			String layer = entry.substring(0, eq).trim();
+			String spec = entry.substring(eq + 1).trim();
+			double scale = 1;
+			int star = spec.lastIndexOf('*');
+			if (star > 0) {
+				scale = Double.parseDouble(spec.substring(star + 1).trim());
+				spec = spec.substring(0, star).trim();
+			}
+			int l = field.indexOf(layer);
+			if (l < 0) {
+				System.out.println("Warning: initialMaps layer " + layer + " is not in the field");
+				continue;
+			}
+			try {
+				long start = System.currentTimeMillis();
+				float[] values = FieldMaps.load(spec, gridWidth, gridHeight);
+				for (int y=0; y < gridHeight; y++) {
+					for (int x=0; x < gridWidth; x++) {
+						field.set(l, x, y, scale*values[y*gridWidth + x]);
+					}
+				}
+				System.out.println("Loaded " + spec + " into " + layer + " in "
+						+ (System.currentTimeMillis() - start) / 1000.0 + " s");
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the time-varying inputs of inputSchedule (none if the file doesn't exist)
+	 * and applies them for tick 0, over the layers initializeChemokineLayer built
+	 */
+	public void loadInputSchedule() {
+		File file = new File((String) p.getValue("inputSchedule"));
+		if (!file.isFile()) {
+			return;
+		}
+		try {
+			InputSchedule s = InputSchedule.load(file, field);
+			if (s.size() > 0) {
+				inputSchedule = s;
+				inputSchedule.apply(0);
+			}
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+	}
+	
+	/**
+	 * Sets the scheduled inputs for this tick, before anything diffuses or reads them
+	 */
+	@ScheduledMethod(start = 1, interval = 1, priority = 5)
+	public void applyInputs() {
+		if (inputSchedule != null) {
+			inputSchedule.apply(ModelRun.getTickCount());
+		}
+	}
+	
+	/**
+	 * Prints the memory cost per cell and per grid point, so large grids can be sized before they run out.
+	 * Agent and grid overhead is an estimate (FIBROBLAST_BYTES, GRID_ENTRY_BYTES); under the Repast runtime
+	 * every fibroblast also holds schedule entries for its scheduled methods
+	 */
+	public void reportMemory() {
+		int cells = Math.max(networkStates.size(), 1);
+		long stateBytes = (long) networkStates.getBytesPerCell() * cells;
+		long agentBytes = (long) (FIBROBLAST_BYTES + GRID_ENTRY_BYTES) * cells;
+		long fieldBytes = (long) field.getData().length * 8;
+		String storage = (String) p.getValue("stateStorage");
+		System.out.println("Memory: " + networkStates.getBytesPerCell() + " bytes of network state per cell ("
+				+ storage + (networkStates.isOnHeap() ? "" : ", off-heap") + "), about " + FIBROBLAST_BYTES
+				+ " bytes of Fibroblast and " + GRID_ENTRY_BYTES + " of context and grid entries per cell, "
+				+ field.getLayerCount()*8 + " bytes of field per grid point");
+		System.out.println("Memory: " + (stateBytes >> 20) + " MB of states and about " + (agentBytes >> 20)
+				+ " MB of agents for " + networkStates.size() + " cells, " + (fieldBytes >> 20) + " MB of field, "
+				+ (Runtime.getRuntime().maxMemory() >> 20) + " MB max heap");
+	}
+	
+	/**
+	 * Runs once when the simulation ends. Writes the remaining output and releases the network solver
+	 */
+	public void finish() {
+		if (output != null) {
+			output.close();
+		}
+		if (networkCache != null) {
+			System.out.println("Network cache: " + networkCache.getHits() + " of " + networkCache.getLookups()
+					+ " cell updates reused (" + Math.round(100*networkCache.getHitRate()) + "%), "
+					+ networkCache.getSolved() + " integrated");
+		}
+		if (networkSolver != null) {
+			networkSolver.close();
+		}
+		networkStates.close();
+		if (diffuser != null) {
+			diffuser.shutdown();
+		}
+		if (metrics != null) {
+			metrics.close();
+		}
 	}
 	
 	
 	@ScheduledMethod(start = 1, interval = 1, priority = 2)
 	public void goSecond() {
+		long start = metrics != null ? System.nanoTime() : 0;
 		processCellBehavior();
+		if (metrics != null) {
+			metrics.add(TickMetrics.GO_SECOND, start);
+		}
 		//System.out.println("Second");
 	}
 	
 	@ScheduledMethod(start = 1, interval = 1, priority = 0)
 	public void goLast(){
-		Parameters p = RunEnvironment.getInstance().getParameters();
+		long start = metrics != null ? System.nanoTime() : 0;
+		Parameters p = ModelRun.getParameters();
 		boolean feedback = (Boolean) p.getValue("TGFB_feedback");
 		
 			if (feedback == true){
 				TGFBactivation();
 			}
 			
+		long outputStart = metrics != null ? System.nanoTime() : 0;
 		writeOutputData();
+		if (metrics != null) {
+			metrics.add(TickMetrics.OUTPUT, outputStart);
+		}
+		
+		//compact binary snapshot for restarting, replaced every checkpointInterval ticks
+		int checkpointInterval = (Integer) p.getValue("checkpointInterval");
+		double tick = ModelRun.getTickCount();
+		if (checkpointInterval > 0 && tick % checkpointInterval == 0) {
+			try {
+				resultsFolder.mkdirs();
+				Checkpoint.write(new File(resultsFolder, "checkpoint.amfc"), this);
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+		}
+		
+		if (metrics != null) {
+			metrics.add(TickMetrics.GO_LAST, start);
+			metrics.endTick(tick, fibroblasts.size());
+		}
 		//System.out.println("Last");
 	}
 		
-	public void loadMatlab() {
-		//start the matlab connection
-		try {
-			eng = MatlabEngine.startMatlab();
-		} catch (Exception e) {
-			e.printStackTrace();
+	/**
+	 * Creates the network solver named by networkEngine:
+	 * "java" solves in this JVM, "worker" in a separate process sharing a memory-mapped file,
+	 * "matlab" runs processCellBehavior.m in a MATLAB session.
+	 * networkMethod picks the integrator of the java engines: ode23, or ode23s for stiff regimes,
+	 * or ode23lanes and ode23lockstep, which run ode23 on one cell per SIMD lane (see VectorLaneIntegrator).
+	 * ode23lanes gives exactly the results of ode23; ode23lockstep is faster but its results depend on which
+	 * cells are integrated together, so it doesn't reproduce a run bit for bit.
+	 * networkCacheSize > 0 puts a CachingNetworkSolver in front of the engine.
+	 */
+	public void loadNetworkSolver() {
+		String engine = (String) p.getValue("networkEngine");
+		int threads = (Integer) p.getValue("networkThreads");
+		String method = (String) p.getValue("networkMethod");
+		if (ParallelCellIntegrator.isLaneMethod(method) && ((String) p.getValue("vectorKernels")).equalsIgnoreCase("off")) {
+			System.out.println("Warning: vectorKernels is off, networkMethod " + method + " runs as ode23");
+			method = "ode23";
+		}
+		File networkFile = new File("network.mat");
+		File initialNetFile = new File("initialNet.mat");
+		
+		if (engine.equalsIgnoreCase("matlab")) {
+			networkSolver = new MatlabNetworkSolver();
+		} else if (ModelRun.getNetwork() != null && engine.equalsIgnoreCase("java")) {
+			//network already compiled by the sweep runner and shared with the other runs
+			networkSolver = new JavaNetworkSolver(ModelRun.getNetwork(), ModelRun.getInitialState(), method, threads);
+		} else if (engine.equalsIgnoreCase("worker")) {
+			networkSolver = new SharedMemoryNetworkSolver(networkFile, initialNetFile, method, threads);
+		} else {
+			networkSolver = new JavaNetworkSolver(networkFile, initialNetFile, method, threads);
 		}
 		
-		//System.out.println("Load Matlab");
+		//reuse results of cells with the same inputs and state
+		int cacheSize = (Integer) p.getValue("networkCacheSize");
+		if (cacheSize > 0) {
+			networkCache = new CachingNetworkSolver(networkSolver, cacheSize, (Double) p.getValue("networkCacheTolerance"));
+			networkSolver = networkCache;
+		}
+		
+		//skip cells that have settled
+		double quiescenceTolerance = (Double) p.getValue("quiescenceTolerance");
+		if (quiescenceTolerance > 0 && !networkStates.isOnHeap()) {
+			//the tracker keeps a heap copy of every state, which off-heap storage is meant to avoid
+			System.out.println("Warning: quiescenceTolerance is ignored with off-heap stateStorage");
+		} else if (quiescenceTolerance > 0) {
+			quiescence = new QuiescenceTracker(networkStates.getSpeciesCount(), quiescenceTolerance);
+		}
+		
+		if (metrics != null && networkSolver instanceof SolverStatistics) {
+			metrics.setSolver((SolverStatistics) networkSolver);
+		}
+		if (metrics != null) {
+			metrics.setQuiescence(quiescence);
+		}
+		
+		//System.out.println("Load Network Solver");
 	}
 	
 	public void initializeFibroblasts() {	
 		//add fibroblasts
 		Fibroblast fibroblast;
+		Checkpoint resume = ModelRun.getResume();
+		if (resume != null) {
+			//same cells at the same places, in the same slots, as when the checkpoint was written
+			for (int i = 0; i < resume.getCellCount(); i++) {
+				fibroblast = new Fibroblast(this, cellsPerGrid);
+				this.add(fibroblast);
+				grid.moveTo(fibroblast, resume.getX(i), resume.getY(i));
+				occupancy.add(fibroblast);
+				fibroblasts.add(fibroblast);
+			}
+			return;
+		}
 		for (int i = 0; i < initialFibroblastCount; i++) {
 			fibroblast = new Fibroblast(this, cellsPerGrid);
 			this.add(fibroblast);
+			occupancy.add(fibroblast);
 			fibroblasts.add(fibroblast);
 		}
 		
@@ -227,11 +533,11 @@ public class AMFACSpace extends DefaultContext<Object> {
 			for (int y = 0; y < gridHeight; y++) {
 				//inflammatory chemokines
 				for (int i = 0; i < inflam.length; i++) {
-					inputLayers.get(inflam[i]).set(((double)x)/wdub*inflamMax[i], x, y);
+					field.set(inflam[i], x, y, ((double)x)/wdub*inflamMax[i]);
 				}
 				//fibrotic chemokines
 				for (int i = 0; i < antiInflam.length; i++) {
-					inputLayers.get(antiInflam[i]).set(((double)y)/hdub*antiInflamMax[i], x, y);
+					field.set(antiInflam[i], x, y, ((double)y)/hdub*antiInflamMax[i]);
 				}
 			}
 		}
@@ -241,20 +547,33 @@ public class AMFACSpace extends DefaultContext<Object> {
 	}
 	
 	public void initializeNetworkState() {
-		// load the mat file only once
+		// load the network only once
 		try {
-			eng.eval("load network.mat");
-			eng.eval("load initialNet.mat");
-			initialNet = eng.getVariable("initialNet");
+			initialNet = networkSolver.loadInitialState();
 			
-			for (Fibroblast f: fibroblasts) {
-				f.setNetworkState(initialNet);
+			//warm start: cells take the saved states in turn instead of initialNet
+			String warmStart = (String) p.getValue("warmStartFile");
+			Checkpoint saved = null;
+			if (warmStart != null && !warmStart.trim().isEmpty()) {
+				try {
+					saved = Checkpoint.read(new File(warmStart.trim()));
+					if (saved.getSpeciesCount() != networkStates.getSpeciesCount() || saved.getCellCount() == 0) {
+						System.out.println("Warning: " + warmStart + " doesn't match the network, using initialNet");
+						saved = null;
+					}
+				} catch (IOException e) {
+					System.out.println(e);
+				}
+			}
+			double[] state = new double[networkStates.getSpeciesCount()];
+			for (int i=0; i < networkStates.size(); i++) {
+				if (saved != null) {
+					saved.copyState(i % saved.getCellCount(), state);
+					networkStates.copyIn(i, state);
+				} else {
+					networkStates.copyIn(i, initialNet);
+				}
 			}
-			initialNet = eng.getVariable("initialNet");
-			//uncomment if you want to fool areound with parallel computing
-			/*eng.eval(" myCluster = parcluster('local')");
-			eng.eval(" myCluster.NumWorkers = 3");
-			eng.eval("parpool('local',3);");*/
 		} catch (Exception e) {
 			System.out.println(e);
 		}
@@ -265,461 +584,128 @@ public class AMFACSpace extends DefaultContext<Object> {
 	
 
 	public void writeOutputData() {
-		//collagen
+		//per-cell outputs read the state store in the same order as looping over grid.getObjectsAt(x,y)
+		int cells = sortCellsBySite();
 		
-		//String fileName = "C:\\Users\\smr2we\\Documents\\collagen.csv";
-		String fileName = ".\\Results\\collagen.csv";
-		String delim = ",";
-		String newline = "\n";
-		FileWriter fileWriter;
-		try {
-			fileWriter = new FileWriter(fileName, true);
-			for (int y = 0; y < gridWidth; y++) {
-				for (int x = 0; x < gridHeight; x++) {
-					fileWriter.append(Double.toString(collagen.get(x,y)));
-					//if not at the end
-					if (!(x+1 == gridWidth && y+1 == gridHeight)) {
-						fileWriter.append(delim);
-					}
-				}
-			}
-			fileWriter.append(newline);
-			try {
-				fileWriter.flush();
-				fileWriter.close();
-			} catch (IOException e) {
-				System.out.println("Error while flushing/closing fileWriter !!!");
-				e.printStackTrace();
-			}
-			
-		} catch (Exception e) {
-			System.out.println("Error in CsvFileWriter !!!");
-			e.printStackTrace();
-		}
+		//every observable that is due in one pass over the sites and one over the cells
+		double tick = ModelRun.getTickCount();
+		double[][] values = observables.evaluate(tick, networkStates,
+				siteOrder, cells, networkStates.size(), gridWidth, gridHeight);
 		
-			
-		//tgfb
-		fileName = ".\\Results\\tgfb.csv";
-		try {
-			fileWriter = new FileWriter(fileName, true);
-			for (int y = 0; y < gridWidth; y++) {
-				for (int x = 0; x < gridHeight; x++) {
-					fileWriter.append(Double.toString(inputLayers.get(0).get(x,y))); //index 0 is hardcoded in here
-					fileWriter.append(delim);
-				}
-			}
-			fileWriter.append(newline);
-			try {
-				fileWriter.flush();
-				fileWriter.close();
-			} catch (IOException e) {
-				System.out.println("Error while flushing/closing fileWriter !!!");
-				e.printStackTrace();
-			}
-			
-		} catch (Exception e) {
-			System.out.println("Error in CsvFileWriter !!!");
-			e.printStackTrace();
-		}
+		output.submit(new TickSnapshot(tick, values));
 		
-		//latent tgfb
-		fileName = ".\\Results\\LatentTgfb.csv";
+		//System.out.println("Write Output Data");
+	}
+	
+	/**
+	 * Compiles the observables of observablesFile (the built-in list if the file doesn't exist)
+	 * and starts the background writer for the Results files.
+	 * outputFormat picks the csv files, the binary results.amfr (see ResultExporter) or both
+	 */
+	public void startOutput() {
+		String[] speciesNames = new String[0];
 		try {
-			fileWriter = new FileWriter(fileName, true);
-			for (int y = 0; y < gridWidth; y++) {
-				for (int x = 0; x < gridHeight; x++) {
-					fileWriter.append(Double.toString(inputLayers.get(1).get(x,y))); //index 1 is hardcoded in here
-					fileWriter.append(delim);
-				}
+			if (ModelRun.getNetwork() != null) {
+				speciesNames = ModelRun.getNetwork().getSpeciesNames();
+			} else {
+				speciesNames = SaucermanNetwork.loadSpeciesNames(new File("network.mat"));
 			}
-			fileWriter.append(newline);
-			try {
-				fileWriter.flush();
-				fileWriter.close();
-			} catch (IOException e) {
-				System.out.println("Error while flushing/closing fileWriter !!!");
-				e.printStackTrace();
-			}
-			
-		} catch (Exception e) {
-			System.out.println("Error in CsvFileWriter !!!");
-			e.printStackTrace();
+		} catch (IOException e) {
+			System.out.println(e);
 		}
 		
-		//deposition (average of Col I and III mRNA)
-		fileName = ".\\Results\\deposition.csv";
-		try {
-			fileWriter = new FileWriter(fileName, true);
-			for (int y = 0; y < gridWidth; y++) {
-				for (int x = 0; x < gridHeight; x++) {
-					for( Object object: grid.getObjectsAt(x,y)) {
-						
-						Fibroblast f = (Fibroblast)object;
-						double[] states = f.getNetworkState();
-						double deposition = (states[87]+states[88])/2;
-					
-
-					fileWriter.append(Double.toString(deposition)); //index 1 is hardcoded in here
-					fileWriter.append(delim);
-					}
-				}
-			}
-			fileWriter.append(newline);
-			try {
-				fileWriter.flush();
-				fileWriter.close();
-			} catch (IOException e) {
-				System.out.println("Error while flushing/closing fileWriter !!!");
-				e.printStackTrace();
-			}
-			
-		} catch (Exception e) {
-			System.out.println("Error in CsvFileWriter !!!");
-			e.printStackTrace();
+		ValueLayer[] layers = new ValueLayer[inputLayers.size() + 1];
+		layers[0] = collagen;
+		for (int i=0; i < inputLayers.size(); i++) {
+			layers[i + 1] = inputLayers.get(i);
 		}
-		
-		//degradation (average of MMP 1, 2, and 9)
-		fileName = ".\\Results\\degradation.csv";
+		int species = networkStates.getSpeciesCount();
+		File file = new File((String) p.getValue("observablesFile"));
 		try {
-			fileWriter = new FileWriter(fileName, true);
-			for (int y = 0; y < gridWidth; y++) {
-				for (int x = 0; x < gridHeight; x++) {
-					for( Object object: grid.getObjectsAt(x,y)) {
-						
-						Fibroblast f = (Fibroblast)object;
-						double[] states = f.getNetworkState();
-						double degradation = (states[81]+states[82]+states[83])/3;
-					
-
-					fileWriter.append(Double.toString(degradation)); //index 1 is hardcoded in here
-					fileWriter.append(delim);
-					}
-				}
+			if (file.exists()) {
+				observables = ObservableRegistry.load(file, layers, speciesNames, species);
+			} else {
+				observables = new ObservableRegistry(Arrays.asList(ObservableRegistry.DEFAULT_DEFINITIONS), "default",
+						layers, speciesNames, species);
 			}
-			fileWriter.append(newline);
+		} catch (IOException e) {
+			System.out.println(e);
 			try {
-				fileWriter.flush();
-				fileWriter.close();
-			} catch (IOException e) {
-				System.out.println("Error while flushing/closing fileWriter !!!");
-				e.printStackTrace();
+				observables = new ObservableRegistry(Arrays.asList(ObservableRegistry.DEFAULT_DEFINITIONS), "default",
+						layers, speciesNames, species);
+			} catch (IOException e2) {
+				throw new IllegalStateException(e2);
 			}
-			
-		} catch (Exception e) {
-			System.out.println("Error in CsvFileWriter !!!");
-			e.printStackTrace();
 		}
+		String[] names = observables.getNames();
+		boolean[] trailingDelimiter = observables.getTrailingDelimiters();
 		
-		//MMP1
-		fileName = ".\\Results\\MMP1.csv";
-
-		try {
-			fileWriter = new FileWriter(fileName, true);
-			for (int y = 0; y < gridWidth; y++) {
-				for (int x = 0; x < gridHeight; x++) {
-					for( Object object: grid.getObjectsAt(x,y)) {
-						
-						Fibroblast f = (Fibroblast)object;
-						double[] states = f.getNetworkState();
-						double degradation = (states[81]);
-					
-
-					fileWriter.append(Double.toString(degradation)); //index 1 is hardcoded in here
-					fileWriter.append(delim);
-					}
-				}
-			}
-			fileWriter.append(newline);
-			try {
-				fileWriter.flush();
-				fileWriter.close();
-			} catch (IOException e) {
-				System.out.println("Error while flushing/closing fileWriter !!!");
-				e.printStackTrace();
-			}
-			
-		} catch (Exception e) {
-			System.out.println("Error in CsvFileWriter !!!");
-			e.printStackTrace();
-		}
+		//csv, binary or both
+		String format = (String) p.getValue("outputFormat");
+		boolean singlePrecision = ((String) p.getValue("outputPrecision")).equalsIgnoreCase("float");
 		
-		//MMP2
-		fileName = ".\\Results\\MMP2.csv";
-
-		try {
-			fileWriter = new FileWriter(fileName, true);
-			for (int y = 0; y < gridWidth; y++) {
-				for (int x = 0; x < gridHeight; x++) {
-					for( Object object: grid.getObjectsAt(x,y)) {
-						
-						Fibroblast f = (Fibroblast)object;
-						double[] states = f.getNetworkState();
-						double degradation = (states[82]);
-					
-
-					fileWriter.append(Double.toString(degradation)); //index 1 is hardcoded in here
-					fileWriter.append(delim);
-					}
-				}
-			}
-			fileWriter.append(newline);
-			try {
-				fileWriter.flush();
-				fileWriter.close();
-			} catch (IOException e) {
-				System.out.println("Error while flushing/closing fileWriter !!!");
-				e.printStackTrace();
-			}
-			
-		} catch (Exception e) {
-			System.out.println("Error in CsvFileWriter !!!");
-			e.printStackTrace();
+		output = new OutputPipeline(OUTPUT_QUEUE_SIZE);
+		if (!format.equalsIgnoreCase("binary")) {
+			output.addSink(new CsvResultSink(resultsFolder, names, trailingDelimiter, false, observables.getSampled()));
 		}
-		
-		//MMP9
-		fileName = ".\\Results\\MMP9.csv";
-
-		try {
-			fileWriter = new FileWriter(fileName, true);
-			for (int y = 0; y < gridWidth; y++) {
-				for (int x = 0; x < gridHeight; x++) {
-					for( Object object: grid.getObjectsAt(x,y)) {
-						
-						Fibroblast f = (Fibroblast)object;
-						double[] states = f.getNetworkState();
-						double degradation = (states[83]);
-					
-
-					fileWriter.append(Double.toString(degradation)); //index 1 is hardcoded in here
-					fileWriter.append(delim);
-					}
-				}
-			}
-			fileWriter.append(newline);
-			try {
-				fileWriter.flush();
-				fileWriter.close();
-			} catch (IOException e) {
-				System.out.println("Error while flushing/closing fileWriter !!!");
-				e.printStackTrace();
-			}
-			
-		} catch (Exception e) {
-			System.out.println("Error in CsvFileWriter !!!");
-			e.printStackTrace();
+		if (format.equalsIgnoreCase("binary") || format.equalsIgnoreCase("both")) {
+			output.addSink(new BinaryResultSink(new File(resultsFolder, "results.amfr"), gridWidth, gridHeight,
+					names, trailingDelimiter, observables.getKeyframeIntervals(), speciesNames, singlePrecision));
 		}
 		
-		//MMP14
-		fileName = ".\\Results\\MMP14.csv";
-
-		try {
-			fileWriter = new FileWriter(fileName, true);
-			for (int y = 0; y < gridWidth; y++) {
-				for (int x = 0; x < gridHeight; x++) {
-					for( Object object: grid.getObjectsAt(x,y)) {
-						
-						Fibroblast f = (Fibroblast)object;
-						double[] states = f.getNetworkState();
-						double degradation = (states[84]);
-					
-
-					fileWriter.append(Double.toString(degradation)); //index 1 is hardcoded in here
-					fileWriter.append(delim);
-					}
-				}
-			}
-			fileWriter.append(newline);
+		//a resumed run continues the result files from where they ended at the checkpoint
+		Checkpoint resume = ModelRun.getResume();
+		if (resume != null) {
 			try {
-				fileWriter.flush();
-				fileWriter.close();
+				resume.restoreOutput(observables, output);
 			} catch (IOException e) {
-				System.out.println("Error while flushing/closing fileWriter !!!");
-				e.printStackTrace();
+				throw new IllegalStateException("Can't resume output: " + e.getMessage(), e);
 			}
-			
-		} catch (Exception e) {
-			System.out.println("Error in CsvFileWriter !!!");
-			e.printStackTrace();
+		}
+		output.start();
+		if (metrics != null) {
+			metrics.setOutput(output, names);
+		}
+	}
+	
+	/**
+	 * Fills siteOrder with store slots in the order the output loops visit the grid
+	 * (row by row, y from 0 to gridHeight, then x from 0 to gridWidth). Cells on the same site keep their slot order
+	 * @return the number of entries in siteOrder
+	 */
+	private int sortCellsBySite() {
+		int n = networkStates.size();
+		int sites = gridWidth*gridHeight;
+		if (siteCounts.length != sites + 1) {
+			siteCounts = new int[sites + 1];
+		} else {
+			Arrays.fill(siteCounts, 0);
+		}
+		if (siteOrder.length < 2*n) {
+			siteOrder = new int[2*n];
 		}
 		
-		//ColI
-				fileName = ".\\Results\\ColI.csv";
-				try {
-					fileWriter = new FileWriter(fileName, true);
-					for (int y = 0; y < gridWidth; y++) {
-						for (int x = 0; x < gridHeight; x++) {
-							for( Object object: grid.getObjectsAt(x,y)) {
-								
-								Fibroblast f = (Fibroblast)object;
-								double[] states = f.getNetworkState();
-								double deposition = (states[89]);
-							
-
-							fileWriter.append(Double.toString(deposition)); //index 1 is hardcoded in here
-							fileWriter.append(delim);
-							}
-						}
-					}
-					fileWriter.append(newline);
-					try {
-						fileWriter.flush();
-						fileWriter.close();
-					} catch (IOException e) {
-						System.out.println("Error while flushing/closing fileWriter !!!");
-						e.printStackTrace();
-					}
-					
-				} catch (Exception e) {
-					System.out.println("Error in CsvFileWriter !!!");
-					e.printStackTrace();
-				}
-				
-			//ColIII
-				fileName = ".\\Results\\ColIII.csv";
-				try {
-					fileWriter = new FileWriter(fileName, true);
-					for (int y = 0; y < gridWidth; y++) {
-						for (int x = 0; x < gridHeight; x++) {
-							for( Object object: grid.getObjectsAt(x,y)) {
-								
-								Fibroblast f = (Fibroblast)object;
-								double[] states = f.getNetworkState();
-								double deposition = (states[90]);
-							
-
-							fileWriter.append(Double.toString(deposition)); //index 1 is hardcoded in here
-							fileWriter.append(delim);
-							}
-						}
-					}
-					fileWriter.append(newline);
-					try {
-						fileWriter.flush();
-						fileWriter.close();
-					} catch (IOException e) {
-						System.out.println("Error while flushing/closing fileWriter !!!");
-						e.printStackTrace();
-					}
-					
-				} catch (Exception e) {
-					System.out.println("Error in CsvFileWriter !!!");
-					e.printStackTrace();
-				}
-				
-				//final network state
-	/*			ISchedule schedule = RunEnvironment.getInstance().getCurrentSchedule();
-				double tick = schedule.getTickCount();
-				
-				if (tick == 168){
-					fileName = ".\\Results\\SteadyStateNetwork.csv";
-					
-					try {
-						fileWriter = new FileWriter(fileName, true);
-						for (int y = 0; y < gridWidth; y++) {
-							for (int x = 0; x < gridHeight; x++) {
-								for( Object object: grid.getObjectsAt(x,y)) {
-									
-									Fibroblast f = (Fibroblast)object;
-									double[] states = f.getNetworkState();
-								
-									for (int i = 0; i < states.length; i++){
-										fileWriter.append(Double.toString(states[i]));
-										fileWriter.append(delim);
-									}
-
-								}
-								fileWriter.append(newline);
-						}
-						}
-
-						try {
-							fileWriter.flush();
-							fileWriter.close();
-						} catch (IOException e) {
-							System.out.println("Error while flushing/closing fileWriter !!!");
-							e.printStackTrace();
-						}
-						
-					} catch (Exception e) {
-						System.out.println("Error in CsvFileWriter !!!");
-						e.printStackTrace();
-					}
-				}*/
-				
-				//network state of all fibroblasts
-				/*if (fibroblasts.size() != 0) {
-				
-				for (int i=0; i < fibroblasts.size(); i++) {
-
-					fileName = ".\\Results\\Fibroblast" + Integer.toString(i) + ".csv";
-					//System.out.println(fileName);
-				
-					
-					try {
-						fileWriter = new FileWriter(fileName, true);
-						
-						double[] networkstate = fibroblasts.get(i).getNetworkState();
-						GridPoint pt = fibroblasts.get(i).getPoint();
-						double y = pt.getY();
-						double x = pt.getX();
-						
-								
-						for (int j = 0; j < networkstate.length; j++){
-								fileWriter.append(Double.toString(networkstate[j]));
-								fileWriter.append(delim);
-						}
-						fileWriter.append(Double.toString(x));
-						fileWriter.append(delim);
-						fileWriter.append(Double.toString(y));
-						fileWriter.append(delim);
-
-						fileWriter.append(newline);
-						
-						try {
-							fileWriter.flush();
-							fileWriter.close();
-						} catch (IOException e) {
-							System.out.println("Error while flushing/closing fileWriter !!!");
-							e.printStackTrace();
-						}
-						
-					} catch (Exception e) {
-						System.out.println("Error in CsvFileWriter !!!");
-						e.printStackTrace();
-					}
-				}
-				}*/
-					
-					
-				
-		//System.out.println("Write Output Data");
-		
-		
-		
-/*		//il6
-		fileName = ".\\Results\\il6.csv";
-		try {
-			fileWriter = new FileWriter(fileName, true);
-			for (int x = 0; x < gridWidth; x++) {
-				for (int y = 0; y < gridHeight; y++) {
-					fileWriter.append(Double.toString(inputLayers.get(1).get(x,y))); //index 1 is hardcoded in here
-					fileWriter.append(delim);
-				}
+		//site of every cell goes in the upper half of siteOrder, -1 if the loops never visit it
+		for (int i=0; i < n; i++) {
+			GridPoint pt = grid.getLocation(fibroblasts.get(i));
+			int site = -1;
+			if (pt != null && pt.getX() < gridWidth && pt.getY() < gridHeight) {
+				site = pt.getY()*gridWidth + pt.getX();
+				siteCounts[site + 1]++;
 			}
-			fileWriter.append(newline);
-			try {
-				fileWriter.flush();
-				fileWriter.close();
-			} catch (IOException e) {
-				System.out.println("Error while flushing/closing fileWriter !!!");
-				e.printStackTrace();
+			siteOrder[n + i] = site;
+		}
+		for (int i=0; i < sites; i++) {
+			siteCounts[i + 1] += siteCounts[i];
+		}
+		int cells = siteCounts[sites];
+		for (int i=0; i < n; i++) {
+			int site = siteOrder[n + i];
+			if (site >= 0) {
+				siteOrder[siteCounts[site]++] = i;
 			}
-			
-		} catch (Exception e) {
-			System.out.println("Error in CsvFileWriter !!!");
-			e.printStackTrace();
-		}*/
-		
+		}
+		return cells;
 	}
 	
 	/**
@@ -729,12 +715,16 @@ public class AMFACSpace extends DefaultContext<Object> {
 	 * @param pt the grid point to which the fibroblast should be added
 	 */
 	public void addFibroblast(GridPoint pt, double[] network) {
-		Fibroblast f = new Fibroblast(this, cellsPerGrid);
+		Fibroblast f = new Fibroblast(this, cellsPerGrid); //starts with a zeroed network state
 		this.add(f);
-		double[] initial = new double[91];
-		f.setNetworkState(initial);
+		if (grid.getLocation(f) == null) {
+			//resumed runs add with SimpleGridAdder, which leaves the cell off the grid; place it as RunGridAdder
+			//does in a fresh run, so it has a place if pt is taken and the random draws stay the same
+			new RunGridAdder<Object>().add(grid, f);
+		}
+		occupancy.add(f);
 		//f.setNetworkState(network); //if you want daughter cells to inherit network state of the parent cell
-		grid.moveTo(f, pt.getX(), pt.getY());
+		occupancy.moveTo(f, pt.getX(), pt.getY());
 		f.initialize();
 		fibroblasts.add(f);
 	}
@@ -744,13 +734,100 @@ public class AMFACSpace extends DefaultContext<Object> {
 	 * @param f
 	 */
 	public void removeFibroblast(Fibroblast f) {
-		fibroblasts.remove(f); //will remove the first instance of this cell (assuming it does it correctly)
+		//the last fibroblast takes the freed slot in both the list and the state store
+		int idx = f.getStateIndex();
+		int last = fibroblasts.size() - 1;
+		fibroblasts.set(idx, fibroblasts.get(last));
+		fibroblasts.remove(last);
+		networkStates.release(idx);
+		if (quiescence != null) {
+			quiescence.release(idx, last);
+		}
+		occupancy.remove(f);
 		this.remove(f); //remove from the context
 	}
 	
+	/**
+	 * @return the network states of all fibroblasts
+	 */
+	public NetworkStateStore getNetworkStates() {
+		return networkStates;
+	}
+	
+	/**
+	 * @return all fibroblasts, in the order of their network state slots. Don't modify
+	 */
+	public List<Fibroblast> getFibroblasts() {
+		return fibroblasts;
+	}
+	
+	/**
+	 * @return the quiescence tracker, null unless quiescenceTolerance > 0
+	 */
+	public QuiescenceTracker getQuiescence() {
+		return quiescence;
+	}
+	
+	/**
+	 * @return the phase timings of the run, null unless metrics is on
+	 */
+	public TickMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return the compiled output streams
+	 */
+	public ObservableRegistry getObservables() {
+		return observables;
+	}
+	
+	/**
+	 * @return the background writer of the result files, null before startOutput
+	 */
+	public OutputPipeline getOutput() {
+		return output;
+	}
+	
+	//average of MMP2 and MMP9 of the cell in slot i; states is null when they are off-heap
+	private double activation(double[] states, int species, int i) {
+		return states != null
+				? (states[i*species + 82] + states[i*species + 83])/2
+				: (networkStates.get(i, 82) + networkStates.get(i, 83))/2;
+	}
+	
+	/**
+	 * @return where each Fibroblast.INPUT_LAYER_NAMES layer sits in the field; one array for all fibroblasts
+	 */
+	int[] getFibroblastInputIdxs() {
+		if (fibroblastInputIdxs == null) {
+			int[] idxs = new int[Fibroblast.INPUT_LAYER_NAMES.length];
+			for (int i = 0; i < idxs.length; i++) {
+				idxs[i] = field.indexOf(Fibroblast.INPUT_LAYER_NAMES[i]);
+			}
+			fibroblastInputIdxs = idxs;
+		}
+		return fibroblastInputIdxs;
+	}
+	
+	/**
+	 * @return the chemokine layers and collagen of the grid
+	 */
+	public ChemokineField getChemokineField() {
+		return field;
+	}
 	
 	/**
-	 * Iterates through all the cells in the array list then creates a large array to pass to matlab to process all at once
+	 * @return the number of fibroblasts at every grid point. Move fibroblasts through it, not the grid
+	 */
+	public OccupancyIndex getOccupancy() {
+		return occupancy;
+	}
+	
+	
+	/**
+	 * Iterates through all the cells in the array list and integrates their networks for one tick
+	 * with the NetworkSolver, directly on the NetworkStateStore
 	 */
 
 	public void processCellBehavior() {
@@ -758,72 +835,75 @@ public class AMFACSpace extends DefaultContext<Object> {
 			return;
 		}
 		
-		//get every fibroblast's network state
-		
-		double[][] states = new double[fibroblasts.size()][fibroblasts.get(0).getNetworkState().length];
-		double[] TGFBweights = new double[fibroblasts.size()];
-		double[] IL1weights = new double[fibroblasts.size()];
-		double[] IL6weights = new double[fibroblasts.size()];
-		double[] TNFaweights = new double[fibroblasts.size()];
+		int n = fibroblasts.size();
+		if (cellSites.length < n) {
+			cellInputs = new double[n*SaucermanNetwork.INPUT_COUNT];
+			cellSites = new int[n];
+		}
+		//TGFB, IL1, IL6 and TNFa weights packed 4 per cell
+		double[] inputs = cellInputs;
+		int[] sites = cellSites;
 		
-		GridValueLayer TGFB = inputLayers.get(0); //hardcoded indexes, may need to be changed in the future
-		GridValueLayer IL1 = inputLayers.get(3);
-		GridValueLayer IL6 = inputLayers.get(2);
-		GridValueLayer TNFa = inputLayers.get(4);
+		final int TGFB = 0; //hardcoded indexes, may need to be changed in the future
+		final int IL1 = 3;
+		final int IL6 = 2;
+		final int TNFa = 4;
+		double[] values = field.getData();
 		
-		for (int i=0; i < fibroblasts.size(); i++) {
-			states[i] = fibroblasts.get(i).getNetworkState();
+		for (int i=0; i < n; i++) {
 			Fibroblast f = fibroblasts.get(i);
 			GridPoint pt = f.getPoint();
-			double y = pt.getY();
-			double x = pt.getX();
+			int y = pt.getY();
+			int x = pt.getX();
 			
 			//System.out.println(x);
 			//System.out.println(y);
 			
-			TGFBweights[i] = TGFB.get(x,y)/TGFBsat;
-			IL1weights[i] = IL1.get(x,y)/IL1sat;
-			IL6weights[i] = IL6.get(x,y)/IL6sat;
-			TNFaweights[i] = TNFa.get(x,y)/TNFasat;
+			//all inputs of a grid point are next to each other in the field
+			int c = field.offset(x, y);
+			int w = i*SaucermanNetwork.INPUT_COUNT;
+			inputs[w] = values[c + TGFB]/TGFBsat;
+			inputs[w+1] = values[c + IL1]/IL1sat;
+			inputs[w+2] = values[c + IL6]/IL6sat;
+			inputs[w+3] = values[c + TNFa]/TNFasat;
+			sites[i] = y*gridWidth + x;
 		}
-		
-			//System.out.println(Arrays.toString(TGFBweights));
-			//System.out.println(Arrays.toString(IL1weights));
-			//System.out.println(Arrays.toString(IL6weights));
-			//System.out.println(Arrays.toString(TNFaweights));
 			
 		try {
-			eng.putVariable("states", states);
-			eng.putVariable("TGFBweights", TGFBweights);
-			eng.putVariable("IL1weights", IL1weights);
-			eng.putVariable("IL6weights", IL6weights);
-			eng.putVariable("TNFaweights", TNFaweights);
-			
-			//System.out.println(System.currentTimeMillis());
-			eng.eval("processCellBehavior");
-			//System.out.println(System.currentTimeMillis());
-			
-			states =  eng.getVariable("states"); //since states is a 2d array, there must be at least 2 fibroblasts
-			
+			int species = networkStates.getSpeciesCount();
+			int failed;
+			long start = metrics != null ? System.nanoTime() : 0;
+			if (!networkStates.isOnHeap()) {
+				failed = solveInChunks(inputs, n);
+			} else if (quiescence == null) {
+				failed = networkSolver.solve(networkStates.getStates(), species, inputs, n);
+			} else {
+				double[] states = networkStates.getStates();
+				//only cells that haven't settled are integrated
+				int active = quiescence.prepare(states, inputs, sites, n);
+				failed = active == 0 ? 0 : networkSolver.solve(quiescence.getActiveStates(), species,
+						quiescence.getActiveInputs(), active);
+				quiescence.finish(states, inputs, sites);
+			}
+			if (metrics != null) {
+				metrics.add(TickMetrics.SOLVE, start);
+			}
+			if (failed > 0) {
+				System.out.println("Warning: network step size fell below the minimum for " + failed + " fibroblasts");
+			}
+
 			GridPoint pt;
-			Fibroblast f;
 					
-			for (int i=0; i < fibroblasts.size(); i++) {
-				f = fibroblasts.get(i);
-				f.setNetworkState(states[i]);
-				pt = f.getPoint();
-				GridValueLayer layer;
+			for (int i=0; i < n; i++) {
+				pt = fibroblasts.get(i).getPoint();
+				int c = field.offset(pt.getX(), pt.getY());
 				
-				double orig, dvdt, updated;	
-				int x,y; 
+				double orig, dvdt;	
 				
 				for (int j=0; j < networkLayerOutputIdxs.length - 1; j+=2) {
-					x = pt.getX();
-					y = pt.getY();
-					layer = inputLayers.get(networkLayerOutputIdxs[j+1]);
-					orig = layer.get(x,y);
-					dvdt = (states[i][networkLayerOutputIdxs[j]]-orig);
-					layer.set(orig+dvdt, x,y);
+					orig = values[c + networkLayerOutputIdxs[j+1]];
+					dvdt = (networkStates.get(i, networkLayerOutputIdxs[j])-orig);
+					values[c + networkLayerOutputIdxs[j+1]] = orig+dvdt;
 				}
 				
 				
@@ -836,39 +916,92 @@ public class AMFACSpace extends DefaultContext<Object> {
 		//System.out.println("Process Cell Behavior");
 	}
 	
+	/**
+	 * Solves off-heap states a chunk at a time through a double scratch array,
+	 * so the solvers integrate in double whatever the storage precision
+	 * @return number of cells the solver could not finish
+	 */
+	private int solveInChunks(double[] inputs, int n) throws Exception {
+		int species = networkStates.getSpeciesCount();
+		int chunk = Math.min(n, STATE_CHUNK);
+		if (stateChunk.length < chunk*species) {
+			stateChunk = new double[chunk*species];
+			inputChunk = new double[chunk*SaucermanNetwork.INPUT_COUNT];
+		}
+		int failed = 0;
+		for (int first = 0; first < n; first += chunk) {
+			int m = Math.min(chunk, n - first);
+			networkStates.copyOut(first, m, stateChunk);
+			System.arraycopy(inputs, first*SaucermanNetwork.INPUT_COUNT, inputChunk, 0, m*SaucermanNetwork.INPUT_COUNT);
+			failed += networkSolver.solve(stateChunk, species, inputChunk, m);
+			networkStates.copyIn(first, m, stateChunk);
+		}
+		return failed;
+	}
+	
+	/**
+	 * Activates latent TGF-B with the MMP2 and MMP9 of the fibroblasts at each site and degrades
+	 * active TGF-B. By default this happens once per fibroblast, as the loop over grid.getObjectsAt did:
+	 * the TGFBKernel updates the sites with one cell in one pass over the field, and sites with more
+	 * cells are then updated cell by cell in grid.getObjectsAt order. With TGFBdegradation = site the
+	 * cells of a site activate together the share 1 - (1 - a1)(1 - a2)... of its latent TGF-B, and
+	 * active TGF-B is degraded once per site, all in the kernel pass. Empty sites are left as they are
+	 */
 	public void TGFBactivation() {
-		for (int x=0; x < gridWidth; x++){
-			for (int y=0; y < gridHeight; y++ ){
-				for( Object object: grid.getObjectsAt(x,y)) {
-				
-			Fibroblast f = (Fibroblast)object;
-					
-			double[] states = f.getNetworkState();
-			double activation = (states[82] + states[83])/2; //average of MMP2 and MMP9
-			
-			GridValueLayer TGFB;
-			GridValueLayer latentTGFB;
-			double origTGFB, origLatentTGFB;
-			
-			//get TGFB value layer at every grid point
-			TGFB = inputLayers.get(networkLayerInputIdxs[1]);
-			origTGFB = TGFB.get(x, y);
-			
-			//get latent TGFB value layer at every grid point
-			latentTGFB = inputLayers.get(networkLayerOutputIdxs[1]);
-			origLatentTGFB = latentTGFB.get(x, y);
-			
-			//activate TGFB based on activation rate and latent TGFB present
-			TGFB.set(origTGFB + activation*origLatentTGFB, x, y);
-			
-			//remove the same amount of latent TGFB from that grid point
-			latentTGFB.set(origLatentTGFB - activation*origLatentTGFB - latentdegradationRate*origLatentTGFB, x, y);
-			
-			//degrade TGFB at a constant rate
-			TGFB.set(TGFB.get(x, y)*(1-activedegradationRate), x, y);
-			
+		int sites = gridWidth*gridHeight;
+		if (siteActivation.length != sites) {
+			siteActivation = new double[sites];
+			siteOccupied = new boolean[sites];
+			siteShared = new boolean[sites];
+		} else {
+			Arrays.fill(siteOccupied, false);
+		}
+		
+		int n = fibroblasts.size();
+		int species = networkStates.getSpeciesCount();
+		double[] states = networkStates.isOnHeap() ? networkStates.getStates() : null;
+		if (sharedSites.length < n) {
+			sharedSites = new int[n];
+		}
+		int shared = 0;
+		for (int i=0; i < n; i++) {
+			GridPoint pt = fibroblasts.get(i).getPoint();
+			int k = pt.getY()*gridWidth + pt.getX();
+			if (siteShared[k]) {
+				continue;
+			}
+			double a = activation(states, species, i);
+			if (!siteOccupied[k]) {
+				siteOccupied[k] = true;
+				siteActivation[k] = a;
+			} else if (degradePerSite) {
+				siteActivation[k] += a - siteActivation[k]*a;
+			} else {
+				//leave the site to the cell by cell pass below
+				siteOccupied[k] = false;
+				siteShared[k] = true;
+				sharedSites[shared++] = k;
 			}
 		}
+		
+		double[] data = field.getData();
+		int stride = field.getLayerCount();
+		int tgfb = networkLayerInputIdxs[1];
+		int latent = networkLayerOutputIdxs[1];
+		double keep = 1 - activedegradationRate;
+		tgfbKernel.apply(data, stride, tgfb, latent, siteActivation, siteOccupied, sites, keep, latentdegradationRate);
+		for (int e = 0; e < shared; e++) {
+			int k = sharedSites[e];
+			int c = k*stride;
+			for (Object object : grid.getObjectsAt(k % gridWidth, k / gridWidth)) {
+				double a = activation(states, species, ((Fibroblast) object).getStateIndex());
+				double t = data[c + tgfb];
+				double l = data[c + latent];
+				double al = a * l;
+				data[c + tgfb] = (t + al) * keep;
+				data[c + latent] = l - al - latentdegradationRate * l;
+			}
+			siteShared[k] = false;
 		}
 		
 		//System.out.println("TGFB Activation");
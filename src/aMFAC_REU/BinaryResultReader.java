@@ -0,0 +1,335 @@
+/**
+ * Random access by tick to a results file written by BinaryResultSink
+ * Chunks are memory-mapped when read, so only the ticks that are asked for are paged in.
+ * A delta-encoded column is rebuilt from the stream's last keyframe, or from the last column
+ * read, so reading ticks in order costs one chunk per tick
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class BinaryResultReader {
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long size;
+
+	private final int version;
+	private final int bytesPerValue;
+	private final int gridWidth, gridHeight;
+	private final String[] names;
+	private final boolean[] trailingDelimiter;
+	private final int[] keyframeInterval;
+	private final String[] speciesNames;
+
+	//last column rebuilt for each stream
+	private final int[] cachedChunk;
+	private final double[][] cachedValues;
+
+	private double[] ticks;
+	private long[] offsets;
+	private int chunks;
+
+	public BinaryResultReader(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		size = channel.size();
+		try {
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (size < 24 || header.getInt() != BinaryResultSink.MAGIC) {
+				throw new IOException(file + " is not a results file");
+			}
+			version = header.getInt();
+			if (version < 1 || version > BinaryResultSink.VERSION) {
+				throw new IOException(file + " has unsupported version " + version);
+			}
+			bytesPerValue = header.getInt();
+			gridWidth = header.getInt();
+			gridHeight = header.getInt();
+			names = new String[header.getInt()];
+			trailingDelimiter = new boolean[names.length];
+			keyframeInterval = new int[names.length];
+			for (int s = 0; s < names.length; s++) {
+				names[s] = getName(header);
+				trailingDelimiter[s] = (header.get() & BinaryResultSink.FLAG_TRAILING_DELIMITER) != 0;
+				keyframeInterval[s] = version >= 2 ? header.getInt() : 0;
+			}
+			speciesNames = new String[header.getInt()];
+			for (int i = 0; i < speciesNames.length; i++) {
+				speciesNames[i] = getName(header);
+			}
+			if (!readIndex()) {
+				scanChunks(header.position());
+			}
+			cachedChunk = new int[names.length];
+			Arrays.fill(cachedChunk, -1);
+			cachedValues = new double[names.length][];
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	public int getTickCount() {
+		return chunks;
+	}
+
+	public double getTick(int chunk) {
+		return ticks[chunk];
+	}
+
+	/**
+	 * @return the chunk holding the given tick, or -1
+	 */
+	public int indexOf(double tick) {
+		int lo = 0, hi = chunks - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ticks[mid] < tick) {
+				lo = mid + 1;
+			} else if (ticks[mid] > tick) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	public String[] getStreamNames() {
+		return names.clone();
+	}
+
+	/**
+	 * @return the index of the named stream, or -1
+	 */
+	public int getStreamIndex(String name) {
+		for (int s = 0; s < names.length; s++) {
+			if (names[s].equals(name)) {
+				return s;
+			}
+		}
+		return -1;
+	}
+
+	public boolean hasTrailingDelimiter(int stream) {
+		return trailingDelimiter[stream];
+	}
+
+	public String[] getSpeciesNames() {
+		return speciesNames.clone();
+	}
+
+	public int getGridWidth() {
+		return gridWidth;
+	}
+
+	public int getGridHeight() {
+		return gridHeight;
+	}
+
+	/**
+	 * @return the keyframe interval of a delta-encoded stream, 0 if the stream stores full columns
+	 */
+	public int getKeyframeInterval(int stream) {
+		return keyframeInterval[stream];
+	}
+
+	public boolean isSinglePrecision() {
+		return bytesPerValue == 4;
+	}
+
+	/**
+	 * Reads every stream of one chunk
+	 * Streams that weren't written at this tick are null
+	 */
+	public TickSnapshot read(int chunk) throws IOException {
+		double[][] values = new double[names.length][];
+		for (int s = 0; s < names.length; s++) {
+			values[s] = read(chunk, s);
+		}
+		return new TickSnapshot(ticks[chunk], values);
+	}
+
+	/**
+	 * Reads one stream of one chunk without touching the other columns
+	 * @return the values, or null if the stream wasn't written at this tick
+	 */
+	public double[] read(int chunk, int stream) throws IOException {
+		if (cachedChunk[stream] == chunk) {
+			return cachedValues[stream].clone();
+		}
+
+		//walk back to a full column or to the cached one, remembering the deltas on the way
+		int[] deltas = new int[16];
+		int n = 0;
+		double[] values = null;
+		for (int c = chunk; c >= 0; c--) {
+			if (cachedChunk[stream] == c) {
+				values = cachedValues[stream].clone();
+				break;
+			}
+			Column col = column(c, stream);
+			if (col.kind == BinaryResultSink.KIND_ABSENT) {
+				if (c == chunk) {
+					return null;
+				}
+			} else if (col.kind == BinaryResultSink.KIND_FULL) {
+				values = getValues(col.data, col.count);
+				break;
+			} else {
+				if (n == deltas.length) {
+					deltas = Arrays.copyOf(deltas, 2*n);
+				}
+				deltas[n++] = c;
+			}
+		}
+		if (values == null) {
+			throw new IOException("delta for " + names[stream] + " at tick " + ticks[chunk] + " has no keyframe");
+		}
+
+		for (int d = n - 1; d >= 0; d--) {
+			Column col = column(deltas[d], stream);
+			ByteBuffer b = col.data;
+			if (b.getInt() != values.length) {
+				throw new IOException("delta for " + names[stream] + " at tick " + ticks[deltas[d]]
+						+ " doesn't match its keyframe");
+			}
+			int[] idx = new int[col.count];
+			for (int i = 0; i < col.count; i++) {
+				idx[i] = b.getInt();
+			}
+			for (int i = 0; i < col.count; i++) {
+				values[idx[i]] = bytesPerValue == 8 ? b.getDouble() : b.getFloat();
+			}
+		}
+
+		cachedChunk[stream] = chunk;
+		cachedValues[stream] = values.clone();
+		return values;
+	}
+
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	private MappedByteBuffer mapChunk(int chunk) throws IOException {
+		long offset = offsets[chunk];
+		ByteBuffer len = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(len, offset);
+		len.flip();
+		MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, offset + 4, len.getInt());
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		return b;
+	}
+
+	//kind, count and data of one stream in one chunk
+	private static class Column {
+		int kind;
+		int count;
+		ByteBuffer data;
+	}
+
+	private Column column(int chunk, int stream) throws IOException {
+		ByteBuffer b = mapChunk(chunk);
+		b.getDouble();
+		int data = 8 + (version >= 2 ? 8 : 4)*names.length;
+		Column col = new Column();
+		for (int s = 0; s <= stream; s++) {
+			col.kind = version >= 2 ? b.getInt() : BinaryResultSink.KIND_FULL;
+			col.count = b.getInt();
+			if (s < stream) {
+				data += dataBytes(col.kind, col.count);
+			}
+		}
+		b.position(data);
+		col.data = b;
+		return col;
+	}
+
+	private int dataBytes(int kind, int count) {
+		if (kind == BinaryResultSink.KIND_FULL) {
+			return bytesPerValue*count;
+		} else if (kind == BinaryResultSink.KIND_DELTA) {
+			return 4 + (4 + bytesPerValue)*count;
+		}
+		return 0;
+	}
+
+	private double[] getValues(ByteBuffer b, int count) {
+		double[] v = new double[count];
+		if (bytesPerValue == 8) {
+			b.asDoubleBuffer().get(v);
+			b.position(b.position() + 8*count);
+		} else {
+			for (int i = 0; i < count; i++) {
+				v[i] = b.getFloat();
+			}
+		}
+		return v;
+	}
+
+	private boolean readIndex() throws IOException {
+		if (size < BinaryResultSink.FOOTER_BYTES) {
+			return false;
+		}
+		ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - BinaryResultSink.FOOTER_BYTES,
+				BinaryResultSink.FOOTER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		long indexOffset = footer.getLong();
+		int count = footer.getInt();
+		if (footer.getInt() != BinaryResultSink.INDEX_MAGIC
+				|| indexOffset + 16L*count != size - BinaryResultSink.FOOTER_BYTES) {
+			return false;
+		}
+		ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, 16L*count)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		chunks = count;
+		ticks = new double[count];
+		offsets = new long[count];
+		for (int c = 0; c < count; c++) {
+			ticks[c] = index.getDouble();
+			offsets[c] = index.getLong();
+		}
+		return true;
+	}
+
+	//rebuilds the index of a file whose writer never closed it; a partly written last chunk is dropped
+	private void scanChunks(long offset) throws IOException {
+		ticks = new double[256];
+		offsets = new long[256];
+		chunks = 0;
+		ByteBuffer head = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+		while (offset + 12 <= size) {
+			head.clear();
+			channel.read(head, offset);
+			head.flip();
+			int length = head.getInt();
+			if (length < 8 || offset + 4 + length > size) {
+				break;
+			}
+			if (chunks == ticks.length) {
+				ticks = Arrays.copyOf(ticks, 2*chunks);
+				offsets = Arrays.copyOf(offsets, 2*chunks);
+			}
+			ticks[chunks] = head.getDouble();
+			offsets[chunks] = offset;
+			chunks++;
+			offset += 4 + length;
+		}
+	}
+
+	private static String getName(ByteBuffer b) {
+		byte[] bytes = new byte[b.getShort() & 0xFFFF];
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
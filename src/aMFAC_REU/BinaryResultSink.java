@@ -0,0 +1,387 @@
+/**
+ * Writes all output streams to one binary results file (results.amfr)
+ *
+ * Layout, little-endian:
+ * header: 'AMFR', version, bytes per value (8 or 4), grid width, grid height,
+ *         stream count, then per stream a name, a flags byte (bit 0: csv rows end with a delimiter)
+ *         and the keyframe interval (0: no delta encoding),
+ *         species count, then the species names. Names are a short length and UTF-8 bytes
+ * chunk:  one per tick. Byte length of the rest of the chunk, tick, kind and count of every stream,
+ *         then the data of each stream as one contiguous column:
+ *         absent (not written this tick): nothing
+ *         full: count values
+ *         delta: full length, count indices, count values. Entries not listed are unchanged
+ *         since the stream's previous chunk
+ * Version 1 files have no keyframe intervals and store only full columns, with a count per stream
+ * index:  written on close. Tick and file offset of every chunk, then the index offset,
+ *         the chunk count and 'AMFI'. A file without an index (crashed run) is still readable
+ * A resumed run cuts the file back to the end of the checkpoint's chunk and appends to it, with the
+ * index and delta state the sink had at the checkpoint
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class BinaryResultSink implements ResultSink {
+
+	static final int MAGIC = 0x52464D41; //"AMFR"
+	static final int INDEX_MAGIC = 0x49464D41; //"AMFI"
+	static final int VERSION = 2;
+	static final int FOOTER_BYTES = 16;
+	static final int FLAG_TRAILING_DELIMITER = 1;
+	static final int KIND_ABSENT = 0;
+	static final int KIND_FULL = 1;
+	static final int KIND_DELTA = 2;
+
+	private final File file;
+	private final int gridWidth, gridHeight;
+	private final String[] names;
+	private final boolean[] trailingDelimiter;
+	private final String[] speciesNames;
+	private final int[] keyframeInterval;
+	private final int bytesPerValue;
+
+	//what the reader will have for each stream after the last chunk
+	private final double[][] previous;
+	private final int[] sinceKeyframe;
+	private final int[] kinds, counts;
+	private int[][] changed;
+	private final AtomicLongArray written;
+
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+	private long position;
+
+	//index of the chunks written so far
+	private double[] ticks = new double[256];
+	private long[] offsets = new long[256];
+	private int chunks;
+
+	/**
+	 * @param file the results file; an existing file is replaced unless the sink is resumed
+	 * @param gridWidth grid width of the run
+	 * @param gridHeight grid height of the run
+	 * @param names name of every stream
+	 * @param trailingDelimiter whether each stream's csv rows end with a delimiter, kept for the exporter
+	 * @param keyframeInterval per stream, store changes with a full column every this many written ticks; 0 stores full columns
+	 * @param speciesNames network species names, may be empty
+	 * @param singlePrecision store values as float32 instead of float64
+	 */
+	public BinaryResultSink(File file, int gridWidth, int gridHeight, String[] names, boolean[] trailingDelimiter,
+			int[] keyframeInterval, String[] speciesNames, boolean singlePrecision) {
+		this.file = file;
+		this.gridWidth = gridWidth;
+		this.gridHeight = gridHeight;
+		this.names = names.clone();
+		this.trailingDelimiter = trailingDelimiter.clone();
+		this.keyframeInterval = keyframeInterval.clone();
+		this.speciesNames = speciesNames.clone();
+		bytesPerValue = singlePrecision ? 4 : 8;
+		previous = new double[names.length][];
+		sinceKeyframe = new int[names.length];
+		kinds = new int[names.length];
+		counts = new int[names.length];
+		changed = new int[names.length][];
+		written = new AtomicLongArray(names.length);
+	}
+
+	@Override
+	public void write(TickSnapshot snapshot) throws IOException {
+		if (channel == null) {
+			open();
+		}
+		int streams = names.length;
+		int length = 8 + 8*streams;
+		for (int s = 0; s < streams; s++) {
+			int bytes = encode(s, snapshot.getValues(s));
+			written.addAndGet(s, bytes);
+			length += bytes;
+		}
+		ensureBuffer(4 + length);
+
+		buffer.putInt(length);
+		buffer.putDouble(snapshot.getTick());
+		for (int s = 0; s < streams; s++) {
+			buffer.putInt(kinds[s]);
+			buffer.putInt(counts[s]);
+		}
+		for (int s = 0; s < streams; s++) {
+			double[] v = snapshot.getValues(s);
+			if (kinds[s] == KIND_FULL) {
+				putValues(v);
+			} else if (kinds[s] == KIND_DELTA) {
+				int[] idx = changed[s];
+				buffer.putInt(v.length);
+				for (int i = 0; i < counts[s]; i++) {
+					buffer.putInt(idx[i]);
+				}
+				for (int i = 0; i < counts[s]; i++) {
+					putValue(v[idx[i]]);
+				}
+			}
+			if (v != null) {
+				previous[s] = v;
+			}
+		}
+
+		if (chunks == ticks.length) {
+			ticks = Arrays.copyOf(ticks, 2*chunks);
+			offsets = Arrays.copyOf(offsets, 2*chunks);
+		}
+		ticks[chunks] = snapshot.getTick();
+		offsets[chunks] = position;
+		chunks++;
+		flushBuffer();
+	}
+
+	@Override
+	public long getBytesWritten(int stream) {
+		return written.get(stream);
+	}
+
+	//picks how stream s is stored this tick and returns the bytes its data takes
+	private int encode(int s, double[] v) {
+		if (v == null) {
+			kinds[s] = KIND_ABSENT;
+			counts[s] = 0;
+			return 0;
+		}
+		double[] prev = previous[s];
+		int full = bytesPerValue*v.length;
+		if (keyframeInterval[s] > 0 && prev != null && prev.length == v.length
+				&& sinceKeyframe[s] + 1 < keyframeInterval[s]) {
+			if (changed[s] == null || changed[s].length < v.length) {
+				changed[s] = new int[v.length];
+			}
+			int[] idx = changed[s];
+			int n = 0;
+			for (int i = 0; i < v.length; i++) {
+				if (!same(v[i], prev[i])) {
+					idx[n++] = i;
+				}
+			}
+			int delta = 4 + (4 + bytesPerValue)*n;
+			if (delta < full) {
+				kinds[s] = KIND_DELTA;
+				counts[s] = n;
+				sinceKeyframe[s]++;
+				return delta;
+			}
+		}
+		kinds[s] = KIND_FULL;
+		counts[s] = v.length;
+		sinceKeyframe[s] = 0;
+		return full;
+	}
+
+	//equal as stored, so the reader rebuilds exactly what a full column would hold
+	private boolean same(double a, double b) {
+		if (bytesPerValue == 8) {
+			return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+		}
+		return Float.floatToIntBits((float) a) == Float.floatToIntBits((float) b);
+	}
+
+	private void putValues(double[] v) {
+		if (bytesPerValue == 8) {
+			buffer.asDoubleBuffer().put(v);
+			buffer.position(buffer.position() + 8*v.length);
+		} else {
+			for (int i = 0; i < v.length; i++) {
+				buffer.putFloat((float) v[i]);
+			}
+		}
+	}
+
+	private void putValue(double v) {
+		if (bytesPerValue == 8) {
+			buffer.putDouble(v);
+		} else {
+			buffer.putFloat((float) v);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		//write empties the buffer after every chunk
+	}
+
+	@Override
+	public int stateBytes() {
+		int bytes = 4 + 8 + 4 + 16*chunks;
+		for (int s = 0; s < names.length; s++) {
+			bytes += 4 + 4 + 8 + (previous[s] != null ? 8*previous[s].length : 0);
+		}
+		return bytes;
+	}
+
+	//end of the last chunk (-1 if the file isn't open yet), the chunk index and each stream's delta state
+	@Override
+	public void saveState(ByteBuffer b) {
+		b.putInt(names.length);
+		b.putLong(channel != null ? position : -1);
+		b.putInt(chunks);
+		for (int c = 0; c < chunks; c++) {
+			b.putDouble(ticks[c]);
+			b.putLong(offsets[c]);
+		}
+		for (int s = 0; s < names.length; s++) {
+			b.putInt(sinceKeyframe[s]);
+			b.putLong(written.get(s));
+			double[] prev = previous[s];
+			b.putInt(prev != null ? prev.length : -1);
+			if (prev != null) {
+				for (int i = 0; i < prev.length; i++) {
+					b.putDouble(prev[i]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void resume(ByteBuffer b) throws IOException {
+		int n = b.getInt();
+		if (n != names.length) {
+			throw new IOException("checkpoint has " + n + " binary streams, the model has " + names.length);
+		}
+		long end = b.getLong();
+		chunks = b.getInt();
+		ticks = new double[Math.max(256, chunks)];
+		offsets = new long[ticks.length];
+		for (int c = 0; c < chunks; c++) {
+			ticks[c] = b.getDouble();
+			offsets[c] = b.getLong();
+		}
+		for (int s = 0; s < n; s++) {
+			sinceKeyframe[s] = b.getInt();
+			written.set(s, b.getLong());
+			int length = b.getInt();
+			previous[s] = length < 0 ? null : new double[length];
+			for (int i = 0; i < length; i++) {
+				previous[s][i] = b.getDouble();
+			}
+		}
+		if (end < 0) {
+			return;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		boolean ok = false;
+		try {
+			if (raf.length() < end) {
+				throw new IOException(file + " is shorter than when the checkpoint was written");
+			}
+			ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+			raf.getChannel().read(header, 0);
+			header.flip();
+			if (header.remaining() < 24 || header.getInt() != MAGIC || header.getInt() != VERSION
+					|| header.getInt() != bytesPerValue || header.getInt() != gridWidth
+					|| header.getInt() != gridHeight || header.getInt() != names.length) {
+				throw new IOException(file + " doesn't match the output of the resumed run");
+			}
+			raf.setLength(end);
+			channel = raf.getChannel();
+			channel.position(end);
+			position = end;
+			ok = true;
+		} finally {
+			if (!ok) {
+				raf.close();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		try {
+			long indexOffset = position;
+			for (int c = 0; c < chunks; c++) {
+				ensureBuffer(16);
+				buffer.putDouble(ticks[c]);
+				buffer.putLong(offsets[c]);
+			}
+			ensureBuffer(FOOTER_BYTES);
+			buffer.putLong(indexOffset);
+			buffer.putInt(chunks);
+			buffer.putInt(INDEX_MAGIC);
+			flushBuffer();
+		} finally {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "binary results " + file;
+	}
+
+	private void open() throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+		position = 0;
+		chunks = 0;
+		Arrays.fill(previous, null);
+
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(bytesPerValue);
+		buffer.putInt(gridWidth);
+		buffer.putInt(gridHeight);
+		buffer.putInt(names.length);
+		for (int s = 0; s < names.length; s++) {
+			putName(names[s]);
+			ensureBuffer(5);
+			buffer.put((byte) (trailingDelimiter[s] ? FLAG_TRAILING_DELIMITER : 0));
+			buffer.putInt(keyframeInterval[s]);
+		}
+		ensureBuffer(4);
+		buffer.putInt(speciesNames.length);
+		for (String name : speciesNames) {
+			putName(name);
+		}
+		flushBuffer();
+	}
+
+	private void putName(String name) throws IOException {
+		byte[] b = name.getBytes(StandardCharsets.UTF_8);
+		ensureBuffer(2 + b.length);
+		buffer.putShort((short) b.length);
+		buffer.put(b);
+	}
+
+	//makes room for n more bytes, writing out what is buffered first if needed
+	private void ensureBuffer(int n) throws IOException {
+		if (buffer.remaining() >= n) {
+			return;
+		}
+		flushBuffer();
+		if (buffer.capacity() < n) {
+			buffer = ByteBuffer.allocate(Integer.highestOneBit(n) << 1).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * Explicit Bogacki-Shampine (2,3) pair with adaptive steps
+ * Follows the step size control of MATLAB's ode23 so results match processCellBehavior.m
+ * One instance holds the scratch arrays for one thread
+ */
+package aMFAC_REU;
+
+public class BogackiShampineSolver implements CellIntegrator {
+
+	private static final double POW = 1.0 / 3.0;
+	private static final double E1 = -5.0 / 72.0;
+	private static final double E2 = 1.0 / 12.0;
+	private static final double E3 = 1.0 / 9.0;
+	private static final double E4 = -1.0 / 8.0;
+
+	private final SaucermanNetwork network;
+	private final int n;
+	private final double rtol;
+	private final double threshold;
+
+	private final double[] f1, f2, f3, f4;
+	private final double[] ytmp, ynew;
+	private final double[] stack;
+
+	private long steps;
+	private long rejected;
+	private long evaluations;
+
+	public BogackiShampineSolver(SaucermanNetwork network) {
+		this.network = network;
+		n = network.getSpeciesCount();
+		rtol = network.getRelTol();
+		threshold = network.getAbsTol() / rtol;
+		f1 = new double[n];
+		f2 = new double[n];
+		f3 = new double[n];
+		f4 = new double[n];
+		ytmp = new double[n];
+		ynew = new double[n];
+		stack = new double[network.getStackDepth() + 1];
+	}
+
+	/**
+	 * @return accepted steps since this solver was created
+	 */
+	@Override
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return rejected step attempts since this solver was created
+	 */
+	@Override
+	public long getRejectedSteps() {
+		return rejected;
+	}
+
+	/**
+	 * @return right hand side evaluations since this solver was created
+	 */
+	@Override
+	public long getEvaluations() {
+		return evaluations;
+	}
+
+	@Override
+	public boolean integrate(double[] y, int off, double[] w) {
+		return integrate(y, off, w, network.getStartTime(), network.getEndTime());
+	}
+
+	public boolean integrate(double[] y, int off, double[] w, double t0, double tfinal) {
+		double t = t0;
+		double tdir = Math.signum(tfinal - t0);
+		double hmax = 0.1 * Math.abs(tfinal - t0); //ode23 default MaxStep
+
+		evaluations++;
+		network.rhs(y, off, w, f1, 0, stack);
+
+		//initial step from y'(t0)
+		double absh = Math.min(hmax, Math.abs(tfinal - t0));
+		double rh = 0;
+		for (int i = 0; i < n; i++) {
+			rh = Math.max(rh, Math.abs(f1[i]) / Math.max(Math.abs(y[off + i]), threshold));
+		}
+		rh /= 0.8 * Math.pow(rtol, POW);
+		if (absh * rh > 1) {
+			absh = 1 / rh;
+		}
+		absh = Math.max(absh, 16 * Math.ulp(t));
+
+		boolean done = false;
+		while (!done) {
+			double hmin = 16 * Math.ulp(t);
+			absh = Math.min(hmax, Math.max(hmin, absh));
+			double h = tdir * absh;
+			if (1.1 * absh >= Math.abs(tfinal - t)) {
+				h = tfinal - t;
+				absh = Math.abs(h);
+				done = true;
+			}
+
+			boolean nofailed = true;
+			double err;
+			double tnew;
+			while (true) {
+				for (int i = 0; i < n; i++) {
+					ytmp[i] = y[off + i] + h * 0.5 * f1[i];
+				}
+				evaluations++;
+				network.rhs(ytmp, 0, w, f2, 0, stack);
+				for (int i = 0; i < n; i++) {
+					ytmp[i] = y[off + i] + h * 0.75 * f2[i];
+				}
+				evaluations++;
+				network.rhs(ytmp, 0, w, f3, 0, stack);
+
+				tnew = done ? tfinal : t + h;
+				h = tnew - t;
+				for (int i = 0; i < n; i++) {
+					ynew[i] = y[off + i] + (h * (2.0 / 9.0) * f1[i] + h * (1.0 / 3.0) * f2[i] + h * (4.0 / 9.0) * f3[i]);
+				}
+				evaluations++;
+				network.rhs(ynew, 0, w, f4, 0, stack);
+
+				err = 0;
+				for (int i = 0; i < n; i++) {
+					double e = f1[i] * E1 + f2[i] * E2 + f3[i] * E3 + f4[i] * E4;
+					double scale = Math.max(Math.max(Math.abs(y[off + i]), Math.abs(ynew[i])), threshold);
+					err = Math.max(err, Math.abs(e) / scale);
+				}
+				err *= absh;
+
+				if (err > rtol) {
+					rejected++;
+					if (absh <= hmin) {
+						return false;
+					}
+					if (nofailed) {
+						nofailed = false;
+						absh = Math.max(hmin, absh * Math.max(0.5, 0.8 * Math.pow(rtol / err, POW)));
+					} else {
+						absh = Math.max(hmin, 0.5 * absh);
+					}
+					h = tdir * absh;
+					done = false;
+				} else {
+					break;
+				}
+			}
+
+			if (!done && nofailed) {
+				double temp = 1.25 * Math.pow(err / rtol, POW);
+				if (temp > 0.2) {
+					absh = absh / temp;
+				} else {
+					absh = 5.0 * absh;
+				}
+			}
+
+			t = tnew;
+			steps++;
+			System.arraycopy(ynew, 0, y, off, n);
+			System.arraycopy(f4, 0, f1, 0, n); //FSAL
+		}
+		return true;
+	}
+}
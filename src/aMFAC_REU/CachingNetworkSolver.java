@@ -0,0 +1,247 @@
+/**
+ * Memoizes one-tick network results in front of another NetworkSolver
+ * A cell's key is its four input weights plus its network state, each rounded to a multiple
+ * of the tolerance (tolerance 0 compares exact values). Cells whose key is cached take the cached
+ * result; the remaining distinct keys are solved once each by the wrapped solver, so cells
+ * that share inputs and state in the same tick are also solved once.
+ * Lookups and inserts run in cell order on the calling thread, so results don't depend on threads.
+ * Lookups go through one reusable probe key and the misses of a tick are matched in a reusable
+ * open-addressing table, so a Key is only allocated for a result that goes into the cache
+ */
+package aMFAC_REU;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class CachingNetworkSolver implements NetworkSolver, SolverStatistics {
+
+	private final NetworkSolver solver;
+	private final int capacity;
+	private final double tolerance;
+	private final LinkedHashMap<Key, double[]> cache;
+
+	//cells to solve this tick, packed
+	private double[] missStates = new double[0];
+	private double[] missInputs = new double[0];
+	private int[] source = new int[0]; //for every cell, the miss it copies, or -1 for a hit
+
+	//keys of this tick's misses, and a hash table over them (-1 marks a free slot, and every slot is free between ticks)
+	private final Key probe = new Key();
+	private long[] missKeys = new long[0];
+	private int[] missHash = new int[0];
+	private int[] missSlot = new int[0];
+	private int[] table = new int[0];
+
+	private long lookups, hits, solved;
+	private long tickLookups, tickHits;
+
+	/**
+	 * @param solver the solver that does the work
+	 * @param capacity most results kept; least recently used ones are dropped first
+	 * @param tolerance rounding of inputs and states in the key, 0 for exact matches
+	 */
+	public CachingNetworkSolver(NetworkSolver solver, final int capacity, double tolerance) {
+		this.solver = solver;
+		this.capacity = capacity;
+		this.tolerance = tolerance;
+		cache = new LinkedHashMap<Key, double[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	@Override
+	public double[] loadInitialState() throws Exception {
+		return solver.loadInitialState();
+	}
+
+	@Override
+	public int solve(double[] states, int species, double[] inputs, int n) throws Exception {
+		int in = SaucermanNetwork.INPUT_COUNT;
+		if (source.length < n) {
+			source = new int[n];
+		}
+		int width = in + species;
+		if (missStates.length < n * species) {
+			missStates = new double[n * species];
+			missInputs = new double[n * in];
+			missKeys = new long[n * width];
+			missHash = new int[n];
+			missSlot = new int[n];
+		}
+		if (table.length < 2 * n) {
+			table = new int[Integer.highestOneBit(Math.max(2 * n - 1, 1)) << 1];
+			Arrays.fill(table, -1);
+		}
+		int mask = table.length - 1;
+
+		//look up every cell; new keys are numbered in the order they are first seen
+		int misses = 0;
+		tickHits = 0;
+		for (int i = 0; i < n; i++) {
+			probe.set(states, i * species, species, inputs, i * in, in, tolerance);
+			double[] result = cache.get(probe);
+			if (result != null) {
+				System.arraycopy(result, 0, states, i * species, species);
+				source[i] = -1;
+				tickHits++;
+				continue;
+			}
+			int slot = (probe.hash ^ (probe.hash >>> 16)) & mask;
+			int m;
+			while ((m = table[slot]) >= 0 && !(missHash[m] == probe.hash && probe.matches(missKeys, m * width))) {
+				slot = (slot + 1) & mask;
+			}
+			if (m < 0) {
+				m = misses;
+				table[slot] = m;
+				missSlot[m] = slot;
+				missHash[m] = probe.hash;
+				System.arraycopy(probe.q, 0, missKeys, m * width, width);
+				System.arraycopy(states, i * species, missStates, m * species, species);
+				System.arraycopy(inputs, i * in, missInputs, m * in, in);
+				misses++;
+			} else {
+				tickHits++;
+			}
+			source[i] = m;
+		}
+		for (int m = 0; m < misses; m++) {
+			table[missSlot[m]] = -1;
+		}
+		tickLookups = n;
+		lookups += n;
+		hits += tickHits;
+		solved += misses;
+
+		int failures = 0;
+		if (misses > 0) {
+			failures = solver.solve(missStates, species, missInputs, misses);
+			//which cells failed isn't known, so a batch with failures isn't cached
+			if (failures == 0 && capacity > 0) {
+				for (int m = 0; m < misses; m++) {
+					cache.put(new Key(Arrays.copyOfRange(missKeys, m * width, (m + 1) * width), missHash[m]),
+							Arrays.copyOfRange(missStates, m * species, (m + 1) * species));
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			if (source[i] >= 0) {
+				System.arraycopy(missStates, source[i] * species, states, i * species, species);
+			}
+		}
+		return failures;
+	}
+
+	@Override
+	public void close() {
+		solver.close();
+	}
+
+	@Override
+	public long getSteps() {
+		return solver instanceof SolverStatistics ? ((SolverStatistics) solver).getSteps() : 0;
+	}
+
+	@Override
+	public long getRejectedSteps() {
+		return solver instanceof SolverStatistics ? ((SolverStatistics) solver).getRejectedSteps() : 0;
+	}
+
+	@Override
+	public long getEvaluations() {
+		return solver instanceof SolverStatistics ? ((SolverStatistics) solver).getEvaluations() : 0;
+	}
+
+	public long getLookups() {
+		return lookups;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return cells actually integrated by the wrapped solver
+	 */
+	public long getSolved() {
+		return solved;
+	}
+
+	public double getHitRate() {
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public double getTickHitRate() {
+		return tickLookups == 0 ? 0 : (double) tickHits / tickLookups;
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	/**
+	 * Rounded inputs and state of one cell
+	 * The keys in the cache are never changed; only the probe is refilled with set
+	 */
+	private static final class Key {
+		private long[] q;
+		private int hash;
+
+		Key() {
+			q = new long[0];
+		}
+
+		Key(long[] q, int hash) {
+			this.q = q;
+			this.hash = hash;
+		}
+
+		void set(double[] states, int sOff, int species, double[] inputs, int iOff, int in, double tolerance) {
+			if (q.length != in + species) {
+				q = new long[in + species];
+			}
+			for (int k = 0; k < in; k++) {
+				q[k] = quantize(inputs[iOff + k], tolerance);
+			}
+			for (int k = 0; k < species; k++) {
+				q[in + k] = quantize(states[sOff + k], tolerance);
+			}
+			hash = Arrays.hashCode(q);
+		}
+
+		/**
+		 * @return true if keys[off..] holds the same values as this key
+		 */
+		boolean matches(long[] keys, int off) {
+			for (int k = 0; k < q.length; k++) {
+				if (keys[off + k] != q[k]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static long quantize(double v, double tolerance) {
+			if (tolerance > 0) {
+				return Math.round(v / tolerance);
+			}
+			return Double.doubleToLongBits(v == 0 ? 0.0 : v); //-0.0 and 0.0 are the same key
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key) o).hash == hash && Arrays.equals(((Key) o).q, q);
+		}
+	}
+}
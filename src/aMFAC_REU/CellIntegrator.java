@@ -0,0 +1,32 @@
+/**
+ * Integrates the network of one cell over one tick
+ * Implementations keep scratch arrays, so each thread needs its own instance
+ */
+package aMFAC_REU;
+
+public interface CellIntegrator extends SolverStatistics {
+
+	/**
+	 * Integrates one cell over the tspan of network.mat, replacing the state in place
+	 * @param y states of all cells
+	 * @param off offset of this cell's state in y
+	 * @param w row 1 of rpar for this cell
+	 * @return false if the step size fell below the minimum (the state is left at the last accepted step)
+	 */
+	boolean integrate(double[] y, int off, double[] w);
+
+	/**
+	 * @return accepted steps since the integrator was created
+	 */
+	long getSteps();
+
+	/**
+	 * @return rejected step attempts since the integrator was created
+	 */
+	long getRejectedSteps();
+
+	/**
+	 * @return right hand side evaluations since the integrator was created
+	 */
+	long getEvaluations();
+}
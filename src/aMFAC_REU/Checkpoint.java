@@ -0,0 +1,343 @@
+/**
+ * Binary snapshot of a running model: the tick, every layer of the chemokine field (collagen included),
+ * fibroblast positions, network states, quiescence state, the run's random generator and the state of
+ * the output (where every result file ends and what change-gated and delta-encoded streams compare against).
+ * AMFACSpace writes one every checkpointInterval ticks; HeadlessEngine resumes from one, cuts the result
+ * files back to the checkpoint's tick and continues bit-identically (a network cache with a tolerance > 0
+ * starts empty, so only exact caching keeps that guarantee, and ode23lockstep never gives it). warmStartFile seeds the network states of a
+ * new run from one.
+ *
+ * Little-endian, like results.amfr:
+ *   magic 'AMFC', version, tick, gridWidth, gridHeight, layers, species, cells, flags
+ *   layer names (length-prefixed UTF-8), field data, x and y of every cell, cell-major states,
+ *   then the serialized random generator (flag 1), the quiescence state (flag 2) and the
+ *   observable and output states (flag 4) if present
+ */
+package aMFAC_REU;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import cern.jet.random.engine.RandomEngine;
+
+public class Checkpoint {
+
+	public static final int MAGIC = 0x43464D41; //"AMFC" little-endian
+	public static final int VERSION = 2;
+	private static final int FLAG_RANDOM = 1;
+	private static final int FLAG_QUIESCENCE = 2;
+	private static final int FLAG_OUTPUT = 4;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private double tick;
+	private int gridWidth, gridHeight, species, cells;
+	private String[] layerNames;
+	private double[] field;
+	private int[] positions; //x, y per cell
+	private double[] states;
+	private byte[] random;
+	private byte[] quiescence;
+	private byte[] observables;
+	private byte[] output;
+
+	/**
+	 * Writes the state of space at the current tick. The file is replaced only once it is complete
+	 */
+	public static void write(File file, AMFACSpace space) throws IOException {
+		ChemokineField f = space.getChemokineField();
+		NetworkStateStore store = space.getNetworkStates();
+		int n = store.size();
+		int species = store.getSpeciesCount();
+		ModelRun run = ModelRun.getCurrent();
+		QuiescenceTracker q = space.getQuiescence();
+
+		byte[] random = null;
+		if (run != null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(run.getRandomEngine());
+			out.close();
+			random = bytes.toByteArray();
+		}
+		byte[] quiescence = null;
+		if (q != null) {
+			ByteBuffer b = ByteBuffer.allocate(q.stateBytes(n)).order(ByteOrder.LITTLE_ENDIAN);
+			q.saveState(b, n);
+			quiescence = b.array();
+		}
+		//waits for the writer, so the files end exactly after this tick
+		byte[] observables = null, output = null;
+		if (space.getOutput() != null) {
+			ObservableRegistry o = space.getObservables();
+			ByteBuffer b = ByteBuffer.allocate(o.stateBytes()).order(ByteOrder.LITTLE_ENDIAN);
+			o.saveState(b);
+			observables = b.array();
+			output = space.getOutput().saveState();
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileChannel ch = new FileOutputStream(tmp).getChannel();
+		try {
+			ByteBuffer b = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(MAGIC);
+			b.putInt(VERSION);
+			b.putDouble(ModelRun.getTickCount());
+			b.putInt(f.getWidth());
+			b.putInt(f.getHeight());
+			b.putInt(f.getLayerCount());
+			b.putInt(species);
+			b.putInt(n);
+			b.putInt((random != null ? FLAG_RANDOM : 0) | (quiescence != null ? FLAG_QUIESCENCE : 0)
+					| (output != null ? FLAG_OUTPUT : 0));
+			for (int l = 0; l < f.getLayerCount(); l++) {
+				putBytes(ch, b, f.getName(l).getBytes(StandardCharsets.UTF_8));
+			}
+			putDoubles(ch, b, f.getData(), f.getData().length);
+			for (int i = 0; i < n; i++) {
+				room(ch, b, 8);
+				b.putInt(store.getOwner(i).getPoint().getX());
+				b.putInt(store.getOwner(i).getPoint().getY());
+			}
+			double[] state = new double[species];
+			for (int i = 0; i < n; i++) {
+				store.copyOut(i, state);
+				putDoubles(ch, b, state, species);
+			}
+			if (random != null) {
+				putBytes(ch, b, random);
+			}
+			if (quiescence != null) {
+				putBytes(ch, b, quiescence);
+			}
+			if (output != null) {
+				putBytes(ch, b, observables);
+				putBytes(ch, b, output);
+			}
+			b.flip();
+			while (b.hasRemaining()) {
+				ch.write(b);
+			}
+			ch.force(false);
+		} finally {
+			ch.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public static Checkpoint read(File file) throws IOException {
+		Checkpoint c = new Checkpoint();
+		FileChannel ch = new FileInputStream(file).getChannel();
+		try {
+			ByteBuffer b = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			b.limit(0);
+			need(ch, b, 44, file);
+			if (b.getInt() != MAGIC) {
+				throw new IOException(file + " is not a checkpoint");
+			}
+			int version = b.getInt();
+			if (version != VERSION) {
+				throw new IOException(file + " has unsupported checkpoint version " + version);
+			}
+			c.tick = b.getDouble();
+			c.gridWidth = b.getInt();
+			c.gridHeight = b.getInt();
+			int layers = b.getInt();
+			c.species = b.getInt();
+			c.cells = b.getInt();
+			int flags = b.getInt();
+			c.layerNames = new String[layers];
+			for (int l = 0; l < layers; l++) {
+				c.layerNames[l] = new String(getBytes(ch, b, file), StandardCharsets.UTF_8);
+			}
+			c.field = getDoubles(ch, b, c.gridWidth * c.gridHeight * layers, file);
+			c.positions = new int[2 * c.cells];
+			for (int i = 0; i < c.positions.length; i++) {
+				need(ch, b, 4, file);
+				c.positions[i] = b.getInt();
+			}
+			c.states = getDoubles(ch, b, c.cells * c.species, file);
+			if ((flags & FLAG_RANDOM) != 0) {
+				c.random = getBytes(ch, b, file);
+			}
+			if ((flags & FLAG_QUIESCENCE) != 0) {
+				c.quiescence = getBytes(ch, b, file);
+			}
+			if ((flags & FLAG_OUTPUT) != 0) {
+				c.observables = getBytes(ch, b, file);
+				c.output = getBytes(ch, b, file);
+			}
+		} finally {
+			ch.close();
+		}
+		return c;
+	}
+
+	/**
+	 * Puts the field, network states and quiescence state back into a space whose fibroblasts
+	 * already sit at the saved positions (see AMFACSpace.initializeFibroblasts)
+	 */
+	public void restore(AMFACSpace space) throws IOException {
+		ChemokineField f = space.getChemokineField();
+		NetworkStateStore store = space.getNetworkStates();
+		if (f.getWidth() != gridWidth || f.getHeight() != gridHeight) {
+			throw new IOException("checkpoint grid is " + gridWidth + "x" + gridHeight + ", model grid is "
+					+ f.getWidth() + "x" + f.getHeight());
+		}
+		if (store.getSpeciesCount() != species || store.size() != cells) {
+			throw new IOException("checkpoint has " + cells + " cells of " + species + " species, model has "
+					+ store.size() + " of " + store.getSpeciesCount());
+		}
+		//layers are matched by name so the field may gain or reorder layers
+		double[] data = f.getData();
+		int fl = f.getLayerCount();
+		for (int l = 0; l < layerNames.length; l++) {
+			int to = f.indexOf(layerNames[l]);
+			if (to < 0) {
+				System.out.println("Warning: checkpoint layer " + layerNames[l] + " is not in the model");
+				continue;
+			}
+			for (int k = 0; k < gridWidth * gridHeight; k++) {
+				data[k * fl + to] = field[k * layerNames.length + l];
+			}
+		}
+		store.copyIn(0, cells, states);
+		QuiescenceTracker q = space.getQuiescence();
+		if (q != null && quiescence != null) {
+			q.restoreState(ByteBuffer.wrap(quiescence).order(ByteOrder.LITTLE_ENDIAN), cells);
+		}
+	}
+
+	/**
+	 * Cuts the result files back to where they ended at the checkpoint and restores what the next
+	 * written tick is compared against. Called before output starts
+	 */
+	public void restoreOutput(ObservableRegistry observables, OutputPipeline pipeline) throws IOException {
+		if (output == null) {
+			System.out.println("Warning: checkpoint has no output state, results are appended to the files as they are");
+			return;
+		}
+		observables.restoreState(ByteBuffer.wrap(this.observables).order(ByteOrder.LITTLE_ENDIAN));
+		pipeline.resume(output);
+	}
+
+	/**
+	 * @return the saved random generator, or null if the checkpoint was written under Repast
+	 */
+	public RandomEngine getRandomEngine() throws IOException {
+		if (random == null) {
+			return null;
+		}
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(random));
+		try {
+			return (RandomEngine) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	public double getTick() {
+		return tick;
+	}
+
+	public int getCellCount() {
+		return cells;
+	}
+
+	public int getSpeciesCount() {
+		return species;
+	}
+
+	public int getX(int cell) {
+		return positions[2 * cell];
+	}
+
+	public int getY(int cell) {
+		return positions[2 * cell + 1];
+	}
+
+	/**
+	 * Copies the network state of a saved cell into dst
+	 */
+	public void copyState(int cell, double[] dst) {
+		System.arraycopy(states, cell * species, dst, 0, species);
+	}
+
+	private static void room(FileChannel ch, ByteBuffer b, int bytes) throws IOException {
+		if (b.remaining() < bytes) {
+			b.flip();
+			while (b.hasRemaining()) {
+				ch.write(b);
+			}
+			b.clear();
+		}
+	}
+
+	private static void putDoubles(FileChannel ch, ByteBuffer b, double[] values, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			room(ch, b, 8);
+			b.putDouble(values[i]);
+		}
+	}
+
+	private static void putBytes(FileChannel ch, ByteBuffer b, byte[] bytes) throws IOException {
+		room(ch, b, 4);
+		b.putInt(bytes.length);
+		for (int i = 0; i < bytes.length;) {
+			room(ch, b, 1);
+			int len = Math.min(b.remaining(), bytes.length - i);
+			b.put(bytes, i, len);
+			i += len;
+		}
+	}
+
+	/**
+	 * Makes sure b holds at least bytes unread bytes
+	 */
+	private static void need(FileChannel ch, ByteBuffer b, int bytes, File file) throws IOException {
+		if (b.remaining() >= bytes) {
+			return;
+		}
+		b.compact();
+		while (b.position() < bytes) {
+			if (ch.read(b) < 0) {
+				throw new IOException(file + " is truncated");
+			}
+		}
+		b.flip();
+	}
+
+	private static double[] getDoubles(FileChannel ch, ByteBuffer b, int count, File file) throws IOException {
+		double[] values = new double[count];
+		for (int i = 0; i < count; i++) {
+			need(ch, b, 8, file);
+			values[i] = b.getDouble();
+		}
+		return values;
+	}
+
+	private static byte[] getBytes(FileChannel ch, ByteBuffer b, File file) throws IOException {
+		need(ch, b, 4, file);
+		byte[] bytes = new byte[b.getInt()];
+		for (int i = 0; i < bytes.length;) {
+			need(ch, b, 1, file);
+			int len = Math.min(b.remaining(), bytes.length - i);
+			b.get(bytes, i, len);
+			i += len;
+		}
+		return bytes;
+	}
+}
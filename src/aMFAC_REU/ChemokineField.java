@@ -0,0 +1,86 @@
+/**
+ * All chemokine layers and collagen of the grid in one interleaved array
+ * The layers of one grid point sit next to each other, so a cell reads all its inputs
+ * from one place: the value of layer l at (x,y) is getData()[offset(x,y) + l].
+ * Repast displays and styles see each layer through a FieldValueLayer
+ */
+package aMFAC_REU;
+
+import java.util.Arrays;
+
+public class ChemokineField {
+
+	private final int width, height;
+	private final String[] names;
+	private final double[] data;
+	private final FieldValueLayer[] layers;
+
+	/**
+	 * @param width grid width (x)
+	 * @param height grid height (y)
+	 * @param names name of every layer
+	 * @param initial starting value of every layer
+	 */
+	public ChemokineField(int width, int height, String[] names, double[] initial) {
+		this.width = width;
+		this.height = height;
+		this.names = names.clone();
+		data = new double[width * height * names.length];
+		for (int k = 0; k < data.length; k += names.length) {
+			System.arraycopy(initial, 0, data, k, names.length);
+		}
+		layers = new FieldValueLayer[names.length];
+		for (int l = 0; l < names.length; l++) {
+			layers[l] = new FieldValueLayer(this, l);
+		}
+	}
+
+	/**
+	 * @return index of the first layer of grid point (x,y) in getData()
+	 */
+	public int offset(int x, int y) {
+		return (y * width + x) * names.length;
+	}
+
+	public double get(int layer, int x, int y) {
+		return data[(y * width + x) * names.length + layer];
+	}
+
+	public void set(int layer, int x, int y, double value) {
+		data[(y * width + x) * names.length + layer] = value;
+	}
+
+	/**
+	 * The backing array, for loops that read or update many points
+	 */
+	public double[] getData() {
+		return data;
+	}
+
+	public int getLayerCount() {
+		return names.length;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public String getName(int layer) {
+		return names[layer];
+	}
+
+	/**
+	 * @return the index of the named layer, or -1
+	 */
+	public int indexOf(String name) {
+		return Arrays.asList(names).indexOf(name);
+	}
+
+	public FieldValueLayer getLayer(int layer) {
+		return layers[layer];
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * Writes each output stream to its own csv file in the results folder, one row per tick
+ * Files are opened once in append mode and kept open for the whole run.
+ * A resumed run first cuts each file back to its length at the checkpoint, so ticks written after
+ * the checkpoint aren't written twice.
+ * Streams that skip ticks (see ObservableRegistry.getSampled) start each row with its tick,
+ * so their rows can still be matched to ticks and to the other streams
+ */
+package aMFAC_REU;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class CsvResultSink implements ResultSink {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final File folder;
+	private final String[] names;
+	private final boolean[] trailingDelimiter;
+	private final boolean singlePrecision;
+	private final boolean[] tickColumn;
+	private final Writer[] writers;
+	private final AtomicLongArray written;
+
+	/**
+	 * @param folder results folder
+	 * @param names file name (without .csv) of every stream
+	 * @param trailingDelimiter whether each stream ends its rows with a delimiter (all but collagen.csv do)
+	 */
+	public CsvResultSink(File folder, String[] names, boolean[] trailingDelimiter) {
+		this(folder, names, trailingDelimiter, false);
+	}
+
+	/**
+	 * @param singlePrecision format values as floats (for results that were stored as float32)
+	 */
+	public CsvResultSink(File folder, String[] names, boolean[] trailingDelimiter, boolean singlePrecision) {
+		this(folder, names, trailingDelimiter, singlePrecision, new boolean[names.length]);
+	}
+
+	/**
+	 * @param tickColumn whether each stream starts its rows with the tick
+	 */
+	public CsvResultSink(File folder, String[] names, boolean[] trailingDelimiter, boolean singlePrecision,
+			boolean[] tickColumn) {
+		this.folder = folder;
+		this.names = names.clone();
+		this.trailingDelimiter = trailingDelimiter.clone();
+		this.singlePrecision = singlePrecision;
+		this.tickColumn = tickColumn.clone();
+		writers = new Writer[names.length];
+		written = new AtomicLongArray(names.length);
+	}
+
+	@Override
+	public void write(TickSnapshot snapshot) throws IOException {
+		for (int s = 0; s < names.length; s++) {
+			try {
+				write(s, snapshot);
+			} catch (IOException e) {
+				throw new IOException("Can't write " + file(s), e);
+			}
+		}
+	}
+
+	//one row of stream s
+	private void write(int s, TickSnapshot snapshot) throws IOException {
+		Writer w = writers[s];
+		if (w == null) {
+			folder.mkdirs();
+			w = new BufferedWriter(new FileWriter(file(s), true), BUFFER_SIZE);
+			writers[s] = w;
+		}
+		double[] values = snapshot.getValues(s);
+		if (values == null) {
+			return;
+		}
+		long chars = 1;
+		if (tickColumn[s]) {
+			double tick = snapshot.getTick();
+			String t = tick == Math.rint(tick) ? Long.toString((long) tick) : Double.toString(tick);
+			w.write(t);
+			w.write(',');
+			chars += t.length() + 1;
+		}
+		for (int i = 0; i < values.length; i++) {
+			String v = singlePrecision ? Float.toString((float) values[i]) : Double.toString(values[i]);
+			w.write(v);
+			chars += v.length();
+			if (trailingDelimiter[s] || i + 1 < values.length) {
+				w.write(',');
+				chars++;
+			}
+		}
+		w.write('\n');
+		written.addAndGet(s, chars);
+	}
+
+	@Override
+	public long getBytesWritten(int stream) {
+		return written.get(stream);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		for (int s = 0; s < writers.length; s++) {
+			if (writers[s] != null) {
+				writers[s].flush();
+			}
+		}
+	}
+
+	@Override
+	public int stateBytes() {
+		return 4 + 16*names.length;
+	}
+
+	//length of every file (-1 if not opened yet) and the characters counted so far
+	@Override
+	public void saveState(ByteBuffer b) throws IOException {
+		flush();
+		b.putInt(names.length);
+		for (int s = 0; s < names.length; s++) {
+			b.putLong(writers[s] != null ? file(s).length() : -1);
+			b.putLong(written.get(s));
+		}
+	}
+
+	@Override
+	public void resume(ByteBuffer b) throws IOException {
+		int n = b.getInt();
+		if (n != names.length) {
+			throw new IOException("checkpoint has " + n + " csv streams, the model has " + names.length);
+		}
+		for (int s = 0; s < n; s++) {
+			long length = b.getLong();
+			written.set(s, b.getLong());
+			if (length < 0) {
+				continue;
+			}
+			File f = file(s);
+			if (f.length() < length) {
+				throw new IOException(f + " is shorter than when the checkpoint was written");
+			}
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "csv results in " + folder;
+	}
+
+	private File file(int stream) {
+		return new File(folder, names[stream] + ".csv");
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException first = null;
+		for (int s = 0; s < writers.length; s++) {
+			if (writers[s] != null) {
+				try {
+					writers[s].close();
+				} catch (IOException e) {
+					if (first == null) {
+						first = e;
+					}
+				}
+				writers[s] = null;
+			}
+		}
+		if (first != null) {
+			throw first;
+		}
+	}
+}
@@ -1,19 +1,12 @@
 package aMFAC_REU;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 
-import repast.simphony.engine.environment.RunEnvironment;
 import repast.simphony.engine.schedule.ScheduledMethod;
 import repast.simphony.parameter.Parameters;
-import repast.simphony.query.space.grid.GridCell;
-import repast.simphony.query.space.grid.GridCellNgh;
-import repast.simphony.random.RandomHelper;
 import repast.simphony.space.grid.Grid;
 import repast.simphony.space.grid.GridPoint;
-import repast.simphony.valueLayer.GridValueLayer;
 
 
 /**
@@ -26,35 +19,32 @@ public class Fibroblast {
 	Grid grid;
 
 	
-	private double[] networkState;
+	private NetworkStateStore states; //network states live in the space's store
+	private int stateIdx; //this cell's slot in the store
 	
-	private Parameters p = RunEnvironment.getInstance().getParameters();
-	private boolean movement = (Boolean) p.getValue("Fibroblast_move"); //whether fibroblasts should move or not
+	private boolean movement; //whether fibroblasts should move or not
 	
 	//These 11 layers are the 11 inputs to the Saucerman network model
 	//you will find identical variables at the top of AMFACSpace
-	private String[] inputLayerNames = {"TGFB", "Interleukin6", "Interleukin1",
+	//constants are static so a million fibroblasts don't carry a million copies
+	static final String[] INPUT_LAYER_NAMES = {"TGFB", "Interleukin6", "Interleukin1",
 			"TNFalpha"};
-	private int[] inputNetworkIndices = {19,38,41,43};
-	private ArrayList<GridValueLayer> inputLayers = new ArrayList<GridValueLayer>();
-	private int tnfIdx = 4; //used for migration up tnf gradient
+	private static final int[] INPUT_NETWORK_INDICES = {19,38,41,43};
+	private int[] inputFieldIdxs; //where each input sits in the chemokine field, shared by all fibroblasts of the space
+	private ChemokineField field;
+	private static final int TNF_IDX = 4; //used for migration up tnf gradient
 	
 	
 	//network inputs that stay constant
 	//note that they only start at constant, if there is feedback, these inputs may grow
-	private int[] constantIdxs = {0,31,11,25,6,27,13};
-	private double[] constantVals = {0.25,0.25,0.25,0.25,0.25,0.25,0.25};
+	private static final int[] CONSTANT_IDXS = {0,31,11,25,6,27,13};
+	private static final double[] CONSTANT_VALS = {0.25,0.25,0.25,0.25,0.25,0.25,0.25};
 
 
-	private GridValueLayer collagen; //collagen layer
-	private GridValueLayer TGFB;
-	private GridValueLayer LatentTGFB;
-	private GridValueLayer IL6;
-	private GridValueLayer IL1;
-	private GridValueLayer TNFalpha;
+	private int collagenIdx; //collagen layer in the chemokine field
 	
-	private double kgen = 1; //area fraction/hr
-	private double kdeg = 1; //area fraction/hr		
+	private static final double KGEN = 1; //area fraction/hr
+	private static final double KDEG = 1; //area fraction/hr		
 	
 	private GridPoint pt;
 	
@@ -72,11 +62,17 @@ public class Fibroblast {
 		grid = (Grid) space.getProjection("grid");
 		
 
-		//set the network state to 0 just like the y0 in the model
-		networkState = new double[91];
+		//reserve a zeroed slot for the network state just like the y0 in the model
+		states = space.getNetworkStates();
+		stateIdx = states.allocate(this);
 		
 		
-		collagen = (GridValueLayer) space.getValueLayer("collagen");
+		field = space.getChemokineField();
+		collagenIdx = field.indexOf("collagen");
+		inputFieldIdxs = space.getFibroblastInputIdxs();
+		
+		Parameters p = ModelRun.getParameters();
+		movement = (Boolean) p.getValue("Fibroblast_move");
 
 		
 		cellsPerGrid = cells;
@@ -90,19 +86,29 @@ public class Fibroblast {
 	
 	@ScheduledMethod(start = 1, interval = 1, priority = 1)
 	public void goThird(){
+		TickMetrics metrics = space.getMetrics();
+		long start = metrics != null ? System.nanoTime() : 0;
 		//live();
 		updateCollagen();
 		
 		if (movement == true){
 			move();
 		}
+		if (metrics != null) {
+			metrics.add(TickMetrics.GO_THIRD, start);
+		}
 		//System.out.println("Third");
 
 	}
 	
 	@ScheduledMethod(start = 1, interval = 1, priority = 3)
 	public void goFirst(){
+		TickMetrics metrics = space.getMetrics();
+		long start = metrics != null ? System.nanoTime() : 0;
 		getCellNetwork();
+		if (metrics != null) {
+			metrics.add(TickMetrics.GO_FIRST, start);
+		}
 		//System.out.println("First");
 	}
 	
@@ -110,13 +116,8 @@ public class Fibroblast {
 	public void initialize() {
 		pt = grid.getLocation(this);
 		
-		for (int i = 0; i<inputLayerNames.length; i++) {
-			inputLayers.add((GridValueLayer) space.getValueLayer(inputLayerNames[i]));
-		}
-		
-		
-		for (int i = 0; i < constantIdxs.length; i++) {
-			networkState[constantIdxs[i]] = constantVals[i];
+		for (int i = 0; i < CONSTANT_IDXS.length; i++) {
+			states.set(stateIdx, CONSTANT_IDXS[i], CONSTANT_VALS[i]);
 		}
 		
 		int x = pt.getX();
@@ -135,28 +136,44 @@ public class Fibroblast {
 	
 	/**
 	 * getter method for the current network state
-	 * Used by the Space while processing network simulations
+	 * Returns a copy; solvers and output read the NetworkStateStore directly
 	 * @return network
 	 */
 	public double[] getNetworkState() {
-		return networkState;
+		double[] n = new double[states.getSpeciesCount()];
+		states.copyOut(stateIdx, n);
+		return n;
 	}
 	
 	/**
 	 * Setter method for the network state
-	 * Used by the Space while processing network simulations
+	 * Copies n into this cell's slot of the NetworkStateStore
 	 * @return true if the network was the same size as the original network (network was successfully updated)
 	 * 			false if the old and new networks are different lengths (network not set successfully)
 	 */
 	public boolean setNetworkState(double[] n) {
-		if (n.length != networkState.length) {
+		if (n.length != states.getSpeciesCount()) {
 			return false;
 		} else {
-			networkState = n;
+			states.copyIn(stateIdx, n);
 			return true;
 		}
 	}
 	
+	/**
+	 * @return this cell's slot in the space's NetworkStateStore
+	 */
+	public int getStateIndex() {
+		return stateIdx;
+	}
+	
+	/**
+	 * Called by the NetworkStateStore when it moves this cell to another slot
+	 */
+	void setStateIndex(int idx) {
+		stateIdx = idx;
+	}
+	
 	/**
 	 * Updates the cell's network based on local cytokine values
 	 * Does not reset the "constant" inputs back to 0.25
@@ -169,10 +186,11 @@ public class Fibroblast {
 		int y = pt.getY();
 			
 		
-			GridValueLayer layer; //for each layer
-			for (int i = 0; i<inputLayerNames.length; i++) {
-				layer = inputLayers.get(i);
-				networkState[inputNetworkIndices[i]] = layer.get(pt.getX(),pt.getY());
+			//the inputs of one grid point are next to each other in the field
+			double[] values = field.getData();
+			int c = field.offset(x, y);
+			for (int i = 0; i<INPUT_LAYER_NAMES.length; i++) {
+				states.set(stateIdx, INPUT_NETWORK_INDICES[i], values[c + inputFieldIdxs[i]]);
 			}
 		
 		//System.out.println("Get Cell Network");
@@ -202,14 +220,15 @@ public class Fibroblast {
 
 		double mitosisTime = (minMitRate - maxMitRate) * (1 - networkState[69]) + maxMitRate;
 
-		double choice = RandomHelper.nextDoubleFromTo(0, 1);
+		double choice = ModelRun.nextDoubleFromTo(0, 1);
 
 		if (choice < mitosisTime) {
 			
-			List<GridPoint> empty = this.findEmptySites();
-			if (!empty.isEmpty()) {
-				pt = empty.get(0);
-				space.addFibroblast(pt, this.networkState);
+			//random open site of the neighbourhood, this one included
+			OccupancyIndex occupancy = space.getOccupancy();
+			int site = occupancy.pickOpenSite(pt.getX(), pt.getY(), cellsPerGrid);
+			if (site >= 0) {
+				space.addFibroblast(new GridPoint(occupancy.getX(site), occupancy.getY(site)), this.networkState);
 			}
 			
 		} else if (choice < mitosisTime + apopProb) { // apoptose
@@ -229,18 +248,18 @@ public class Fibroblast {
 		int y = pt.getY();
 			
 		
-			collagen = (GridValueLayer) space.getValueLayer("collagen");
-		
-			double currentCollagen = collagen.get(pt.getX(), pt.getY());
+			double[] values = field.getData();
+			int c = field.offset(x, y) + collagenIdx;
+			double currentCollagen = values[c];
 			
-			double depLevel = (networkState[87] + networkState[88])/2; //average of CmRNAs
-			double degLevel = (networkState[81] + networkState[82] + networkState[83])/3; //average of MMP1, 2, and 9
+			double depLevel = (states.get(stateIdx, 87) + states.get(stateIdx, 88))/2; //average of CmRNAs
+			double degLevel = (states.get(stateIdx, 81) + states.get(stateIdx, 82) + states.get(stateIdx, 83))/3; //average of MMP1, 2, and 9
 
 			double dcdt = depLevel - (degLevel*currentCollagen);
 			
 			//System.out.println(depLevel);
 			
-			collagen.set(dcdt, x, y);
+			values[c] = dcdt;
 		}
 		catch  (Exception e) {
 			System.out.println(e);
@@ -265,10 +284,13 @@ public class Fibroblast {
 		int x = pt.getX();
 		int y = pt.getY();
 		
-		List<GridPoint> emptySites = findEmptySites();
-		GridPoint destination;
-		destination = emptySites.get(0);
-		grid.moveTo(this, destination.getX(), destination.getY());
+		//random open site of the neighbourhood, the current one included; stay if all are full
+		OccupancyIndex occupancy = space.getOccupancy();
+		int site = occupancy.pickOpenSite(x, y, cellsPerGrid);
+		if (site >= 0) {
+			occupancy.moveTo(this, occupancy.getX(site), occupancy.getY(site));
+			pt = grid.getLocation(this);
+		}
 		
 /*		TNFalpha = (GridValueLayer) space.getValueLayer("TNFalpha");
 		double maxTNFalpha = 0;
@@ -297,7 +319,7 @@ public class Fibroblast {
 			if (speed > 1) { 
 				System.out.println("Warning: Calculated Fibroblast speed > 1");
 			}
-			double mv = RandomHelper.nextDoubleFromTo(0, 1);
+			double mv = ModelRun.nextDoubleFromTo(0, 1);
 			if (mv < speed) {
 				double pctThreshold = 0.1; //gradient percentage threshold needed to indicate a strong gradient
 				
@@ -339,28 +361,6 @@ public class Fibroblast {
 
 	
 
-	/**
-	 * Finds the cells in the adjacent Moore neighborhood that have less than 36 cells
-	 * @return list of grid points that have less than 36 cells
-	 */
-	private List<GridPoint> findEmptySites() {
-		List<GridPoint> emptySites = new ArrayList<GridPoint>();
-		try {
-
-			GridCellNgh<Fibroblast> nghCreator = new GridCellNgh<Fibroblast>(grid, pt, Fibroblast.class, 1, 1);
-			List<GridCell<Fibroblast>> gridCells = nghCreator.getNeighborhood(true);
-			for (GridCell<Fibroblast> cell : gridCells) {
-				if (cell.size() < cellsPerGrid)
-					emptySites.add(cell.getPoint());
-			}
-
-			Collections.shuffle(emptySites);
-		} catch (NullPointerException e) {
-		}
-		return emptySites;
-	}
-
-	
 	/**
 	 * Chooses a direction by giving each direction a probability proportional to its gradient value
 	 * @param possibleDestinations list of gridpoints that have a 10% gradient
@@ -378,7 +378,7 @@ public class Fibroblast {
 		}
 		
 		GridPoint pt = null;
-		double c = RandomHelper.nextDoubleFromTo(0, probIntervals[probIntervals.length - 1]);
+		double c = ModelRun.nextDoubleFromTo(0, probIntervals[probIntervals.length - 1]);
 		for (int i = 0; i < probIntervals.length; i++) {
 			if (c <= probIntervals[i]) { //the first cumulative probability that the random number is less than
 				pt =  possibleDestinations.get(i);
@@ -0,0 +1,155 @@
+/**
+ * Explicit diffusion and decay of grid fields stored in primitive arrays
+ * The value at (x,y) is data[offset + (y*width + x)*stride], so the same code serves plain
+ * per-layer arrays (stride 1) and fields that interleave several layers.
+ * Each substep reads the old values and writes a scratch buffer, then copies it back,
+ * so the result doesn't depend on the update order or on the number of threads.
+ * Edges reflect like BouncyBorders: nothing flows out of the grid
+ */
+package aMFAC_REU;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class FieldDiffuser {
+
+	//rows per leaf task
+	private static final int GRAIN = 16;
+
+	private final int width, height;
+	private final boolean ninePoint;
+	private final int substeps;
+	private final ForkJoinPool pool;
+	private final double[] scratch;
+
+	/**
+	 * @param width grid width (x)
+	 * @param height grid height (y)
+	 * @param ninePoint use the isotropic 9-point stencil instead of the 5-point one
+	 * @param substeps diffusion substeps per call of diffuse
+	 * @param threads worker threads; 0 or less uses every available core, 1 runs on the calling thread
+	 */
+	public FieldDiffuser(int width, int height, boolean ninePoint, int substeps, int threads) {
+		this.width = width;
+		this.height = height;
+		this.ninePoint = ninePoint;
+		this.substeps = Math.max(1, substeps);
+		int t = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		pool = t > 1 ? new ForkJoinPool(t) : null;
+		scratch = new double[width * height];
+	}
+
+	/**
+	 * Largest coefficient per substep for which the explicit update stays stable
+	 */
+	public static double maxStableCoefficient(boolean ninePoint) {
+		return ninePoint ? 0.375 : 0.25;
+	}
+
+	public int getSubsteps() {
+		return substeps;
+	}
+
+	/**
+	 * Advances one field by one tick
+	 * @param coefficient diffusion coefficient per tick in grid units (split over the substeps)
+	 * @param decay fraction of the field lost per tick
+	 */
+	public void diffuse(double[] data, int offset, int stride, double coefficient, double decay) {
+		double c = coefficient / substeps;
+		double keep = Math.pow(1 - decay, 1.0 / substeps);
+		for (int s = 0; s < substeps; s++) {
+			run(new Band(data, offset, stride, c, keep, true, 0, height));
+			run(new Band(data, offset, stride, c, keep, false, 0, height));
+		}
+	}
+
+	/**
+	 * Stops the worker threads
+	 */
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	private void run(Band band) {
+		if (pool == null || height <= GRAIN) {
+			band.compute();
+		} else {
+			pool.invoke(band);
+		}
+	}
+
+	//stencil for rows [from, to): data to scratch, or the copy back
+	private void stencil(double[] d, int off, int stride, double c, double keep, int from, int to) {
+		int w = width;
+		int rowStride = w * stride;
+		for (int y = from; y < to; y++) {
+			int row = off + y * rowStride;
+			int up = y == 0 ? row : row - rowStride;
+			int down = y == height - 1 ? row : row + rowStride;
+			for (int x = 0; x < w; x++) {
+				int i = x * stride;
+				int l = x == 0 ? i : i - stride;
+				int r = x == w - 1 ? i : i + stride;
+				double u = d[row + i];
+				double lap;
+				if (ninePoint) {
+					double orth = d[row + l] + d[row + r] + d[up + i] + d[down + i];
+					double diag = d[up + l] + d[up + r] + d[down + l] + d[down + r];
+					lap = (4 * orth + diag - 20 * u) / 6;
+				} else {
+					lap = d[row + l] + d[row + r] + d[up + i] + d[down + i] - 4 * u;
+				}
+				scratch[y * w + x] = (u + c * lap) * keep;
+			}
+		}
+	}
+
+	private void copyBack(double[] d, int off, int stride, int from, int to) {
+		if (stride == 1) {
+			System.arraycopy(scratch, from * width, d, off + from * width, (to - from) * width);
+			return;
+		}
+		for (int k = from * width; k < to * width; k++) {
+			d[off + k * stride] = scratch[k];
+		}
+	}
+
+	private class Band extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final double[] data;
+		private final int offset, stride;
+		private final double c, keep;
+		private final boolean forward;
+		private final int from, to;
+
+		Band(double[] data, int offset, int stride, double c, double keep, boolean forward, int from, int to) {
+			this.data = data;
+			this.offset = offset;
+			this.stride = stride;
+			this.c = c;
+			this.keep = keep;
+			this.forward = forward;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (pool == null || to - from <= GRAIN) {
+				if (forward) {
+					stencil(data, offset, stride, c, keep, from, to);
+				} else {
+					copyBack(data, offset, stride, from, to);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Band(data, offset, stride, c, keep, forward, from, mid),
+						new Band(data, offset, stride, c, keep, forward, mid, to));
+			}
+		}
+	}
+}
@@ -0,0 +1,377 @@
+/**
+ * Helpers for spatial maps that are read from files and put on the grid
+ * Resampling is separable: along each axis a map that shrinks averages the source cells each grid
+ * point covers (weighted by overlap), and a map that grows is interpolated linearly between
+ * source cell centres. A map of the grid's own size is copied unchanged.
+ *
+ * load reads a map by its extension:
+ *   .csv .txt   comma separated rows (row = y), parsed in parallel blocks of lines
+ *   .f32 .f64   raw little-endian float32 / float64, row by row, memory-mapped and resampled
+ *               straight from the mapping; give the size as file.f32:WIDTHxHEIGHT unless it is square
+ *   otherwise   an image ImageIO can read, as luminance from 0 to 1
+ */
+package aMFAC_REU;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import javax.imageio.ImageIO;
+
+public class FieldMaps {
+
+	//rows per leaf task, and bytes of csv per parse task
+	private static final int GRAIN = 64;
+	private static final int CSV_BLOCK = 1 << 20;
+
+	private FieldMaps() {
+	}
+
+	/**
+	 * Reads a map file and resamples it to the grid
+	 * @param spec file name, for raw files optionally followed by :WIDTHxHEIGHT
+	 * @return width*height values, row by row
+	 */
+	public static float[] load(String spec, int width, int height) throws IOException {
+		String name = spec;
+		int sw = 0, sh = 0;
+		int colon = spec.lastIndexOf(':');
+		if (colon > 1 && spec.substring(colon + 1).matches("\\s*\\d+\\s*x\\s*\\d+\\s*")) {
+			String[] wh = spec.substring(colon + 1).trim().split("\\s*x\\s*");
+			sw = Integer.parseInt(wh[0]);
+			sh = Integer.parseInt(wh[1]);
+			name = spec.substring(0, colon).trim();
+		}
+		File file = new File(name);
+		if (!file.isFile()) {
+			throw new IOException(file + " not found");
+		}
+		String lower = name.toLowerCase();
+		if (lower.endsWith(".csv") || lower.endsWith(".txt")) {
+			double[][] rows = readCsv(file);
+			return resample(rows, width, height);
+		} else if (lower.endsWith(".f32") || lower.endsWith(".f64")) {
+			return loadRaw(file, lower.endsWith(".f32") ? 4 : 8, sw, sh, width, height);
+		}
+		return loadImage(file, width, height);
+	}
+
+	private static float[] loadRaw(File file, int bytesPerValue, int sw, int sh, int width, int height)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long count = raf.length() / bytesPerValue;
+			if (sw == 0) {
+				sw = sh = (int) Math.round(Math.sqrt(count));
+			}
+			if ((long) sw * sh != count) {
+				throw new IOException(file + " holds " + count + " values, not " + sw + "x" + sh
+						+ " (give the size as " + file.getName() + ":WIDTHxHEIGHT)");
+			}
+			if (raf.length() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is larger than 2 GB");
+			}
+			MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			b.order(ByteOrder.LITTLE_ENDIAN);
+			final FloatBuffer f = bytesPerValue == 4 ? b.asFloatBuffer() : null;
+			final DoubleBuffer d = bytesPerValue == 8 ? b.asDoubleBuffer() : null;
+			Source src = f != null ? new Source() {
+				@Override
+				double get(int i) {
+					return f.get(i);
+				}
+			} : new Source() {
+				@Override
+				double get(int i) {
+					return d.get(i);
+				}
+			};
+			return resample(src, sw, sh, width, height);
+		} finally {
+			raf.close(); //the mapping stays valid
+		}
+	}
+
+	private static float[] loadImage(File file, int width, int height) throws IOException {
+		final BufferedImage img = ImageIO.read(file);
+		if (img == null) {
+			throw new IOException(file + " is not a csv, raw or image file");
+		}
+		final int sw = img.getWidth();
+		int sh = img.getHeight();
+		final double[] lum = new double[sw * sh];
+		forRows(sh, new RowRange() {
+			@Override
+			void run(int from, int to) {
+				int[] rgb = new int[sw];
+				for (int y = from; y < to; y++) {
+					img.getRGB(0, y, sw, 1, rgb, 0, sw);
+					for (int x = 0; x < sw; x++) {
+						int p = rgb[x];
+						lum[y * sw + x] = (0.299 * ((p >> 16) & 0xff) + 0.587 * ((p >> 8) & 0xff) + 0.114 * (p & 0xff)) / 255;
+					}
+				}
+			}
+		});
+		return resample(lum, sw, sh, width, height);
+	}
+
+	/**
+	 * Parses a csv of numbers, blocks of lines in parallel
+	 * @return the rows, in file order
+	 */
+	public static double[][] readCsv(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final MappedByteBuffer b;
+		try {
+			if (raf.length() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is larger than 2 GB");
+			}
+			b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		//blocks end after a newline, so no line is split
+		final List<int[]> blocks = new ArrayList<int[]>();
+		int len = b.limit();
+		int start = 0;
+		while (start < len) {
+			int end = Math.min(start + CSV_BLOCK, len);
+			while (end < len && b.get(end - 1) != '\n') {
+				end++;
+			}
+			blocks.add(new int[] {start, end});
+			start = end;
+		}
+		List<double[]> rows = ForkJoinPool.commonPool().invoke(new CsvBlocks(b, blocks, 0, blocks.size()));
+		if (rows.isEmpty()) {
+			throw new IOException(file + " has no values");
+		}
+		return rows.toArray(new double[rows.size()][]);
+	}
+
+	private static class CsvBlocks extends RecursiveTask<List<double[]>> {
+		private static final long serialVersionUID = 1L;
+
+		private final MappedByteBuffer buf;
+		private final List<int[]> blocks;
+		private final int from, to;
+
+		CsvBlocks(MappedByteBuffer buf, List<int[]> blocks, int from, int to) {
+			this.buf = buf;
+			this.blocks = blocks;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected List<double[]> compute() {
+			if (to - from == 1) {
+				return parse(blocks.get(from)[0], blocks.get(from)[1]);
+			}
+			int mid = (from + to) >>> 1;
+			CsvBlocks left = new CsvBlocks(buf, blocks, from, mid);
+			left.fork();
+			List<double[]> right = new CsvBlocks(buf, blocks, mid, to).compute();
+			List<double[]> rows = left.join();
+			rows.addAll(right);
+			return rows;
+		}
+
+		private List<double[]> parse(int start, int end) {
+			byte[] bytes = new byte[end - start];
+			ByteBuffer block = buf.duplicate();
+			block.position(start);
+			block.get(bytes);
+			List<double[]> rows = new ArrayList<double[]>();
+			String text = new String(bytes, StandardCharsets.US_ASCII);
+			for (String line : text.split("\r?\n")) {
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				String[] parts = line.split(",");
+				double[] row = new double[parts.length];
+				for (int i = 0; i < parts.length; i++) {
+					row[i] = Double.parseDouble(parts[i].trim());
+				}
+				rows.add(row);
+			}
+			return rows;
+		}
+	}
+
+	/**
+	 * @param rows source rows (row = y), all of the same length
+	 * @return width*height values, row by row
+	 */
+	public static float[] resample(double[][] rows, int width, int height) {
+		int sh = rows.length;
+		int sw = rows[0].length;
+		double[] src = new double[sw * sh];
+		for (int y = 0; y < sh; y++) {
+			if (rows[y].length != sw) {
+				throw new IllegalArgumentException("Map rows have different lengths: " + sw + " and " + rows[y].length);
+			}
+			System.arraycopy(rows[y], 0, src, y * sw, sw);
+		}
+		return resample(src, sw, sh, width, height);
+	}
+
+	/**
+	 * @param src sw*sh values, row by row
+	 * @return width*height values, row by row
+	 */
+	public static float[] resample(final double[] src, int sw, int sh, int width, int height) {
+		return resample(new Source() {
+			@Override
+			double get(int i) {
+				return src[i];
+			}
+		}, sw, sh, width, height);
+	}
+
+	private static float[] resample(final Source src, final int sw, int sh, final int width, final int height) {
+		final Kernel kx = new Kernel(sw, width);
+		final Kernel ky = new Kernel(sh, height);
+		//along x first, then along y, each pass split over rows / columns
+		final double[] tmp = new double[width * sh];
+		forRows(sh, new RowRange() {
+			@Override
+			void run(int from, int to) {
+				for (int y = from; y < to; y++) {
+					kx.apply(src, y * sw, 1, tmp, y * width, 1);
+				}
+			}
+		});
+		final float[] out = new float[width * height];
+		forRows(width, new RowRange() {
+			@Override
+			void run(int from, int to) {
+				double[] col = new double[height];
+				Source t = new Source() {
+					@Override
+					double get(int i) {
+						return tmp[i];
+					}
+				};
+				for (int x = from; x < to; x++) {
+					ky.apply(t, x, width, col, 0, 1);
+					for (int y = 0; y < height; y++) {
+						out[y * width + x] = (float) col[y];
+					}
+				}
+			}
+		});
+		return out;
+	}
+
+	//values of a map, from an array or a mapped file
+	abstract static class Source {
+		abstract double get(int i);
+	}
+
+	abstract static class RowRange {
+		abstract void run(int from, int to);
+	}
+
+	//runs range over [0, n) on the common pool, GRAIN rows per task
+	private static void forRows(final int n, final RowRange range) {
+		if (n <= GRAIN) {
+			range.run(0, n);
+			return;
+		}
+		ForkJoinPool.commonPool().invoke(new Rows(range, 0, n));
+	}
+
+	private static class Rows extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final RowRange range;
+		private final int from, to;
+
+		Rows(RowRange range, int from, int to) {
+			this.range = range;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= GRAIN) {
+				range.run(from, to);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Rows(range, from, mid), new Rows(range, mid, to));
+			}
+		}
+	}
+
+	//source indices and weights of every destination index along one axis
+	static class Kernel {
+		private final int[] first, count;
+		private final double[] weights;
+		private final int stride; //weights per destination index
+
+		Kernel(int srcLen, int dstLen) {
+			double scale = (double) srcLen / dstLen;
+			stride = scale > 1 ? (int) Math.ceil(scale) + 1 : 2;
+			first = new int[dstLen];
+			count = new int[dstLen];
+			weights = new double[dstLen * stride];
+			for (int i = 0; i < dstLen; i++) {
+				if (srcLen == dstLen) {
+					first[i] = i;
+					count[i] = 1;
+					weights[i * stride] = 1;
+				} else if (scale > 1) {
+					//box: overlap of [i*scale, (i+1)*scale) with every source cell
+					double lo = i * scale;
+					double hi = Math.min((i + 1) * scale, srcLen);
+					int a = (int) Math.floor(lo);
+					int b = Math.min((int) Math.ceil(hi), srcLen);
+					first[i] = a;
+					count[i] = b - a;
+					for (int k = a; k < b; k++) {
+						double overlap = Math.min(hi, k + 1) - Math.max(lo, k);
+						weights[i * stride + k - a] = overlap / (hi - lo);
+					}
+				} else {
+					//linear between the two nearest source centres, clamped at the edges
+					double p = Math.min(Math.max((i + 0.5) * scale - 0.5, 0), srcLen - 1);
+					int a = Math.min((int) Math.floor(p), srcLen - 1);
+					double f = p - a;
+					first[i] = a;
+					count[i] = a + 1 < srcLen ? 2 : 1;
+					weights[i * stride] = count[i] == 2 ? 1 - f : 1;
+					weights[i * stride + 1] = count[i] == 2 ? f : 0;
+				}
+			}
+		}
+
+		void apply(Source src, int srcOff, int srcStride, double[] dst, int dstOff, int dstStride) {
+			for (int i = 0; i < first.length; i++) {
+				double sum = 0;
+				int w = i * stride;
+				int s = srcOff + first[i] * srcStride;
+				for (int k = 0; k < count[i]; k++) {
+					sum += weights[w + k] * src.get(s + k * srcStride);
+				}
+				dst[dstOff + i * dstStride] = sum;
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * One layer of a ChemokineField seen as a Repast ValueLayer
+ * Lets displays, ChemokineStyle and CollagenStyle work on the packed field.
+ * get and set take the same arguments as GridValueLayer
+ */
+package aMFAC_REU;
+
+import repast.simphony.space.Dimensions;
+import repast.simphony.valueLayer.ValueLayer;
+
+public class FieldValueLayer implements ValueLayer {
+
+	private final ChemokineField field;
+	private final int layer;
+	private final Dimensions dimensions;
+
+	FieldValueLayer(ChemokineField field, int layer) {
+		this.field = field;
+		this.layer = layer;
+		dimensions = new Dimensions(field.getWidth(), field.getHeight());
+	}
+
+	@Override
+	public String getName() {
+		return field.getName(layer);
+	}
+
+	@Override
+	public Dimensions getDimensions() {
+		return dimensions;
+	}
+
+	@Override
+	public double get(double... coordinates) {
+		return field.get(layer, (int) coordinates[0], (int) coordinates[1]);
+	}
+
+	/**
+	 * Same as get(double...) without the varargs array
+	 */
+	public double get(int x, int y) {
+		return field.get(layer, x, y);
+	}
+
+	public void set(double value, int... coordinates) {
+		field.set(layer, coordinates[0], coordinates[1], value);
+	}
+
+	public ChemokineField getField() {
+		return field;
+	}
+
+	/**
+	 * @return this layer's index in the field
+	 */
+	public int getIndex() {
+		return layer;
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Regression check of the output layout on grids that aren't square
+ * Runs tick 0 headless on each grid with two observables that read the layers, one per site and one
+ * per cell, and compares the first csv row of each with the field: site y*gridWidth + x must hold the
+ * value at (x, y), and the cells must come row by row in the order of their sites.
+ * IL-6 starts out varying with x and TGFB with y, so a swapped axis shows up in either direction.
+ * Exits with 1 if any value is out of place.
+ *
+ * usage: GridOrderCheck [width height ...]
+ * (run from the model folder like HeadlessEngine; the default grids are 12x9 and 9x12)
+ */
+package aMFAC_REU;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import repast.simphony.parameter.Parameters;
+import repast.simphony.space.grid.GridPoint;
+
+public class GridOrderCheck {
+
+	private static final String SITE = "Interleukin6 + 2*TGFB";
+
+	public static void main(String[] args) {
+		if (args.length % 2 != 0) {
+			System.out.println("usage: GridOrderCheck [width height ...]");
+			System.exit(2);
+		}
+		int[] grids = {12, 9, 9, 12};
+		if (args.length > 0) {
+			grids = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				grids[i] = Integer.parseInt(args[i]);
+			}
+		}
+		try {
+			int failed = 0;
+			for (int i = 0; i < grids.length; i += 2) {
+				if (!check(grids[i], grids[i + 1])) {
+					failed++;
+				}
+			}
+			System.out.println(failed == 0 ? "All " + grids.length / 2 + " grids are written row by row"
+					: failed + " of " + grids.length / 2 + " grids are written out of order");
+			System.exit(failed == 0 ? 0 : 1);
+		} catch (IOException e) {
+			System.out.println(e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs tick 0 on a width x height grid in a temporary folder and compares its output with the field
+	 * @return true if every site and cell value is where it belongs
+	 */
+	public static boolean check(int width, int height) throws IOException {
+		File folder = Files.createTempDirectory("amfac-gridorder").toFile();
+		File observables = new File(folder, "observables.txt");
+		Writer w = new FileWriter(observables);
+		try {
+			w.write("site = " + SITE + "\n");
+			w.write("cell = " + SITE + " + 0*s[0]\n");
+		} finally {
+			w.close();
+		}
+
+		Map<String, String> overrides = new LinkedHashMap<String, String>();
+		overrides.put("gridWidth", Integer.toString(width));
+		overrides.put("gridHeight", Integer.toString(height));
+		overrides.put("initialFibroblastCount", Integer.toString(Math.max(1, width*height/4)));
+		overrides.put("endTick", "0");
+		overrides.put("outputFormat", "csv");
+		overrides.put("observablesFile", observables.getPath());
+		Parameters p = ModelParameters.load(ModelParameters.DEFAULT_FILE).create(overrides);
+		ModelRun run = new ModelRun(p, 1, folder, null, null);
+		HeadlessEngine engine = new HeadlessEngine(run);
+
+		double[] sites = new double[width*height];
+		int[] cellSites;
+		ModelRun previous = ModelRun.getCurrent();
+		ModelRun.setCurrent(run);
+		try {
+			engine.start();
+			ChemokineField field = engine.getSpace().getChemokineField();
+			int il6 = field.indexOf("Interleukin6");
+			int tgfb = field.indexOf("TGFB");
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					sites[y*width + x] = field.get(il6, x, y) + 2*field.get(tgfb, x, y);
+				}
+			}
+			List<Fibroblast> fibroblasts = engine.getSpace().getFibroblasts();
+			cellSites = new int[fibroblasts.size()];
+			for (int i = 0; i < cellSites.length; i++) {
+				GridPoint pt = fibroblasts.get(i).getPoint();
+				cellSites[i] = pt.getY()*width + pt.getX();
+			}
+			Arrays.sort(cellSites);
+			engine.finish();
+		} finally {
+			ModelRun.setCurrent(previous);
+		}
+
+		String grid = width + "x" + height + " grid";
+		double[] siteRow, cellRow;
+		try {
+			siteRow = firstRow(new File(folder, "site.csv"));
+			cellRow = firstRow(new File(folder, "cell.csv"));
+		} finally {
+			for (File f : folder.listFiles()) {
+				f.delete();
+			}
+			folder.delete();
+		}
+		if (siteRow.length != sites.length || cellRow.length != cellSites.length) {
+			System.out.println(grid + ": " + siteRow.length + " site and " + cellRow.length + " cell values, expected "
+					+ sites.length + " and " + cellSites.length + " FAILED");
+			return false;
+		}
+		for (int k = 0; k < sites.length; k++) {
+			if (siteRow[k] != sites[k]) {
+				System.out.println(grid + ": site " + k + " (" + k % width + ", " + k / width + ") holds " + siteRow[k]
+						+ ", expected " + sites[k] + " FAILED");
+				return false;
+			}
+		}
+		for (int k = 0; k < cellSites.length; k++) {
+			if (cellRow[k] != sites[cellSites[k]]) {
+				System.out.println(grid + ": cell " + k + " holds " + cellRow[k] + ", expected " + sites[cellSites[k]]
+						+ " from site " + cellSites[k] + " FAILED");
+				return false;
+			}
+		}
+		System.out.println(grid + ": " + sites.length + " sites and " + cellSites.length + " cells in row order");
+		return true;
+	}
+
+	private static double[] firstRow(File csv) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(csv));
+		try {
+			String line = br.readLine();
+			if (line == null) {
+				throw new IOException(csv + " is empty");
+			}
+			String[] parts = line.split(",");
+			double[] row = new double[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				row[i] = Double.parseDouble(parts[i].trim());
+			}
+			return row;
+		} finally {
+			br.close();
+		}
+	}
+}
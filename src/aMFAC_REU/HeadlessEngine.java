@@ -0,0 +1,194 @@
+/**
+ * Runs the model without the Repast runtime or scheduler
+ * Every tick calls the scheduled methods directly, in the order their priorities give under Repast:
+ * AMFACSpace.applyInputs (5), AMFACSpace.diffuseLayers (4), Fibroblast.goFirst (3), AMFACSpace.goSecond (2), Fibroblast.goThird (1)
+ * and AMFACSpace.goLast (0). Tick 0 runs AMFACSpace.initialize and then Fibroblast.initialize.
+ * Repast runs the fibroblasts' actions of one priority in random order; only goThird depends on that
+ * order (when fibroblasts move), so it is shuffled with the run's generator and the other phases loop
+ * over the fibroblasts in slot order.
+ *
+ * With --resume the run continues from a checkpoint (see Checkpoint) with the same parameters it was written with.
+ *
+ * usage: HeadlessEngine [--resume checkpoint.amfc] [name=value ...]
+ * (parameters not given keep their parameters.xml defaults)
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cern.jet.random.engine.RandomEngine;
+import repast.simphony.parameter.Parameters;
+
+public class HeadlessEngine {
+
+	private final ModelRun run;
+	private final int endTick;
+	private final boolean movement;
+	private AMFACSpace space;
+	private Fibroblast[] order = new Fibroblast[0];
+
+	public static void main(String[] args) {
+		try {
+			long start = System.currentTimeMillis();
+			Map<String, String> overrides = new LinkedHashMap<String, String>();
+			Checkpoint resume = null;
+			for (int i = 0; i < args.length; i++) {
+				int eq = args[i].indexOf('=');
+				if (args[i].equals("--resume") && i + 1 < args.length) {
+					resume = Checkpoint.read(new File(args[++i]));
+				} else if (eq > 0) {
+					overrides.put(args[i].substring(0, eq).trim(), args[i].substring(eq + 1).trim());
+				} else {
+					System.out.println("usage: HeadlessEngine [--resume checkpoint.amfc] [name=value ...]");
+					System.exit(2);
+				}
+			}
+			Parameters p = ModelParameters.load(ModelParameters.DEFAULT_FILE).create(overrides);
+			Object seed = p.getValue("randomSeed");
+			int s = seed != null ? (Integer) seed : (int) System.currentTimeMillis();
+			System.out.println("Random seed " + s);
+
+			ModelRun run = new ModelRun(p, s, new File("Results"), null, null);
+			run.setResume(resume);
+			HeadlessEngine engine = new HeadlessEngine(run);
+			engine.run();
+			System.out.println("Finished " + engine.endTick + " ticks in " + (System.currentTimeMillis() - start) / 1000.0
+					+ " s");
+		} catch (IOException e) {
+			System.out.println(e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @param run parameters, seed and results folder of the run
+	 */
+	public HeadlessEngine(ModelRun run) {
+		this.run = run;
+		Parameters p = run.getRunParameters();
+		endTick = (Integer) p.getValue("endTick");
+		movement = (Boolean) p.getValue("Fibroblast_move");
+	}
+
+	/**
+	 * Runs ticks 0 to endTick and finishes, on the calling thread
+	 */
+	public void run() {
+		ModelRun previous = ModelRun.getCurrent();
+		ModelRun.setCurrent(run);
+		try {
+			start();
+			while (run.getTick() < endTick) {
+				step();
+			}
+			finish();
+		} finally {
+			ModelRun.setCurrent(previous);
+		}
+	}
+
+	/**
+	 * Tick 0: builds and initializes the space and its fibroblasts.
+	 * start, step and finish must be called on a thread where the run is current (ModelRun.setCurrent)
+	 */
+	public void start() {
+		run.setTick(0);
+		space = new AMFACSpace();
+		space.initialize();
+		Fibroblast[] cells = snapshot();
+		int n = space.getFibroblasts().size();
+		for (int i = 0; i < n; i++) {
+			cells[i].initialize();
+		}
+		
+		//put back the saved state over the fresh one, after Fibroblast.initialize reset the constant inputs
+		Checkpoint resume = ModelRun.getResume();
+		if (resume != null) {
+			try {
+				resume.restore(space);
+				RandomEngine engine = resume.getRandomEngine();
+				if (engine != null) {
+					run.setRandomEngine(engine);
+				} else {
+					System.out.println("Warning: checkpoint has no random generator, the resumed run will differ");
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't resume: " + e.getMessage(), e);
+			}
+			run.setTick(resume.getTick());
+			System.out.println("Resumed at tick " + resume.getTick());
+		}
+	}
+
+	/**
+	 * Runs the next tick
+	 */
+	public void step() {
+		run.setTick(run.getTick() + 1);
+		space.applyInputs();
+		space.diffuseLayers();
+
+		Fibroblast[] cells = snapshot();
+		int n = space.getFibroblasts().size();
+		for (int i = 0; i < n; i++) {
+			cells[i].goFirst();
+		}
+		space.goSecond();
+
+		n = space.getFibroblasts().size();
+		cells = snapshot();
+		if (movement) {
+			shuffle(cells, n);
+		}
+		for (int i = 0; i < n; i++) {
+			cells[i].goThird();
+		}
+		space.goLast();
+	}
+
+	/**
+	 * Writes the remaining output and releases the solvers
+	 */
+	public void finish() {
+		space.finish();
+	}
+
+	public AMFACSpace getSpace() {
+		return space;
+	}
+
+	public ModelRun getRun() {
+		return run;
+	}
+
+	public int getEndTick() {
+		return endTick;
+	}
+
+	/**
+	 * Copies the fibroblasts so phases can add or remove cells while looping
+	 */
+	private Fibroblast[] snapshot() {
+		List<Fibroblast> list = space.getFibroblasts();
+		if (order.length < list.size()) {
+			order = new Fibroblast[list.size() * 2];
+		}
+		for (int i = 0; i < list.size(); i++) {
+			order[i] = list.get(i);
+		}
+		return order;
+	}
+
+	private static void shuffle(Fibroblast[] cells, int n) {
+		for (int i = n - 1; i > 0; i--) {
+			int j = ModelRun.nextIntFromTo(0, i);
+			Fibroblast t = cells[i];
+			cells[i] = cells[j];
+			cells[j] = t;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Spatial map of an input schedule, resampled to the grid and kept in a memory-mapped cache file
+ * The csv holds one frame as rows of comma separated values (row = y, column = x); a blank line
+ * starts the next frame. It is parsed once into <file>.<width>x<height>.amfs next to the csv, and
+ * later runs map that file directly until the csv changes. Frames are only read when their tick comes.
+ * The cache is written under a unique temporary name and moved into place in one step, so runs of a sweep
+ * that build it at the same time never see a half-written cache.
+ *
+ * Cache layout, little-endian: magic 'AMFS', version, width, height, frames, then float32 values
+ * frame by frame, row by row
+ */
+package aMFAC_REU;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+class InputMap {
+
+	static final int MAGIC = 0x53464D41; //"AMFS"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 20;
+
+	private final int width, height, frames;
+	private final FloatBuffer values;
+
+	private InputMap(int width, int height, int frames, FloatBuffer values) {
+		this.width = width;
+		this.height = height;
+		this.frames = frames;
+		this.values = values;
+	}
+
+	/**
+	 * Maps the cache of csv for a width x height grid, building it first if it is missing or older than csv
+	 */
+	static InputMap open(File csv, int width, int height) throws IOException {
+		if (!csv.exists()) {
+			throw new IOException(csv + " not found");
+		}
+		File cache = new File(csv.getPath() + "." + width + "x" + height + ".amfs");
+		//runs in this JVM build it once; other processes may still build it too, see build
+		synchronized (InputMap.class) {
+			if (!cache.exists() || cache.lastModified() < csv.lastModified()) {
+				build(csv, cache, width, height);
+			}
+		}
+		RandomAccessFile raf = new RandomAccessFile(cache, "r");
+		try {
+			MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			b.order(ByteOrder.LITTLE_ENDIAN);
+			if (b.getInt(0) != MAGIC || b.getInt(4) != VERSION || b.getInt(8) != width || b.getInt(12) != height) {
+				throw new IOException(cache + " is not a map cache for a " + width + "x" + height + " grid, delete it");
+			}
+			int frames = b.getInt(16);
+			b.position(HEADER_BYTES);
+			return new InputMap(width, height, frames, b.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer());
+		} finally {
+			raf.close(); //the mapping stays valid
+		}
+	}
+
+	private static void build(File csv, File cache, int width, int height) throws IOException {
+		List<double[][]> frames = readFrames(csv);
+		if (frames.isEmpty()) {
+			throw new IOException(csv + " has no values");
+		}
+		File tmp = File.createTempFile(cache.getName(), ".tmp", cache.getAbsoluteFile().getParentFile());
+		try {
+			write(tmp, frames, width, height);
+			Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			//another run replacing or mapping it at the same time; its cache holds the same values
+			if (!cache.exists() || cache.lastModified() < csv.lastModified()) {
+				throw new IOException("Can't write " + cache + ": " + e.getMessage(), e);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private static void write(File tmp, List<double[][]> frames, int width, int height) throws IOException {
+		FileChannel ch = new RandomAccessFile(tmp, "rw").getChannel();
+		try {
+			ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES + width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(frames.size());
+			b.flip();
+			ch.write(b);
+			for (double[][] frame : frames) {
+				b.clear();
+				float[] resampled = FieldMaps.resample(frame, width, height);
+				for (float v : resampled) {
+					b.putFloat(v);
+				}
+				b.flip();
+				while (b.hasRemaining()) {
+					ch.write(b);
+				}
+			}
+			ch.force(false);
+		} finally {
+			ch.close();
+		}
+	}
+
+	//frames of rows, separated by blank lines
+	private static List<double[][]> readFrames(File csv) throws IOException {
+		List<double[][]> frames = new ArrayList<double[][]>();
+		List<double[]> rows = new ArrayList<double[]>();
+		BufferedReader br = new BufferedReader(new FileReader(csv));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty()) {
+					if (!rows.isEmpty()) {
+						frames.add(rows.toArray(new double[rows.size()][]));
+						rows.clear();
+					}
+					continue;
+				}
+				String[] parts = line.split(",");
+				double[] row = new double[parts.length];
+				for (int i = 0; i < parts.length; i++) {
+					row[i] = Double.parseDouble(parts[i].trim());
+				}
+				rows.add(row);
+			}
+		} finally {
+			br.close();
+		}
+		if (!rows.isEmpty()) {
+			frames.add(rows.toArray(new double[rows.size()][]));
+		}
+		return frames;
+	}
+
+	int getFrames() {
+		return frames;
+	}
+
+	/**
+	 * @return the value of frame at (x,y)
+	 */
+	double get(int frame, int x, int y) {
+		return values.get((frame * height + y) * width + x);
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * Time-varying inputs of the chemokine layers, declared in a text file (inputSchedule)
+ *
+ * One input per line: layer = course [* map] [| options]. Lines starting with # are comments.
+ *   layer   a layer of the field: one of inputLayerNames, or collagen
+ *   course  a number, or a csv file with one relative level per row (e.g. RelativeChemValues.csv);
+ *           row k applies from tick k*every on, and the last row holds once the course runs out
+ *   map     a csv map (e.g. TNFRing.csv), resampled to the grid; without one the course scales the
+ *           layer as initializeChemokineLayer left it. A map file may hold several frames (see InputMap)
+ * Options:
+ *   every N   ticks per row of the course (default 1)
+ *   frame N   ticks per frame of the map (default 1)
+ *   add       add course * map to the layer every tick instead of setting the layer to it
+ *
+ * Courses are read into memory once and maps are parsed once into mapped caches,
+ * so a tick costs one pass over the grid per input and nothing is parsed while the model runs
+ */
+package aMFAC_REU;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class InputSchedule {
+
+	private final ChemokineField field;
+	private final List<Input> inputs = new ArrayList<Input>();
+
+	private static class Input {
+		int layer;
+		double[] course;
+		int every = 1;
+		InputMap map; //null: scale base
+		int frameTicks = 1;
+		double[] base; //the layer at load, when there is no map
+		boolean add;
+	}
+
+	/**
+	 * Reads the schedule file; relative file names are resolved against the schedule's folder
+	 * @param field the field whose layers are driven; layers without a map keep their current values as base
+	 */
+	public static InputSchedule load(File file, ChemokineField field) throws IOException {
+		InputSchedule s = new InputSchedule(field);
+		File dir = file.getAbsoluteFile().getParentFile();
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNo = 0;
+			while ((line = br.readLine()) != null) {
+				lineNo++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String where = file.getName() + ":" + lineNo + ": ";
+				try {
+					s.parse(line, dir);
+				} catch (IOException e) {
+					throw new IOException(where + e.getMessage(), e);
+				} catch (RuntimeException e) {
+					throw new IOException(where + e.getMessage(), e);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return s;
+	}
+
+	private InputSchedule(ChemokineField field) {
+		this.field = field;
+	}
+
+	private void parse(String line, File dir) throws IOException {
+		Input in = new Input();
+		int bar = line.indexOf('|');
+		String def = bar < 0 ? line : line.substring(0, bar);
+		String[] options = bar < 0 ? new String[0] : line.substring(bar + 1).trim().split("\\s+");
+		int eq = def.indexOf('=');
+		if (eq <= 0) {
+			throw new IOException("expected layer = course [* map] [| options]");
+		}
+		String layer = def.substring(0, eq).trim();
+		in.layer = field.indexOf(layer);
+		if (in.layer < 0) {
+			throw new IOException("unknown layer " + layer);
+		}
+		String[] terms = def.substring(eq + 1).split("\\*");
+		if (terms.length > 2) {
+			throw new IOException("expected one course and at most one map");
+		}
+		in.course = readCourse(terms[0].trim(), dir);
+		for (int i = 0; i < options.length; i++) {
+			if (options[i].equals("every") && i + 1 < options.length) {
+				in.every = Math.max(1, Integer.parseInt(options[++i]));
+			} else if (options[i].equals("frame") && i + 1 < options.length) {
+				in.frameTicks = Math.max(1, Integer.parseInt(options[++i]));
+			} else if (options[i].equals("add")) {
+				in.add = true;
+			} else if (!options[i].isEmpty()) {
+				throw new IOException("unknown option " + options[i]);
+			}
+		}
+		if (terms.length == 2) {
+			in.map = InputMap.open(resolve(terms[1].trim(), dir), field.getWidth(), field.getHeight());
+		} else {
+			in.base = new double[field.getWidth() * field.getHeight()];
+			for (int y = 0; y < field.getHeight(); y++) {
+				for (int x = 0; x < field.getWidth(); x++) {
+					in.base[y * field.getWidth() + x] = field.get(in.layer, x, y);
+				}
+			}
+		}
+		inputs.add(in);
+	}
+
+	private static double[] readCourse(String term, File dir) throws IOException {
+		try {
+			return new double[] {Double.parseDouble(term)};
+		} catch (NumberFormatException e) {
+			//a file
+		}
+		List<Double> values = new ArrayList<Double>();
+		BufferedReader br = new BufferedReader(new FileReader(resolve(term, dir)));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (!line.isEmpty()) {
+					values.add(Double.parseDouble(line.split(",")[0].trim()));
+				}
+			}
+		} finally {
+			br.close();
+		}
+		if (values.isEmpty()) {
+			throw new IOException(term + " has no values");
+		}
+		double[] course = new double[values.size()];
+		for (int i = 0; i < course.length; i++) {
+			course[i] = values.get(i);
+		}
+		return course;
+	}
+
+	private static File resolve(String name, File dir) {
+		File f = new File(name);
+		return f.isAbsolute() || f.exists() ? f : new File(dir, name);
+	}
+
+	public int size() {
+		return inputs.size();
+	}
+
+	/**
+	 * Sets (or adds to) every scheduled layer for tick
+	 */
+	public void apply(double tick) {
+		int w = field.getWidth();
+		int h = field.getHeight();
+		double[] data = field.getData();
+		long t = Math.round(tick);
+		for (Input in : inputs) {
+			double factor = in.course[(int) Math.min(t / in.every, in.course.length - 1)];
+			int frame = in.map == null ? 0 : (int) Math.min(t / in.frameTicks, in.map.getFrames() - 1);
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					double v = factor * (in.map != null ? in.map.get(frame, x, y) : in.base[y * w + x]);
+					int c = field.offset(x, y) + in.layer;
+					data[c] = in.add ? data[c] + v : v;
+				}
+			}
+		}
+	}
+}
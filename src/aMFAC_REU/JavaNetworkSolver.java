@@ -0,0 +1,88 @@
+/**
+ * In-process network solver using the java version of network.mat
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.nio.DoubleBuffer;
+
+public class JavaNetworkSolver implements NetworkSolver, SolverStatistics {
+
+	private final File networkFile;
+	private final File initialNetFile;
+	private final String method;
+	private final int threads;
+
+	private SaucermanNetwork network;
+	private double[] initialState;
+	private ParallelCellIntegrator integrator;
+
+	/**
+	 * @param networkFile network.mat
+	 * @param initialNetFile initialNet.mat
+	 * @param method ode23, ode23s, or ode23lanes or ode23lockstep for the lane integrator
+	 * @param threads worker threads, 0 for every core
+	 */
+	public JavaNetworkSolver(File networkFile, File initialNetFile, String method, int threads) {
+		this.networkFile = networkFile;
+		this.initialNetFile = initialNetFile;
+		this.method = method;
+		this.threads = threads;
+	}
+
+	/**
+	 * Uses a network that is already compiled, e.g. one shared between the runs of a sweep
+	 * @param network the compiled network, only read
+	 * @param initialState the initialNet state
+	 */
+	public JavaNetworkSolver(SaucermanNetwork network, double[] initialState, String method, int threads) {
+		this((File) null, null, method, threads);
+		this.network = network;
+		this.initialState = initialState;
+	}
+
+	@Override
+	public double[] loadInitialState() throws Exception {
+		if (network == null) {
+			network = SaucermanNetwork.load(networkFile);
+			initialState = SaucermanNetwork.loadInitialState(initialNetFile);
+		}
+		integrator = new ParallelCellIntegrator(network, method, threads);
+		return initialState.clone();
+	}
+
+	@Override
+	public int solve(double[] states, int species, double[] inputs, int n) {
+		return integrator.integrate(states, inputs, n);
+	}
+
+	/**
+	 * Integrates cells 0..n-1 in buffers, e.g. the mapped file of a worker process, without copying them all to the heap
+	 * @see ParallelCellIntegrator#integrate(DoubleBuffer, DoubleBuffer, int)
+	 */
+	public int solve(DoubleBuffer states, DoubleBuffer inputs, int n) {
+		return integrator.integrate(states, inputs, n);
+	}
+
+	@Override
+	public long getSteps() {
+		return integrator == null ? 0 : integrator.getSteps();
+	}
+
+	@Override
+	public long getRejectedSteps() {
+		return integrator == null ? 0 : integrator.getRejectedSteps();
+	}
+
+	@Override
+	public long getEvaluations() {
+		return integrator == null ? 0 : integrator.getEvaluations();
+	}
+
+	@Override
+	public void close() {
+		if (integrator != null) {
+			integrator.shutdown();
+		}
+	}
+}
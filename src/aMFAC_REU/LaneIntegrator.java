@@ -0,0 +1,27 @@
+/**
+ * Integrates the networks of a block of cells together, one cell per SIMD lane (see VectorLaneIntegrator)
+ * Step counts are per cell, as for CellIntegrator, so they compare with the per-cell solvers.
+ * Implementations keep scratch arrays, so each thread needs its own instance
+ */
+package aMFAC_REU;
+
+public interface LaneIntegrator extends SolverStatistics {
+
+	/**
+	 * Integrates cells from..to-1 over the tspan of network.mat, replacing their states in place
+	 * @param states cell-major states of all cells
+	 * @param inputs TGFB, IL1, IL6 and TNFa weights of every cell, packed 4 per cell
+	 * @return number of cells whose step size fell below the minimum
+	 */
+	int integrate(double[] states, double[] inputs, int from, int to);
+
+	/**
+	 * @return cells integrated at once
+	 */
+	int getLanes();
+
+	/**
+	 * @return a new integrator of the same network and step control, for another thread
+	 */
+	LaneIntegrator create();
+}
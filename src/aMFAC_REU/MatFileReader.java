@@ -0,0 +1,295 @@
+/**
+ * Minimal reader for Level 5 MAT-files (network.mat, initialNet.mat)
+ * so the network can be loaded without a MATLAB installation
+ */
+package aMFAC_REU;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class MatFileReader {
+
+	//data element types
+	private static final int miINT8 = 1;
+	private static final int miUINT8 = 2;
+	private static final int miINT16 = 3;
+	private static final int miUINT16 = 4;
+	private static final int miINT32 = 5;
+	private static final int miUINT32 = 6;
+	private static final int miSINGLE = 7;
+	private static final int miDOUBLE = 9;
+	private static final int miINT64 = 12;
+	private static final int miUINT64 = 13;
+	private static final int miMATRIX = 14;
+	private static final int miCOMPRESSED = 15;
+	private static final int miUTF8 = 16;
+
+	//array classes
+	private static final int mxCELL_CLASS = 1;
+	private static final int mxSTRUCT_CLASS = 2;
+	private static final int mxCHAR_CLASS = 4;
+
+	/**
+	 * A numeric MATLAB array. Values are stored column-major like MATLAB does.
+	 */
+	public static class MatArray {
+		public final int[] dims;
+		public final double[] data;
+
+		MatArray(int[] dims, double[] data) {
+			this.dims = dims;
+			this.data = data;
+		}
+
+		public int rows() {
+			return dims[0];
+		}
+
+		public int cols() {
+			return dims.length > 1 ? dims[1] : 1;
+		}
+
+		/**
+		 * @param r 0-based row
+		 * @param c 0-based column
+		 */
+		public double get(int r, int c) {
+			return data[c * dims[0] + r];
+		}
+	}
+
+	/**
+	 * Reads every top level variable of a MAT-file.
+	 * Numeric arrays become MatArray, char arrays become String, cell arrays become Object[]
+	 * and structs become Map<String,Object>.
+	 * @param file the .mat file
+	 * @return variables by name, in file order
+	 */
+	public static Map<String, Object> read(File file) throws IOException {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		if (bytes.length < 128) {
+			throw new IOException(file + " is not a MAT-file");
+		}
+		ByteOrder order = (bytes[126] == 'I' && bytes[127] == 'M') ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		ByteBuffer buf = ByteBuffer.wrap(bytes, 128, bytes.length - 128).slice().order(order);
+
+		Map<String, Object> vars = new LinkedHashMap<String, Object>();
+		readElements(buf, order, vars);
+		return vars;
+	}
+
+	private static void readElements(ByteBuffer buf, ByteOrder order, Map<String, Object> vars) throws IOException {
+		while (buf.remaining() >= 8) {
+			int type = buf.getInt();
+			int size = buf.getInt();
+			if (type == miCOMPRESSED) {
+				ByteBuffer inflated = ByteBuffer.wrap(inflate(buf, size)).order(order);
+				readElements(inflated, order, vars);
+			} else if (type == miMATRIX) {
+				ByteBuffer m = slice(buf, size);
+				String[] name = new String[1];
+				Object value = readMatrix(m, order, name);
+				vars.put(name[0], value);
+				skipPadding(buf, size);
+			} else {
+				buf.position(buf.position() + size);
+				skipPadding(buf, size);
+			}
+		}
+	}
+
+	private static Object readMatrix(ByteBuffer m, ByteOrder order, String[] nameOut) throws IOException {
+		if (!m.hasRemaining()) {
+			nameOut[0] = "";
+			return new MatArray(new int[] {0, 0}, new double[0]);
+		}
+		double[] flags = readNumeric(m);
+		int mxClass = ((int) flags[0]) & 0xff;
+		int[] dims = toInts(readNumeric(m));
+		nameOut[0] = readString(m);
+
+		int count = 1;
+		for (int d : dims) {
+			count *= d;
+		}
+
+		if (mxClass == mxCELL_CLASS) {
+			Object[] cells = new Object[count];
+			for (int i = 0; i < count; i++) {
+				int type = m.getInt();
+				int size = m.getInt();
+				if (type != miMATRIX) {
+					throw new IOException("Unexpected element in cell array: " + type);
+				}
+				cells[i] = readMatrix(slice(m, size), order, new String[1]);
+				skipPadding(m, size);
+			}
+			return cells;
+		} else if (mxClass == mxSTRUCT_CLASS) {
+			int fieldLength = toInts(readNumeric(m))[0];
+			String allNames = readString(m);
+			int fields = allNames.length() / fieldLength;
+			Map<String, Object> struct = new LinkedHashMap<String, Object>();
+			String[] fieldNames = new String[fields];
+			for (int f = 0; f < fields; f++) {
+				fieldNames[f] = allNames.substring(f * fieldLength, (f + 1) * fieldLength).trim();
+			}
+			//only scalar structs are needed here; later elements overwrite earlier ones
+			for (int i = 0; i < count; i++) {
+				for (int f = 0; f < fields; f++) {
+					int type = m.getInt();
+					int size = m.getInt();
+					if (type != miMATRIX) {
+						throw new IOException("Unexpected element in struct: " + type);
+					}
+					struct.put(fieldNames[f], readMatrix(slice(m, size), order, new String[1]));
+					skipPadding(m, size);
+				}
+			}
+			return struct;
+		} else if (mxClass == mxCHAR_CLASS) {
+			double[] chars = readNumeric(m);
+			StringBuilder sb = new StringBuilder(chars.length);
+			//only single-row char arrays are used by the model files
+			for (double c : chars) {
+				sb.append((char) c);
+			}
+			return sb.toString();
+		} else {
+			double[] real = m.hasRemaining() ? readNumeric(m) : new double[0];
+			if (real.length != count) {
+				throw new IOException("Array " + nameOut[0] + " has " + real.length + " values, expected " + count);
+			}
+			return new MatArray(dims, real);
+		}
+	}
+
+	/**
+	 * Reads one data element (normal or small format) and widens its values to double
+	 */
+	private static double[] readNumeric(ByteBuffer m) throws IOException {
+		int tag = m.getInt();
+		int type, size;
+		boolean small = (tag >>> 16) != 0;
+		if (small) {
+			type = tag & 0xffff;
+			size = tag >>> 16;
+		} else {
+			type = tag;
+			size = m.getInt();
+		}
+		ByteBuffer d = slice(m, size);
+		if (small) {
+			m.position(m.position() + (4 - size));
+		} else {
+			skipPadding(m, size);
+		}
+
+		double[] out;
+		switch (type) {
+			case miINT8:
+				out = new double[size];
+				for (int i = 0; i < out.length; i++) out[i] = d.get();
+				break;
+			case miUINT8:
+			case miUTF8:
+				out = new double[size];
+				for (int i = 0; i < out.length; i++) out[i] = d.get() & 0xff;
+				break;
+			case miINT16:
+				out = new double[size / 2];
+				for (int i = 0; i < out.length; i++) out[i] = d.getShort();
+				break;
+			case miUINT16:
+				out = new double[size / 2];
+				for (int i = 0; i < out.length; i++) out[i] = d.getShort() & 0xffff;
+				break;
+			case miINT32:
+				out = new double[size / 4];
+				for (int i = 0; i < out.length; i++) out[i] = d.getInt();
+				break;
+			case miUINT32:
+				out = new double[size / 4];
+				for (int i = 0; i < out.length; i++) out[i] = d.getInt() & 0xffffffffL;
+				break;
+			case miSINGLE:
+				out = new double[size / 4];
+				for (int i = 0; i < out.length; i++) out[i] = d.getFloat();
+				break;
+			case miDOUBLE:
+				out = new double[size / 8];
+				for (int i = 0; i < out.length; i++) out[i] = d.getDouble();
+				break;
+			case miINT64:
+			case miUINT64:
+				out = new double[size / 8];
+				for (int i = 0; i < out.length; i++) out[i] = d.getLong();
+				break;
+			default:
+				throw new IOException("Unsupported MAT data type " + type);
+		}
+		return out;
+	}
+
+	private static String readString(ByteBuffer m) throws IOException {
+		double[] chars = readNumeric(m);
+		StringBuilder sb = new StringBuilder(chars.length);
+		for (double c : chars) {
+			if (c != 0) {
+				sb.append((char) c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static int[] toInts(double[] v) {
+		int[] out = new int[v.length];
+		for (int i = 0; i < v.length; i++) {
+			out[i] = (int) v[i];
+		}
+		return out;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, int size) {
+		ByteBuffer s = buf.slice().order(buf.order());
+		s.limit(size);
+		buf.position(buf.position() + size);
+		return s;
+	}
+
+	private static void skipPadding(ByteBuffer buf, int size) {
+		int pad = (8 - (size % 8)) % 8;
+		buf.position(Math.min(buf.limit(), buf.position() + pad));
+	}
+
+	private static byte[] inflate(ByteBuffer buf, int size) throws IOException {
+		byte[] compressed = new byte[size];
+		buf.get(compressed);
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size * 4);
+		byte[] chunk = new byte[8192];
+		try {
+			while (!inflater.finished()) {
+				int n = inflater.inflate(chunk);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				out.write(chunk, 0, n);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed MAT element", e);
+		} finally {
+			inflater.end();
+		}
+		return out.toByteArray();
+	}
+}
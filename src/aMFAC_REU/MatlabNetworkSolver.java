@@ -0,0 +1,71 @@
+/**
+ * Network solver that runs processCellBehavior.m in a MATLAB engine session
+ */
+package aMFAC_REU;
+
+import com.mathworks.engine.MatlabEngine;
+
+public class MatlabNetworkSolver implements NetworkSolver {
+
+	private MatlabEngine eng;
+
+	@Override
+	public double[] loadInitialState() throws Exception {
+		//start the matlab connection
+		eng = MatlabEngine.startMatlab();
+		
+		// load the mat file only once
+		eng.eval("load network.mat");
+		eng.eval("load initialNet.mat");
+		//uncomment if you want to fool areound with parallel computing
+		/*eng.eval(" myCluster = parcluster('local')");
+		eng.eval(" myCluster.NumWorkers = 3");
+		eng.eval("parpool('local',3);");*/
+		return eng.getVariable("initialNet");
+	}
+
+	@Override
+	public int solve(double[] states, int species, double[] inputs, int n) throws Exception {
+		//MATLAB needs one row per cell and a vector per weight
+		double[][] rows = new double[n][species];
+		double[] TGFBweights = new double[n];
+		double[] IL1weights = new double[n];
+		double[] IL6weights = new double[n];
+		double[] TNFaweights = new double[n];
+		for (int i=0; i < n; i++) {
+			System.arraycopy(states, i*species, rows[i], 0, species);
+			int w = i*SaucermanNetwork.INPUT_COUNT;
+			TGFBweights[i] = inputs[w];
+			IL1weights[i] = inputs[w+1];
+			IL6weights[i] = inputs[w+2];
+			TNFaweights[i] = inputs[w+3];
+		}
+		
+		eng.putVariable("states", rows);
+		eng.putVariable("TGFBweights", TGFBweights);
+		eng.putVariable("IL1weights", IL1weights);
+		eng.putVariable("IL6weights", IL6weights);
+		eng.putVariable("TNFaweights", TNFaweights);
+		
+		//System.out.println(System.currentTimeMillis());
+		eng.eval("processCellBehavior");
+		//System.out.println(System.currentTimeMillis());
+		
+		rows = eng.getVariable("states"); //since states is a 2d array, there must be at least 2 fibroblasts
+		for (int i=0; i < n; i++) {
+			System.arraycopy(rows[i], 0, states, i*species, species);
+		}
+		return 0;
+	}
+
+	@Override
+	public void close() {
+		if (eng != null) {
+			try {
+				eng.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
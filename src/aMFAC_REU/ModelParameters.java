@@ -0,0 +1,121 @@
+/**
+ * The parameters declared in AMFAC_REU.rs/parameters.xml, for running the model outside the Repast runtime
+ * Each call to create() gives a fresh Parameters with the defaults and any overrides,
+ * so concurrent runs never share one
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import repast.simphony.parameter.DefaultParameters;
+import repast.simphony.parameter.Parameters;
+
+public class ModelParameters {
+
+	public static final File DEFAULT_FILE = new File("AMFAC_REU.rs/parameters.xml");
+
+	private final Map<String, String> types = new LinkedHashMap<String, String>();
+	private final Map<String, String> displayNames = new LinkedHashMap<String, String>();
+	private final Map<String, String> defaults = new LinkedHashMap<String, String>();
+
+	public static ModelParameters load(File parametersXml) throws IOException {
+		ModelParameters mp = new ModelParameters();
+		try {
+			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(parametersXml);
+			NodeList nodes = doc.getElementsByTagName("parameter");
+			for (int i = 0; i < nodes.getLength(); i++) {
+				Element e = (Element) nodes.item(i);
+				String name = e.getAttribute("name");
+				mp.types.put(name, e.getAttribute("type"));
+				mp.displayNames.put(name, e.getAttribute("displayName"));
+				mp.defaults.put(name, e.getAttribute("defaultValue").trim());
+			}
+		} catch (Exception e) {
+			throw new IOException("Can't read " + parametersXml + ": " + e.getMessage(), e);
+		}
+		return mp;
+	}
+
+	public boolean contains(String name) {
+		return types.containsKey(name);
+	}
+
+	public Iterable<String> getNames() {
+		return types.keySet();
+	}
+
+	/**
+	 * @param overrides values to use instead of the defaults, as text
+	 */
+	public Parameters create(Map<String, String> overrides) throws IOException {
+		DefaultParameters p = new DefaultParameters();
+		for (String name : types.keySet()) {
+			String value = overrides.containsKey(name) ? overrides.get(name) : defaults.get(name);
+			p.addParameter(name, displayNames.get(name), typeOf(name), convert(name, value), false);
+		}
+		for (String name : overrides.keySet()) {
+			if (!types.containsKey(name)) {
+				throw new IOException("Unknown parameter " + name);
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Converts text to the type parameters.xml declares, null for __NULL__
+	 */
+	public Object convert(String name, String value) throws IOException {
+		String type = types.get(name);
+		if (type == null) {
+			throw new IOException("Unknown parameter " + name);
+		}
+		if (value == null || value.equals("__NULL__")) {
+			return null;
+		}
+		value = value.trim();
+		try {
+			if (type.equals("int")) {
+				return Integer.valueOf(value);
+			} else if (type.equals("long")) {
+				return Long.valueOf(value);
+			} else if (type.equals("double")) {
+				return Double.valueOf(value);
+			} else if (type.equals("float")) {
+				return Float.valueOf(value);
+			} else if (type.equals("boolean")) {
+				if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+					throw new NumberFormatException(value);
+				}
+				return Boolean.valueOf(value);
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad " + type + " value for " + name + ": " + value);
+		}
+		return value;
+	}
+
+	private Class<?> typeOf(String name) {
+		String type = types.get(name);
+		if (type.equals("int")) {
+			return Integer.class;
+		} else if (type.equals("long")) {
+			return Long.class;
+		} else if (type.equals("double")) {
+			return Double.class;
+		} else if (type.equals("float")) {
+			return Float.class;
+		} else if (type.equals("boolean")) {
+			return Boolean.class;
+		}
+		return String.class;
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Everything that belongs to one simulation run: parameters, current tick, random numbers, results folder
+ * and optionally a network model shared with other runs.
+ * The model reads these through the static getters. Inside Repast (no run set on the thread) they fall
+ * back to RunEnvironment and RandomHelper, so GUI and batch runs behave as before.
+ * HeadlessEngine sets a run on the thread that steps it, so many runs can share one JVM
+ */
+package aMFAC_REU;
+
+import java.io.File;
+
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
+import cern.jet.random.engine.RandomEngine;
+import repast.simphony.engine.environment.RunEnvironment;
+import repast.simphony.engine.schedule.ISchedule;
+import repast.simphony.parameter.Parameters;
+import repast.simphony.random.RandomHelper;
+
+public class ModelRun {
+
+	private static final ThreadLocal<ModelRun> CURRENT = new ThreadLocal<ModelRun>();
+
+	private final Parameters parameters;
+	private double tick;
+	private final File resultsFolder;
+	private final SaucermanNetwork network;
+	private final double[] initialState;
+	private Checkpoint resume;
+	private RandomEngine engine;
+	private Uniform uniform;
+
+	/**
+	 * @param parameters the values of parameters.xml for this run
+	 * @param seed random seed; the same seed gives the same numbers as RandomHelper.setSeed
+	 * @param resultsFolder where this run writes its results
+	 * @param network compiled network shared read-only between runs, or null to load network.mat
+	 * @param initialState initialNet to go with network, copied by every run
+	 */
+	public ModelRun(Parameters parameters, int seed, File resultsFolder, SaucermanNetwork network,
+			double[] initialState) {
+		this.parameters = parameters;
+		this.resultsFolder = resultsFolder;
+		this.network = network;
+		this.initialState = initialState;
+		setRandomEngine(new MersenneTwister(seed));
+	}
+
+	/**
+	 * Makes this the run of the calling thread, or clears it with null
+	 */
+	public static void setCurrent(ModelRun run) {
+		if (run == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(run);
+		}
+	}
+
+	public static ModelRun getCurrent() {
+		return CURRENT.get();
+	}
+
+	public static Parameters getParameters() {
+		ModelRun run = CURRENT.get();
+		return run != null ? run.parameters : RunEnvironment.getInstance().getParameters();
+	}
+
+	/**
+	 * @return the Repast schedule, or null in a headless run
+	 */
+	public static ISchedule getSchedule() {
+		ModelRun run = CURRENT.get();
+		return run != null ? null : RunEnvironment.getInstance().getCurrentSchedule();
+	}
+
+	public static double getTickCount() {
+		ModelRun run = CURRENT.get();
+		return run != null ? run.tick : RunEnvironment.getInstance().getCurrentSchedule().getTickCount();
+	}
+
+	public Parameters getRunParameters() {
+		return parameters;
+	}
+
+	public double getTick() {
+		return tick;
+	}
+
+	/**
+	 * Advances the tick of a headless run
+	 */
+	public void setTick(double tick) {
+		this.tick = tick;
+	}
+
+	public static double nextDoubleFromTo(double from, double to) {
+		ModelRun run = CURRENT.get();
+		return run != null ? run.uniform.nextDoubleFromTo(from, to) : RandomHelper.nextDoubleFromTo(from, to);
+	}
+
+	public static int nextIntFromTo(int from, int to) {
+		ModelRun run = CURRENT.get();
+		return run != null ? run.uniform.nextIntFromTo(from, to) : RandomHelper.nextIntFromTo(from, to);
+	}
+
+	/**
+	 * @return the results folder of the run, Results in the working directory under Repast
+	 */
+	public static File getResultsFolder() {
+		ModelRun run = CURRENT.get();
+		return run != null ? run.resultsFolder : new File("Results");
+	}
+
+	/**
+	 * @return the shared network model, or null if each run loads its own
+	 */
+	public static SaucermanNetwork getNetwork() {
+		ModelRun run = CURRENT.get();
+		return run != null ? run.network : null;
+	}
+
+	public static double[] getInitialState() {
+		ModelRun run = CURRENT.get();
+		return run != null && run.initialState != null ? run.initialState.clone() : null;
+	}
+
+	/**
+	 * @return the checkpoint the run resumes from, or null for a fresh start
+	 */
+	public static Checkpoint getResume() {
+		ModelRun run = CURRENT.get();
+		return run != null ? run.resume : null;
+	}
+
+	/**
+	 * Makes the run continue from a checkpoint instead of starting fresh (see HeadlessEngine)
+	 */
+	public void setResume(Checkpoint resume) {
+		this.resume = resume;
+	}
+
+	public RandomEngine getRandomEngine() {
+		return engine;
+	}
+
+	/**
+	 * Replaces the random number generator, e.g. with one restored from a checkpoint
+	 */
+	public void setRandomEngine(RandomEngine engine) {
+		this.engine = engine;
+		uniform = new Uniform(0, 1, engine);
+	}
+}
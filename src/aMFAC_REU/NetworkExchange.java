@@ -0,0 +1,182 @@
+/**
+ * Memory-mapped file shared by SharedMemoryNetworkSolver and NetworkWorker
+ * Layout: a 64 byte header, then the cell-major states of capacity cells, then their input weights.
+ * Only one command byte per tick goes over the worker's stdin/stdout; the states never get serialized.
+ * The worker integrates the states where they are, through getStateBuffer and getInputBuffer
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+class NetworkExchange {
+
+	static final int MAGIC = 0x414d4658; //"AMFX"
+	static final int HEADER_BYTES = 64;
+
+	//header fields
+	private static final int MAGIC_OFF = 0;
+	private static final int SPECIES_OFF = 4;
+	private static final int INPUTS_OFF = 8;
+	private static final int CAPACITY_OFF = 12;
+	private static final int COUNT_OFF = 16;
+	private static final int FAILURES_OFF = 20;
+
+	//commands sent to the worker and its replies
+	static final int CMD_SOLVE = 'S';
+	static final int CMD_REMAP = 'M';
+	static final int CMD_QUIT = 'Q';
+	static final int REPLY_OK = 'K';
+	static final int REPLY_ERROR = 'E';
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private MappedByteBuffer buf;
+	private DoubleBuffer states;
+	private DoubleBuffer inputs;
+	private int species;
+	private int inputCount;
+	private int capacity;
+
+	private NetworkExchange(File file) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+	}
+
+	/**
+	 * Creates the exchange file (client side)
+	 */
+	static NetworkExchange create(File file, int species, int inputCount, int capacity) throws IOException {
+		NetworkExchange ex = new NetworkExchange(file);
+		ex.species = species;
+		ex.inputCount = inputCount;
+		ex.resize(capacity);
+		return ex;
+	}
+
+	/**
+	 * Maps an exchange file created by the client (worker side)
+	 */
+	static NetworkExchange open(File file) throws IOException {
+		NetworkExchange ex = new NetworkExchange(file);
+		ex.remap();
+		return ex;
+	}
+
+	/**
+	 * Grows the file so it holds at least cells cells (client side)
+	 * @return true if the file was remapped; the worker must then be sent CMD_REMAP
+	 */
+	boolean ensureCapacity(int cells) throws IOException {
+		if (cells > capacity) {
+			resize(Math.max(cells, capacity * 2));
+			return true;
+		}
+		return false;
+	}
+
+	private void resize(int cells) throws IOException {
+		long bytes = HEADER_BYTES + (long) cells * (species + inputCount) * 8;
+		if (bytes > Integer.MAX_VALUE) {
+			throw new IOException("Too many cells for one exchange file: " + cells);
+		}
+		raf.setLength(bytes);
+		map(bytes);
+		buf.putInt(MAGIC_OFF, MAGIC);
+		buf.putInt(SPECIES_OFF, species);
+		buf.putInt(INPUTS_OFF, inputCount);
+		buf.putInt(CAPACITY_OFF, cells);
+		capacity = cells;
+		views();
+	}
+
+	/**
+	 * Re-reads the header and maps the current file size (worker side)
+	 */
+	void remap() throws IOException {
+		map(raf.length());
+		if (buf.getInt(MAGIC_OFF) != MAGIC) {
+			throw new IOException(file + " is not a network exchange file");
+		}
+		species = buf.getInt(SPECIES_OFF);
+		inputCount = buf.getInt(INPUTS_OFF);
+		capacity = buf.getInt(CAPACITY_OFF);
+		views();
+	}
+
+	private void map(long bytes) throws IOException {
+		buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+		buf.order(ByteOrder.nativeOrder());
+	}
+
+	private void views() {
+		buf.position(HEADER_BYTES);
+		states = buf.slice().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		buf.position(HEADER_BYTES + capacity * species * 8);
+		inputs = buf.slice().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		buf.position(0);
+	}
+
+	int getSpecies() {
+		return species;
+	}
+
+	int getInputCount() {
+		return inputCount;
+	}
+
+	int getCount() {
+		return buf.getInt(COUNT_OFF);
+	}
+
+	int getFailures() {
+		return buf.getInt(FAILURES_OFF);
+	}
+
+	void setFailures(int failures) {
+		buf.putInt(FAILURES_OFF, failures);
+	}
+
+	/**
+	 * Copies the states and inputs of n cells into the shared buffer
+	 */
+	void write(double[] src, double[] in, int n) {
+		buf.putInt(COUNT_OFF, n);
+		states.clear();
+		states.put(src, 0, n * species);
+		inputs.clear();
+		inputs.put(in, 0, n * inputCount);
+	}
+
+	void readStates(double[] dst, int n) {
+		states.clear();
+		states.get(dst, 0, n * species);
+	}
+
+	/**
+	 * @return the states of all cells in the mapped file, valid until the next remap
+	 */
+	DoubleBuffer getStateBuffer() {
+		return states;
+	}
+
+	/**
+	 * @return the input weights of all cells in the mapped file, valid until the next remap
+	 */
+	DoubleBuffer getInputBuffer() {
+		return inputs;
+	}
+
+	void close() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
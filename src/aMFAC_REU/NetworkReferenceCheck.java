@@ -0,0 +1,127 @@
+/**
+ * Regression check of the java network engine against reference states from processCellBehavior.m
+ * Every row of the reference file is one case: the TGFB, IL1, IL6 and TNFa weights, a number of ticks,
+ * then the state after integrating initialNet.mat over tspan that many times with those weights.
+ * networkReference.m writes the file with MATLAB's ode23; lines starting with # are comments.
+ * A species passes when |java - reference| <= RelTol*|reference| + AbsTol of network.mat, the accuracy
+ * ode23 promises, so rounding differences between MATLAB and java don't fail the check but a wrong
+ * equation, weight or step control does. Exits with 1 if any species fails.
+ * The reference is ode23, so only the ode23 methods are checked (ode23s takes different steps).
+ *
+ * usage: NetworkReferenceCheck [networkReference.csv [ode23|ode23lanes|ode23lockstep]]
+ * (run from the model folder so network.mat and initialNet.mat are found)
+ */
+package aMFAC_REU;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class NetworkReferenceCheck {
+
+	public static void main(String[] args) {
+		if (args.length > 2) {
+			System.out.println("usage: NetworkReferenceCheck [networkReference.csv [ode23|ode23lanes|ode23lockstep]]");
+			System.exit(2);
+		}
+		try {
+			File reference = new File(args.length > 0 ? args[0] : "networkReference.csv");
+			String method = args.length > 1 ? args[1] : "ode23";
+			if (!method.equalsIgnoreCase("ode23") && !ParallelCellIntegrator.isLaneMethod(method)) {
+				System.out.println("The reference is ode23, use ode23, ode23lanes or ode23lockstep");
+				System.exit(2);
+			}
+			int failed = check(SaucermanNetwork.load(new File("network.mat")),
+					SaucermanNetwork.loadInitialState(new File("initialNet.mat")), reference, method);
+			System.exit(failed == 0 ? 0 : 1);
+		} catch (IOException e) {
+			System.out.println(e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Integrates every case of the reference file and prints how far it is from the reference
+	 * @return the number of cases with a species outside the tolerance
+	 */
+	public static int check(SaucermanNetwork network, double[] initialState, File reference, String method)
+			throws IOException {
+		int species = network.getSpeciesCount();
+		List<double[]> cases = read(reference, species);
+		ParallelCellIntegrator integrator = new ParallelCellIntegrator(network, method, 1);
+		int failed = 0;
+		try {
+			for (int c = 0; c < cases.size(); c++) {
+				double[] row = cases.get(c);
+				double[] inputs = {row[0], row[1], row[2], row[3]};
+				int ticks = (int) row[4];
+				double[] state = initialState.clone();
+				int failures = 0;
+				for (int t = 0; t < ticks; t++) {
+					failures += integrator.integrate(state, inputs, 1);
+				}
+
+				//worst species relative to the tolerance
+				double worst = 0, maxDiff = 0;
+				int worstSpecies = 0;
+				for (int s = 0; s < species; s++) {
+					double ref = row[5 + s];
+					double diff = Math.abs(state[s] - ref);
+					double ratio = diff / (network.getRelTol() * Math.abs(ref) + network.getAbsTol());
+					maxDiff = Math.max(maxDiff, diff);
+					if (!(ratio <= worst)) { //also catches NaN
+						worst = ratio;
+						worstSpecies = s;
+					}
+				}
+				boolean ok = worst <= 1 && failures == 0;
+				if (!ok) {
+					failed++;
+				}
+				System.out.println(String.format("case %d (TGFB %g, IL1 %g, IL6 %g, TNFa %g, %d ticks): max difference %.3g,"
+						+ " %.3g of the tolerance at %s%s", c + 1, row[0], row[1], row[2], row[3], ticks, maxDiff, worst,
+						network.getSpeciesNames()[worstSpecies], ok ? "" : failures > 0 ? " FAILED (step size)" : " FAILED"));
+			}
+		} finally {
+			integrator.shutdown();
+		}
+		System.out.println(failed == 0 ? "All " + cases.size() + " cases match " + reference
+				: failed + " of " + cases.size() + " cases differ from " + reference);
+		return failed;
+	}
+
+	private static List<double[]> read(File reference, int species) throws IOException {
+		List<double[]> cases = new ArrayList<double[]>();
+		BufferedReader br = new BufferedReader(new FileReader(reference));
+		try {
+			String line;
+			int lineNo = 0;
+			while ((line = br.readLine()) != null) {
+				lineNo++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split(",");
+				if (parts.length != 5 + species) {
+					throw new IOException(reference.getName() + ":" + lineNo + ": expected " + (5 + species)
+							+ " values, found " + parts.length);
+				}
+				double[] row = new double[parts.length];
+				for (int i = 0; i < parts.length; i++) {
+					row[i] = Double.parseDouble(parts[i].trim());
+				}
+				cases.add(row);
+			}
+		} finally {
+			br.close();
+		}
+		if (cases.isEmpty()) {
+			throw new IOException(reference + " has no cases");
+		}
+		return cases;
+	}
+}
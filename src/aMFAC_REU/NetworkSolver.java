@@ -0,0 +1,28 @@
+/**
+ * Solves the fibroblast network of many cells for one tick
+ * AMFACSpace only talks to this interface; networkEngine picks the implementation
+ */
+package aMFAC_REU;
+
+public interface NetworkSolver {
+
+	/**
+	 * Loads the network model and returns the state every cell starts from (initialNet.mat)
+	 */
+	double[] loadInitialState() throws Exception;
+
+	/**
+	 * Integrates cells 0..n-1 for one tick, updating the states in place
+	 * @param states cell-major network states, species entries per cell
+	 * @param species number of species per cell
+	 * @param inputs TGFB, IL1, IL6 and TNFa weights, SaucermanNetwork.INPUT_COUNT per cell
+	 * @param n number of cells
+	 * @return number of cells the solver could not finish
+	 */
+	int solve(double[] states, int species, double[] inputs, int n) throws Exception;
+
+	/**
+	 * Releases threads, processes or sessions held by the solver
+	 */
+	void close();
+}
@@ -0,0 +1,292 @@
+/**
+ * Network states of every fibroblast in one contiguous, cell-major array
+ * Cell i occupies entries [i*species, (i+1)*species). Slots stay dense: removing a cell
+ * moves the last cell into the freed slot so solvers can sweep 0..size()-1
+ *
+ * For grids whose states don't fit the heap (stateStorage float64 or float32) the states live
+ * off-heap instead, in segments of a memory-mapped temporary file (put java.io.tmpdir on a disk,
+ * not a RAM-backed tmpfs, for states larger than memory). Off-heap states have no backing array:
+ * read them with get or copyOut and write them with set or copyIn. float32 storage halves the
+ * memory; values are widened to double when copied out, so solvers still integrate in double
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class NetworkStateStore {
+
+	//cells per off-heap segment; one segment stays far below the 2 GB limit of a mapping
+	private static final int SEGMENT_SHIFT = 16;
+	private static final int SEGMENT_CELLS = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_CELLS - 1;
+
+	private final int species;
+	private double[] states; //null when off-heap
+	private Fibroblast[] owners;
+	private int count;
+
+	//off-heap storage, one of doubles and floats
+	private final int bytesPerValue;
+	private RandomAccessFile backing;
+	private File backingFile;
+	private DoubleBuffer[] doubles;
+	private FloatBuffer[] floats;
+
+	public NetworkStateStore(int species, int initialCapacity) {
+		this(species, initialCapacity, "heap");
+	}
+
+	/**
+	 * @param storage heap (a double[]), float64 or float32 (off-heap)
+	 */
+	public NetworkStateStore(int species, int initialCapacity, String storage) {
+		this.species = species;
+		int cap = Math.max(1, initialCapacity);
+		owners = new Fibroblast[cap];
+		if (storage.equalsIgnoreCase("heap")) {
+			bytesPerValue = 8;
+			states = new double[cap * species];
+		} else if (storage.equalsIgnoreCase("float64") || storage.equalsIgnoreCase("float32")) {
+			bytesPerValue = storage.equalsIgnoreCase("float32") ? 4 : 8;
+			try {
+				backingFile = File.createTempFile("amfac-states", ".bin");
+				backingFile.deleteOnExit();
+				backing = new RandomAccessFile(backingFile, "rw");
+				if (bytesPerValue == 4) {
+					floats = new FloatBuffer[0];
+				} else {
+					doubles = new DoubleBuffer[0];
+				}
+				mapSegments(cap);
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't create off-heap network states: " + e.getMessage(), e);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown stateStorage " + storage + " (use heap, float64 or float32)");
+		}
+	}
+
+	//maps segments until they hold cells cells; a file grown by setLength reads as zeros
+	private void mapSegments(int cells) throws IOException {
+		int have = floats != null ? floats.length : doubles.length;
+		int need = (cells + SEGMENT_CELLS - 1) >>> SEGMENT_SHIFT;
+		if (need <= have) {
+			return;
+		}
+		long segmentBytes = (long) SEGMENT_CELLS * species * bytesPerValue;
+		backing.setLength(need * segmentBytes);
+		FileChannel ch = backing.getChannel();
+		if (floats != null) {
+			floats = Arrays.copyOf(floats, need);
+		} else {
+			doubles = Arrays.copyOf(doubles, need);
+		}
+		for (int s = have; s < need; s++) {
+			MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_WRITE, s * segmentBytes, segmentBytes);
+			b.order(ByteOrder.nativeOrder());
+			if (floats != null) {
+				floats[s] = b.asFloatBuffer();
+			} else {
+				doubles[s] = b.asDoubleBuffer();
+			}
+		}
+	}
+
+	/**
+	 * Reserves a zeroed slot for a new cell
+	 * @param owner the cell that will use the slot
+	 * @return the slot index
+	 */
+	public int allocate(Fibroblast owner) {
+		if (count == owners.length) {
+			int cap = owners.length * 2;
+			owners = Arrays.copyOf(owners, cap);
+			if (states != null) {
+				states = Arrays.copyOf(states, cap * species);
+			} else {
+				try {
+					mapSegments(cap);
+				} catch (IOException e) {
+					throw new IllegalStateException("Can't grow off-heap network states: " + e.getMessage(), e);
+				}
+			}
+		}
+		int idx = count++;
+		owners[idx] = owner;
+		if (states != null) {
+			Arrays.fill(states, idx * species, (idx + 1) * species, 0.0);
+		} else {
+			for (int s = 0; s < species; s++) {
+				set(idx, s, 0.0);
+			}
+		}
+		return idx;
+	}
+
+	/**
+	 * Frees a slot. The last cell is moved into it and told its new index
+	 * @param idx the slot to free
+	 */
+	public void release(int idx) {
+		int last = --count;
+		if (idx != last) {
+			if (states != null) {
+				System.arraycopy(states, last * species, states, idx * species, species);
+			} else {
+				for (int s = 0; s < species; s++) {
+					set(idx, s, get(last, s));
+				}
+			}
+			owners[idx] = owners[last];
+			owners[idx].setStateIndex(idx);
+		}
+		owners[last] = null;
+	}
+
+	/**
+	 * The backing array. It is replaced when the store grows, so don't keep it across ticks
+	 * @throws IllegalStateException if the states are off-heap
+	 */
+	public double[] getStates() {
+		if (states == null) {
+			throw new IllegalStateException("Network states are off-heap; use get, set, copyOut or copyIn");
+		}
+		return states;
+	}
+
+	/**
+	 * @return false if the states are off-heap and getStates can't be used
+	 */
+	public boolean isOnHeap() {
+		return states != null;
+	}
+
+	/**
+	 * @return bytes of state storage per cell
+	 */
+	public int getBytesPerCell() {
+		return species * bytesPerValue;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int getSpeciesCount() {
+		return species;
+	}
+
+	public int offset(int idx) {
+		return idx * species;
+	}
+
+	public Fibroblast getOwner(int idx) {
+		return owners[idx];
+	}
+
+	public double get(int idx, int s) {
+		if (states != null) {
+			return states[idx * species + s];
+		}
+		int pos = (idx & SEGMENT_MASK) * species + s;
+		return floats != null ? floats[idx >>> SEGMENT_SHIFT].get(pos) : doubles[idx >>> SEGMENT_SHIFT].get(pos);
+	}
+
+	public void set(int idx, int s, double value) {
+		if (states != null) {
+			states[idx * species + s] = value;
+			return;
+		}
+		int pos = (idx & SEGMENT_MASK) * species + s;
+		if (floats != null) {
+			floats[idx >>> SEGMENT_SHIFT].put(pos, (float) value);
+		} else {
+			doubles[idx >>> SEGMENT_SHIFT].put(pos, value);
+		}
+	}
+
+	public void copyIn(int idx, double[] src) {
+		copyIn(idx, 1, src);
+	}
+
+	public void copyOut(int idx, double[] dst) {
+		copyOut(idx, 1, dst);
+	}
+
+	/**
+	 * Copies the states of cells first..first+n-1 into dst, cell-major from dst[0]
+	 */
+	public void copyOut(int first, int n, double[] dst) {
+		if (states != null) {
+			System.arraycopy(states, first * species, dst, 0, n * species);
+			return;
+		}
+		int done = 0;
+		while (done < n) {
+			int idx = first + done;
+			int m = Math.min(n - done, SEGMENT_CELLS - (idx & SEGMENT_MASK)); //cells left in this segment
+			int pos = (idx & SEGMENT_MASK) * species;
+			if (floats != null) {
+				FloatBuffer f = floats[idx >>> SEGMENT_SHIFT];
+				for (int k = 0; k < m * species; k++) {
+					dst[done * species + k] = f.get(pos + k);
+				}
+			} else {
+				DoubleBuffer d = doubles[idx >>> SEGMENT_SHIFT].duplicate();
+				d.position(pos);
+				d.get(dst, done * species, m * species);
+			}
+			done += m;
+		}
+	}
+
+	/**
+	 * Copies cell-major states from src[0] into cells first..first+n-1
+	 */
+	public void copyIn(int first, int n, double[] src) {
+		if (states != null) {
+			System.arraycopy(src, 0, states, first * species, n * species);
+			return;
+		}
+		int done = 0;
+		while (done < n) {
+			int idx = first + done;
+			int m = Math.min(n - done, SEGMENT_CELLS - (idx & SEGMENT_MASK));
+			int pos = (idx & SEGMENT_MASK) * species;
+			if (floats != null) {
+				FloatBuffer f = floats[idx >>> SEGMENT_SHIFT];
+				for (int k = 0; k < m * species; k++) {
+					f.put(pos + k, (float) src[done * species + k]);
+				}
+			} else {
+				DoubleBuffer d = doubles[idx >>> SEGMENT_SHIFT].duplicate();
+				d.position(pos);
+				d.put(src, done * species, m * species);
+			}
+			done += m;
+		}
+	}
+
+	/**
+	 * Releases the off-heap file. The store can't be used afterwards
+	 */
+	public void close() {
+		if (backing != null) {
+			try {
+				backing.close();
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+			backingFile.delete();
+			backing = null;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * Stand-in for an out-of-process network solver
+ * Started by SharedMemoryNetworkSolver; solves with the java network and exchanges
+ * states through a NetworkExchange file. Commands arrive on stdin, replies go to stdout,
+ * so nothing else may be printed to stdout
+ *
+ * Usage: NetworkWorker exchangeFile network.mat initialNet.mat threads [ode23|ode23s|ode23lanes|ode23lockstep]
+ */
+package aMFAC_REU;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class NetworkWorker {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: NetworkWorker exchangeFile network.mat initialNet.mat threads"
+					+ " [ode23|ode23s|ode23lanes|ode23lockstep]");
+			System.exit(2);
+		}
+		//replies need stdout to themselves, so anything the solver prints goes to stderr
+		OutputStream out = System.out;
+		System.setOut(System.err);
+		String method = args.length > 4 ? args[4] : "ode23";
+		JavaNetworkSolver solver = new JavaNetworkSolver(new File(args[1]), new File(args[2]), method,
+				Integer.parseInt(args[3]));
+		solver.loadInitialState();
+		NetworkExchange exchange = NetworkExchange.open(new File(args[0]));
+
+		InputStream in = new BufferedInputStream(System.in);
+
+		int cmd;
+		//the client closing our stdin (or dying) ends the worker
+		while ((cmd = in.read()) != -1 && cmd != NetworkExchange.CMD_QUIT) {
+			int reply = NetworkExchange.REPLY_OK;
+			try {
+				if (cmd == NetworkExchange.CMD_REMAP) {
+					exchange.remap();
+				} else if (cmd == NetworkExchange.CMD_SOLVE) {
+					//integrated in place in the mapped file
+					int n = exchange.getCount();
+					int failures = solver.solve(exchange.getStateBuffer(), exchange.getInputBuffer(), n);
+					exchange.setFailures(failures);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				reply = NetworkExchange.REPLY_ERROR;
+			}
+			out.write(reply);
+			out.flush();
+		}
+		solver.close();
+		exchange.close();
+	}
+}
@@ -0,0 +1,662 @@
+/**
+ * Output streams declared in a text file instead of hard-coded in writeOutputData
+ *
+ * One observable per line: name = expression [| options]. Lines starting with # are comments.
+ * An expression combines numbers, + - * /, parentheses, min(a,b), max(a,b), abs(a),
+ * network species of a cell as s[87] or s[CImRNA], and value layers by name (collagen, TGFB, ...).
+ * Expressions that use a species give one value per cell, in grid order; the others give one value
+ * per grid site. Options:
+ *   nodelim     csv rows don't end with a delimiter
+ *   every N     only write ticks that are a multiple of N
+ *   change TOL  only write a tick when some value moved more than TOL since the last written tick
+ *   delta K     binary output stores changes from the previous tick, with a full keyframe every K ticks
+ * The csv files of streams with every or change skip ticks, so their rows start with the tick.
+ *
+ * All observables are compiled once and evaluated together in one pass over the sites and one
+ * pass over the cells, so an observable that isn't listed costs nothing
+ */
+package aMFAC_REU;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import repast.simphony.valueLayer.ValueLayer;
+
+public class ObservableRegistry {
+
+	//the outputs writeOutputData has always written
+	public static final String[] DEFAULT_DEFINITIONS = {
+		"collagen = collagen | nodelim",
+		"tgfb = TGFB",
+		"LatentTgfb = LatentTGFB",
+		"deposition = (s[87] + s[88]) / 2",
+		"degradation = (s[81] + s[82] + s[83]) / 3",
+		"MMP1 = s[81]",
+		"MMP2 = s[82]",
+		"MMP9 = s[83]",
+		"MMP14 = s[84]",
+		"ColI = s[89]",
+		"ColIII = s[90]",
+	};
+
+	static final int OP_CONST = 0;
+	static final int OP_STATE = 1;
+	static final int OP_LAYER = 2;
+	static final int OP_ADD = 3;
+	static final int OP_SUB = 4;
+	static final int OP_MUL = 5;
+	static final int OP_DIV = 6;
+	static final int OP_NEG = 7;
+	static final int OP_MIN = 8;
+	static final int OP_MAX = 9;
+	static final int OP_ABS = 10;
+
+	/**
+	 * One compiled output stream
+	 */
+	public static class Observable {
+		final String name;
+		final boolean perCell;
+		final int[] code;
+		final double[] consts;
+		boolean trailingDelimiter = true;
+		int every = 1;
+		double changeTolerance = -1; //negative: write every (sampled) tick
+		int keyframeInterval = 0; //0: no delta encoding
+		double[] lastWritten;
+
+		Observable(String name, boolean perCell, int[] code, double[] consts) {
+			this.name = name;
+			this.perCell = perCell;
+			this.code = code;
+			this.consts = consts;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isPerCell() {
+			return perCell;
+		}
+	}
+
+	private final Observable[] observables;
+	private final ValueLayer[] layers;
+	private final int[] usedLayers; //layers read by any observable
+	private final boolean cellsUseLayers;
+	private final double[] layerValues;
+	private final double[] stack;
+
+	/**
+	 * Reads the observables of a file
+	 * @param layers value layers expressions may refer to by name
+	 * @param speciesNames names usable as s[name], may be empty
+	 * @param species number of network species per cell
+	 */
+	public static ObservableRegistry load(File file, ValueLayer[] layers, String[] speciesNames, int species)
+			throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			br.close();
+		}
+		return new ObservableRegistry(lines, file.getName(), layers, speciesNames, species);
+	}
+
+	/**
+	 * @param lines definitions, one per line
+	 * @param source name used in error messages
+	 */
+	public ObservableRegistry(List<String> lines, String source, ValueLayer[] layers, String[] speciesNames,
+			int species) throws IOException {
+		this.layers = layers;
+		List<Observable> list = new ArrayList<Observable>();
+		boolean[] layerUsed = new boolean[layers.length];
+		boolean cellLayers = false;
+		int depth = 1;
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String where = source + ":" + (i + 1) + ": ";
+			int eq = line.indexOf('=');
+			if (eq <= 0) {
+				throw new IOException(where + "expected name = expression");
+			}
+			String name = line.substring(0, eq).trim();
+			String rest = line.substring(eq + 1);
+			String options = "";
+			int bar = rest.indexOf('|');
+			if (bar >= 0) {
+				options = rest.substring(bar + 1).trim();
+				rest = rest.substring(0, bar);
+			}
+			for (Observable o : list) {
+				if (o.name.equals(name)) {
+					throw new IOException(where + "observable " + name + " is defined twice");
+				}
+			}
+			Compiler c = new Compiler(rest, where, layers, speciesNames, species);
+			Observable o = new Observable(name, c.perCell, c.code(), c.consts());
+			String[] words = options.split("[\\s,]+");
+			for (int w = 0; w < words.length; w++) {
+				String option = words[w];
+				if (option.isEmpty()) {
+					continue;
+				} else if (option.equalsIgnoreCase("nodelim")) {
+					o.trailingDelimiter = false;
+				} else if (option.equalsIgnoreCase("every")) {
+					o.every = (int) optionValue(words, ++w, where, option);
+				} else if (option.equalsIgnoreCase("change")) {
+					o.changeTolerance = optionValue(words, ++w, where, option);
+				} else if (option.equalsIgnoreCase("delta")) {
+					o.keyframeInterval = (int) optionValue(words, ++w, where, option);
+				} else {
+					throw new IOException(where + "unknown option " + option);
+				}
+			}
+			for (int l = 0; l < layers.length; l++) {
+				layerUsed[l] |= c.layerUsed[l];
+				cellLayers |= c.perCell && c.layerUsed[l];
+			}
+			depth = Math.max(depth, c.maxDepth);
+			list.add(o);
+		}
+		if (list.isEmpty()) {
+			throw new IOException(source + ": no observables");
+		}
+		observables = list.toArray(new Observable[list.size()]);
+		int used = 0;
+		int[] u = new int[layers.length];
+		for (int l = 0; l < layers.length; l++) {
+			if (layerUsed[l]) {
+				u[used++] = l;
+			}
+		}
+		usedLayers = Arrays.copyOf(u, used);
+		cellsUseLayers = cellLayers;
+		layerValues = new double[layers.length];
+		stack = new double[depth];
+	}
+
+	private static double optionValue(String[] words, int w, String where, String option) throws IOException {
+		double v = -1;
+		if (w < words.length) {
+			try {
+				v = Double.parseDouble(words[w]);
+			} catch (NumberFormatException e) {
+				v = -1;
+			}
+		}
+		if (!(v >= 0) || (!option.equalsIgnoreCase("change") && (v < 1 || v != Math.floor(v)))) {
+			throw new IOException(where + option + " needs a " + (option.equalsIgnoreCase("change")
+					? "tolerance >= 0" : "whole number >= 1"));
+		}
+		return v;
+	}
+
+	public int size() {
+		return observables.length;
+	}
+
+	public Observable get(int i) {
+		return observables[i];
+	}
+
+	public String[] getNames() {
+		String[] names = new String[observables.length];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = observables[i].name;
+		}
+		return names;
+	}
+
+	public boolean[] getTrailingDelimiters() {
+		boolean[] t = new boolean[observables.length];
+		for (int i = 0; i < t.length; i++) {
+			t[i] = observables[i].trailingDelimiter;
+		}
+		return t;
+	}
+
+	/**
+	 * @return true for the observables that skip ticks (every N or change TOL)
+	 */
+	public boolean[] getSampled() {
+		boolean[] sampled = new boolean[observables.length];
+		for (int i = 0; i < sampled.length; i++) {
+			sampled[i] = observables[i].every > 1 || observables[i].changeTolerance >= 0;
+		}
+		return sampled;
+	}
+
+	/**
+	 * @return keyframe interval of every observable, 0 where delta encoding is off
+	 */
+	public int[] getKeyframeIntervals() {
+		int[] k = new int[observables.length];
+		for (int i = 0; i < k.length; i++) {
+			k[i] = observables[i].keyframeInterval;
+		}
+		return k;
+	}
+
+	/**
+	 * @return bytes saveState writes
+	 */
+	public int stateBytes() {
+		int bytes = 4;
+		for (Observable o : observables) {
+			bytes += 4 + (o.lastWritten != null ? 8*o.lastWritten.length : 0);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the last values written by every change-gated observable, for checkpoints
+	 */
+	public void saveState(ByteBuffer b) {
+		b.putInt(observables.length);
+		for (Observable o : observables) {
+			double[] last = o.lastWritten;
+			b.putInt(last != null ? last.length : -1);
+			if (last != null) {
+				for (int i = 0; i < last.length; i++) {
+					b.putDouble(last[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads what saveState wrote
+	 */
+	public void restoreState(ByteBuffer b) throws IOException {
+		int n = b.getInt();
+		if (n != observables.length) {
+			throw new IOException("checkpoint has " + n + " observables, the model has " + observables.length);
+		}
+		for (Observable o : observables) {
+			int length = b.getInt();
+			o.lastWritten = length < 0 ? null : new double[length];
+			for (int i = 0; i < length; i++) {
+				o.lastWritten[i] = b.getDouble();
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the observables that are due this tick
+	 * Observables sampled every N ticks are only computed on their ticks; observables with a change
+	 * tolerance are computed and then dropped if no value moved more than the tolerance
+	 * Sites are visited row by row, y from 0 to gridHeight, then x from 0 to gridWidth (site = y*gridWidth + x)
+	 * @param tick the current tick
+	 * @param states cell-major network states
+	 * @param species species per cell
+	 * @param order store slots in grid order in order[0..cells-1]; the site of slot i is order[n + i]
+	 * @param cells number of cells to output
+	 * @param n number of cells in the store
+	 * @return one array per observable, in definition order; null for observables not written this tick
+	 */
+	public double[][] evaluate(double tick, double[] states, int species, int[] order, int cells, int n,
+			int gridWidth, int gridHeight) {
+		return evaluate(tick, states, species, null, order, cells, n, gridWidth, gridHeight);
+	}
+
+	/**
+	 * Evaluates from a NetworkStateStore, on-heap or off-heap; off-heap cells are copied out one at a time
+	 */
+	public double[][] evaluate(double tick, NetworkStateStore store, int[] order, int cells, int n,
+			int gridWidth, int gridHeight) {
+		if (store.isOnHeap()) {
+			return evaluate(tick, store.getStates(), store.getSpeciesCount(), order, cells, n, gridWidth, gridHeight);
+		}
+		return evaluate(tick, new double[store.getSpeciesCount()], store.getSpeciesCount(), store, order, cells, n,
+				gridWidth, gridHeight);
+	}
+
+	//states holds every cell, or only the current one when it is copied out of offHeap
+	private double[][] evaluate(double tick, double[] states, int species, NetworkStateStore offHeap, int[] order,
+			int cells, int n, int gridWidth, int gridHeight) {
+		int sites = gridWidth*gridHeight;
+		double[][] values = new double[observables.length][];
+		boolean anySite = false, anyCell = false;
+		long t = Math.round(tick);
+		for (int i = 0; i < observables.length; i++) {
+			Observable o = observables[i];
+			if (t % o.every == 0) {
+				values[i] = new double[o.perCell ? cells : sites];
+				anySite |= !o.perCell;
+				anyCell |= o.perCell;
+			}
+		}
+
+		if (anySite) {
+			int k = 0;
+			for (int y = 0; y < gridHeight; y++) {
+				for (int x = 0; x < gridWidth; x++) {
+					readLayers(x, y);
+					for (int i = 0; i < observables.length; i++) {
+						Observable o = observables[i];
+						if (!o.perCell && values[i] != null) {
+							values[i][k] = run(o, states, 0);
+						}
+					}
+					k++;
+				}
+			}
+		}
+
+		if (anyCell) {
+			for (int k = 0; k < cells; k++) {
+				int slot = order[k];
+				if (cellsUseLayers) {
+					int site = order[n + slot];
+					readLayers(site % gridWidth, site / gridWidth);
+				}
+				int off = slot*species;
+				if (offHeap != null) {
+					offHeap.copyOut(slot, states);
+					off = 0;
+				}
+				for (int i = 0; i < observables.length; i++) {
+					Observable o = observables[i];
+					if (o.perCell && values[i] != null) {
+						values[i][k] = run(o, states, off);
+					}
+				}
+			}
+		}
+
+		for (int i = 0; i < observables.length; i++) {
+			Observable o = observables[i];
+			if (values[i] != null && o.changeTolerance >= 0) {
+				if (changed(o.lastWritten, values[i], o.changeTolerance)) {
+					o.lastWritten = values[i];
+				} else {
+					values[i] = null;
+				}
+			}
+		}
+		return values;
+	}
+
+	private static boolean changed(double[] last, double[] v, double tol) {
+		if (last == null || last.length != v.length) {
+			return true;
+		}
+		for (int i = 0; i < v.length; i++) {
+			if (!(Math.abs(v[i] - last[i]) <= tol)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void readLayers(int x, int y) {
+		for (int l : usedLayers) {
+			ValueLayer layer = layers[l];
+			//field layers are read without the varargs array
+			layerValues[l] = layer instanceof FieldValueLayer ? ((FieldValueLayer) layer).get(x, y) : layer.get(x, y);
+		}
+	}
+
+	private double run(Observable o, double[] states, int off) {
+		int[] code = o.code;
+		double[] s = stack;
+		int sp = -1;
+		for (int pc = 0; pc < code.length; pc++) {
+			switch (code[pc]) {
+			case OP_CONST: s[++sp] = o.consts[code[++pc]]; break;
+			case OP_STATE: s[++sp] = states[off + code[++pc]]; break;
+			case OP_LAYER: s[++sp] = layerValues[code[++pc]]; break;
+			case OP_ADD: sp--; s[sp] = s[sp] + s[sp + 1]; break;
+			case OP_SUB: sp--; s[sp] = s[sp] - s[sp + 1]; break;
+			case OP_MUL: sp--; s[sp] = s[sp] * s[sp + 1]; break;
+			case OP_DIV: sp--; s[sp] = s[sp] / s[sp + 1]; break;
+			case OP_NEG: s[sp] = -s[sp]; break;
+			case OP_MIN: sp--; s[sp] = Math.min(s[sp], s[sp + 1]); break;
+			case OP_MAX: sp--; s[sp] = Math.max(s[sp], s[sp + 1]); break;
+			case OP_ABS: s[sp] = Math.abs(s[sp]); break;
+			default: throw new IllegalStateException("bad opcode " + code[pc]);
+			}
+		}
+		return s[0];
+	}
+
+	/**
+	 * Recursive descent compiler from an expression to stack code
+	 */
+	private static class Compiler {
+		private final String text;
+		private final String where;
+		private final ValueLayer[] layers;
+		private final String[] speciesNames;
+		private final int species;
+		private int pos;
+
+		private int[] code = new int[16];
+		private int codeLength;
+		private double[] consts = new double[4];
+		private int constCount;
+		private int depth;
+		int maxDepth;
+		boolean perCell;
+		final boolean[] layerUsed;
+
+		Compiler(String text, String where, ValueLayer[] layers, String[] speciesNames, int species)
+				throws IOException {
+			this.text = text;
+			this.where = where;
+			this.layers = layers;
+			this.speciesNames = speciesNames;
+			this.species = species;
+			layerUsed = new boolean[layers.length];
+			expression();
+			skipSpaces();
+			if (pos < text.length()) {
+				throw error("unexpected '" + text.charAt(pos) + "'");
+			}
+		}
+
+		int[] code() {
+			return Arrays.copyOf(code, codeLength);
+		}
+
+		double[] consts() {
+			return Arrays.copyOf(consts, constCount);
+		}
+
+		private void expression() throws IOException {
+			term();
+			while (true) {
+				if (accept('+')) {
+					term();
+					emit(OP_ADD, -1);
+				} else if (accept('-')) {
+					term();
+					emit(OP_SUB, -1);
+				} else {
+					return;
+				}
+			}
+		}
+
+		private void term() throws IOException {
+			unary();
+			while (true) {
+				if (accept('*')) {
+					unary();
+					emit(OP_MUL, -1);
+				} else if (accept('/')) {
+					unary();
+					emit(OP_DIV, -1);
+				} else {
+					return;
+				}
+			}
+		}
+
+		private void unary() throws IOException {
+			if (accept('-')) {
+				unary();
+				emit(OP_NEG, 0);
+			} else {
+				primary();
+			}
+		}
+
+		private void primary() throws IOException {
+			skipSpaces();
+			if (pos >= text.length()) {
+				throw error("unexpected end of expression");
+			}
+			char ch = text.charAt(pos);
+			if (accept('(')) {
+				expression();
+				expect(')');
+			} else if (Character.isDigit(ch) || ch == '.') {
+				int start = pos;
+				while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.'
+						|| text.charAt(pos) == 'e' || text.charAt(pos) == 'E'
+						|| ((text.charAt(pos) == '-' || text.charAt(pos) == '+')
+								&& (text.charAt(pos - 1) == 'e' || text.charAt(pos - 1) == 'E')))) {
+					pos++;
+				}
+				double v;
+				try {
+					v = Double.parseDouble(text.substring(start, pos));
+				} catch (NumberFormatException e) {
+					throw error("bad number " + text.substring(start, pos));
+				}
+				if (constCount == consts.length) {
+					consts = Arrays.copyOf(consts, 2*constCount);
+				}
+				consts[constCount] = v;
+				emit(OP_CONST, 1);
+				emitArg(constCount++);
+			} else if (Character.isLetter(ch) || ch == '_') {
+				String id = identifier();
+				if (id.equals("s") && accept('[')) {
+					state();
+				} else if (id.equals("min") || id.equals("max") || id.equals("abs")) {
+					expect('(');
+					expression();
+					if (id.equals("abs")) {
+						emit(OP_ABS, 0);
+					} else {
+						expect(',');
+						expression();
+						emit(id.equals("min") ? OP_MIN : OP_MAX, -1);
+					}
+					expect(')');
+				} else {
+					layer(id);
+				}
+			} else {
+				throw error("unexpected '" + ch + "'");
+			}
+		}
+
+		//s[index] or s[name]; the opening bracket has been read
+		private void state() throws IOException {
+			int close = text.indexOf(']', pos);
+			if (close < 0) {
+				throw error("missing ]");
+			}
+			String ref = text.substring(pos, close).trim();
+			pos = close + 1;
+			int idx = -1;
+			try {
+				idx = Integer.parseInt(ref);
+			} catch (NumberFormatException e) {
+				for (int i = 0; i < speciesNames.length; i++) {
+					if (speciesNames[i].equals(ref)) {
+						idx = i;
+						break;
+					}
+				}
+				if (idx < 0) {
+					throw error("unknown species " + ref);
+				}
+			}
+			if (idx < 0 || idx >= species) {
+				throw error("species index " + idx + " out of range");
+			}
+			perCell = true;
+			emit(OP_STATE, 1);
+			emitArg(idx);
+		}
+
+		private void layer(String id) throws IOException {
+			for (int l = 0; l < layers.length; l++) {
+				if (layers[l].getName().equals(id)) {
+					layerUsed[l] = true;
+					emit(OP_LAYER, 1);
+					emitArg(l);
+					return;
+				}
+			}
+			throw error("unknown value layer " + id);
+		}
+
+		private String identifier() {
+			int start = pos;
+			while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+				pos++;
+			}
+			return text.substring(start, pos);
+		}
+
+		private void emit(int op, int stackChange) {
+			emitArg(op);
+			depth += stackChange;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		private void emitArg(int v) {
+			if (codeLength == code.length) {
+				code = Arrays.copyOf(code, 2*codeLength);
+			}
+			code[codeLength++] = v;
+		}
+
+		private void skipSpaces() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private boolean accept(char ch) {
+			skipSpaces();
+			if (pos < text.length() && text.charAt(pos) == ch) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(char ch) throws IOException {
+			if (!accept(ch)) {
+				throw error("expected '" + ch + "'");
+			}
+		}
+
+		private IOException error(String message) {
+			return new IOException(where + message + " in '" + text.trim() + "'");
+		}
+	}
+}
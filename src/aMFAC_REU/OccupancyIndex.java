@@ -0,0 +1,96 @@
+/**
+ * Number of fibroblasts at every grid point, kept next to the Repast grid
+ * Neighbourhood capacity checks read a plain int array instead of building GridCells,
+ * so moving a cell allocates nothing. Every add, move and remove of a cell must go through here
+ */
+package aMFAC_REU;
+
+import repast.simphony.space.grid.Grid;
+import repast.simphony.space.grid.GridPoint;
+
+public class OccupancyIndex {
+
+	private final Grid<Object> grid;
+	private final int width, height;
+	private final int[] counts; //indexed y*width + x
+
+	public OccupancyIndex(Grid<Object> grid, int width, int height) {
+		this.grid = grid;
+		this.width = width;
+		this.height = height;
+		counts = new int[width * height];
+	}
+
+	/**
+	 * Counts an object that was just placed on the grid
+	 */
+	public void add(Object o) {
+		GridPoint pt = grid.getLocation(o);
+		counts[pt.getY() * width + pt.getX()]++;
+	}
+
+	/**
+	 * Uncounts an object that is about to leave the grid
+	 */
+	public void remove(Object o) {
+		GridPoint pt = grid.getLocation(o);
+		if (pt != null) {
+			counts[pt.getY() * width + pt.getX()]--;
+		}
+	}
+
+	/**
+	 * Moves an object on the grid and updates the counts if the grid accepted the move
+	 */
+	public boolean moveTo(Object o, int x, int y) {
+		GridPoint from = grid.getLocation(o);
+		if (!grid.moveTo(o, x, y)) {
+			return false;
+		}
+		counts[from.getY() * width + from.getX()]--;
+		counts[y * width + x]++;
+		return true;
+	}
+
+	public int count(int x, int y) {
+		return counts[y * width + x];
+	}
+
+	/**
+	 * @return whether (x,y) is on the grid and holds fewer than capacity objects
+	 */
+	public boolean isOpen(int x, int y, int capacity) {
+		return x >= 0 && y >= 0 && x < width && y < height && counts[y * width + x] < capacity;
+	}
+
+	/**
+	 * Picks a uniformly random point of the Moore neighbourhood of (x,y), the point itself included,
+	 * that holds fewer than capacity objects. Points off the grid are skipped
+	 * @return the site y*width + x, or -1 if every point is full
+	 */
+	public int pickOpenSite(int x, int y, int capacity) {
+		int chosen = -1;
+		int seen = 0;
+		for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+			for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+				int site = ny * width + nx;
+				if (counts[site] < capacity) {
+					//reservoir sampling with the run's generator: keep the k-th open site with probability 1/k
+					seen++;
+					if (ModelRun.nextIntFromTo(0, seen - 1) == 0) {
+						chosen = site;
+					}
+				}
+			}
+		}
+		return chosen;
+	}
+
+	public int getX(int site) {
+		return site % width;
+	}
+
+	public int getY(int site) {
+		return site / width;
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * Moves result writing off the simulation thread
+ * The simulation thread only submits a TickSnapshot; a background thread formats and writes it
+ * to the sinks. The bounded queue makes the simulation wait if the disk can't keep up.
+ * A sink that throws is reported on stderr, once per sink, and the writer keeps draining;
+ * if the writer thread dies anyway, submit and close fail instead of waiting on a queue nobody takes from.
+ * saveState waits until everything submitted so far is on disk, so checkpoints record where the files end
+ */
+package aMFAC_REU;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class OutputPipeline {
+
+	//marks the end of the queue
+	private static final TickSnapshot END = new TickSnapshot(Double.NaN, new double[0][]);
+	//makes the writer flush the sinks and release synced
+	private static final TickSnapshot SYNC = new TickSnapshot(Double.NaN, new double[0][]);
+
+	private final List<ResultSink> sinks = new ArrayList<ResultSink>();
+	private final BlockingQueue<TickSnapshot> queue;
+	private final Thread writer;
+	private final List<ResultSink> failed = new ArrayList<ResultSink>(); //sinks already reported, writer thread only
+	private volatile boolean stopped = false; //the writer thread has ended
+	private final Semaphore synced = new Semaphore(0);
+
+	/**
+	 * @param queueSize snapshots that may wait to be written
+	 */
+	public OutputPipeline(int queueSize) {
+		queue = new ArrayBlockingQueue<TickSnapshot>(queueSize);
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "AMFAC output writer");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Sinks must be added before the first snapshot is submitted
+	 */
+	public void addSink(ResultSink sink) {
+		sinks.add(sink);
+	}
+
+	/**
+	 * @return bytes of stream written by all sinks so far
+	 */
+	public long getBytesWritten(int stream) {
+		long sum = 0;
+		for (ResultSink sink : sinks) {
+			sum += sink.getBytesWritten(stream);
+		}
+		return sum;
+	}
+
+	public void start() {
+		writer.start();
+	}
+
+	/**
+	 * Queues a snapshot, waiting if the queue is full
+	 * @throws IllegalStateException if the writer thread has stopped
+	 */
+	public void submit(TickSnapshot snapshot) {
+		try {
+			while (stopped || !queue.offer(snapshot, 100, TimeUnit.MILLISECONDS)) {
+				if (stopped) {
+					throw new IllegalStateException("The output writer has stopped, results can't be written");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits until every snapshot submitted so far is written and flushed, then saves the state of the sinks
+	 * @return the state for resume
+	 * @throws IllegalStateException if the writer thread has stopped
+	 */
+	public byte[] saveState() throws IOException {
+		submit(SYNC);
+		try {
+			while (!synced.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+				if (stopped) {
+					throw new IllegalStateException("The output writer has stopped, results can't be written");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the output writer");
+		}
+		//the writer is waiting for the next snapshot and the semaphore made its writes visible here
+		int bytes = 4;
+		for (ResultSink sink : sinks) {
+			bytes += 4 + sink.stateBytes();
+		}
+		ByteBuffer b = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(sinks.size());
+		for (ResultSink sink : sinks) {
+			b.putInt(sink.stateBytes());
+			sink.saveState(b);
+		}
+		return b.array();
+	}
+
+	/**
+	 * Continues the result files from a saveState, before start
+	 */
+	public void resume(byte[] state) throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(state).order(ByteOrder.LITTLE_ENDIAN);
+		int n = b.getInt();
+		if (n != sinks.size()) {
+			throw new IOException("checkpoint has " + n + " output sinks, the model has " + sinks.size()
+					+ " (was outputFormat changed?)");
+		}
+		for (ResultSink sink : sinks) {
+			int length = b.getInt();
+			ByteBuffer part = b.slice().order(ByteOrder.LITTLE_ENDIAN);
+			part.limit(length);
+			sink.resume(part);
+			b.position(b.position() + length);
+		}
+	}
+
+	/**
+	 * Writes everything still queued, then flushes and closes the sinks
+	 */
+	public void close() {
+		if (!stopped) {
+			try {
+				submit(END);
+			} catch (IllegalStateException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drain() {
+		try {
+			drainQueue();
+		} finally {
+			stopped = true;
+		}
+	}
+
+	private void drainQueue() {
+		while (true) {
+			TickSnapshot s;
+			try {
+				s = queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (s == END) {
+				break;
+			}
+			if (s == SYNC) {
+				for (ResultSink sink : sinks) {
+					try {
+						sink.flush();
+					} catch (Throwable e) {
+						report(sink, e);
+					}
+				}
+				synced.release();
+				continue;
+			}
+			for (ResultSink sink : sinks) {
+				try {
+					sink.write(s);
+				} catch (Throwable e) {
+					//keep the simulation running and the queue moving
+					report(sink, e);
+				}
+			}
+		}
+		for (ResultSink sink : sinks) {
+			try {
+				sink.close();
+			} catch (Throwable e) {
+				System.err.println("Error while closing " + sink + " !!!");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	//the first error of each sink, later ones would only repeat it every tick
+	private void report(ResultSink sink, Throwable e) {
+		if (!failed.contains(sink)) {
+			failed.add(sink);
+			System.err.println("Error while writing " + sink + ", its results are incomplete !!!");
+			e.printStackTrace();
+		}
+	}
+}
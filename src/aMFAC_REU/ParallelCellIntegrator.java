@@ -0,0 +1,299 @@
+/**
+ * Integrates the networks of many cells for one tick on a fork-join pool
+ * With ode23, ode23s and ode23lanes each cell is solved independently, so the results are
+ * bit-identical to the single-threaded path for any number of threads (ode23lanes also to ode23).
+ * The lane methods hand each thread ranges of cells for a LaneIntegrator, which integrates one cell per
+ * SIMD lane; without the Vector API they fall back to ode23 cell by cell. Ranges are only split at multiples
+ * of LANE_WINDOW, so the lanes of a block always hold the same window of cell indices.
+ * ode23lockstep gives the cells of a window one step size, so a cell's result still depends on which cells
+ * share its window: it changes with the cells that are integrated at all (network cache misses, quiescence,
+ * births and deaths). Use it for speed, not for runs that must reproduce
+ */
+package aMFAC_REU;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelCellIntegrator {
+
+	//cells per leaf task; large enough to hide the task overhead, small enough to balance
+	private static final int GRAIN = 16;
+	
+	/**
+	 * Cells a range is split at a multiple of, and that callers splitting cells between solvers should
+	 * align to (the off-heap chunks of AMFACSpace); a multiple of any lane count
+	 */
+	public static final int LANE_WINDOW = 64;
+
+	private final SaucermanNetwork network;
+	private final String method;
+	private final int threads;
+	private final ForkJoinPool pool;
+	private final int grain;
+	private final AtomicInteger failures = new AtomicInteger();
+
+	//one solver and weight vector per worker thread
+	private final ThreadLocal<CellIntegrator> solvers;
+	private final ThreadLocal<double[]> weights;
+	private final ThreadLocal<double[][]> blocks; //states and inputs of one task's cells, for buffer input
+	private final LaneIntegrator lanes; //null unless a lane method runs on the Vector API
+	private final ThreadLocal<LaneIntegrator> laneSolvers;
+	private final List<SolverStatistics> created = new ArrayList<SolverStatistics>(); //for the step counts
+
+	/**
+	 * @param network the compiled network
+	 * @param method "ode23" (explicit Bogacki-Shampine), "ode23s" (Rosenbrock, for stiff regimes), or
+	 *   "ode23lanes" (ode23 on SIMD lanes, step size per lane) or "ode23lockstep" (one step size per block of lanes)
+	 * @param threads worker threads; 0 or less uses every available core, 1 runs on the calling thread
+	 */
+	public ParallelCellIntegrator(final SaucermanNetwork network, String method, int threads) {
+		this.network = network;
+		this.method = method;
+		createSolver(network, method); //fail here on an unknown method, not in a worker thread
+		this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		pool = this.threads > 1 ? new ForkJoinPool(this.threads) : null;
+		lanes = isLaneMethod(method) ? VectorSupport.load("auto", "aMFAC_REU.VectorLaneIntegrator",
+				LaneIntegrator.class, null, new Class<?>[] {SaucermanNetwork.class, boolean.class}, network,
+				method.equalsIgnoreCase("ode23lockstep")) : null;
+		//a leaf task needs enough cells to keep every lane busy
+		grain = lanes != null ? Math.max(GRAIN * lanes.getLanes(), LANE_WINDOW) : GRAIN;
+		if (lanes != null && LANE_WINDOW % lanes.getLanes() != 0) {
+			throw new IllegalStateException(lanes + " doesn't divide LANE_WINDOW " + LANE_WINDOW);
+		}
+		solvers = new ThreadLocal<CellIntegrator>() {
+			@Override
+			protected CellIntegrator initialValue() {
+				CellIntegrator solver = createSolver(network, ParallelCellIntegrator.this.method);
+				synchronized (created) {
+					created.add(solver);
+				}
+				return solver;
+			}
+		};
+		weights = new ThreadLocal<double[]>() {
+			@Override
+			protected double[] initialValue() {
+				return network.createWeights();
+			}
+		};
+		blocks = new ThreadLocal<double[][]>() {
+			@Override
+			protected double[][] initialValue() {
+				return new double[2][0];
+			}
+		};
+		laneSolvers = new ThreadLocal<LaneIntegrator>() {
+			@Override
+			protected LaneIntegrator initialValue() {
+				LaneIntegrator solver = lanes.create();
+				synchronized (created) {
+					created.add(solver);
+				}
+				return solver;
+			}
+		};
+	}
+
+	/**
+	 * Creates the per-cell integrator named by networkMethod
+	 */
+	public static CellIntegrator createSolver(SaucermanNetwork network, String method) {
+		if (method.equalsIgnoreCase("ode23") || isLaneMethod(method)) {
+			return new BogackiShampineSolver(network);
+		} else if (method.equalsIgnoreCase("ode23s")) {
+			return new RosenbrockSolver(network);
+		}
+		throw new IllegalArgumentException("Unknown network method " + method
+				+ " (use ode23, ode23s, ode23lanes or ode23lockstep)");
+	}
+
+	/**
+	 * @return true for the methods that integrate one cell per SIMD lane
+	 */
+	public static boolean isLaneMethod(String method) {
+		return method.equalsIgnoreCase("ode23lanes") || method.equalsIgnoreCase("ode23lockstep");
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	//splits from..to in half at a multiple of LANE_WINDOW, so lane blocks don't depend on the split
+	private int split(int from, int to) {
+		if (lanes == null) {
+			return (from + to) >>> 1;
+		}
+		//ranges are longer than grain >= LANE_WINDOW, so both halves are non-empty
+		int mid = from + ((to - from) >>> 1) / LANE_WINDOW * LANE_WINDOW;
+		return mid > from ? mid : from + LANE_WINDOW;
+	}
+
+	/**
+	 * Integrates cells 0..n-1 in place
+	 * @param states cell-major states (NetworkStateStore.getStates())
+	 * @param inputs TGFB, IL1, IL6 and TNFa weights of every cell, packed 4 per cell
+	 * @param n number of cells
+	 * @return number of cells whose step size fell below the minimum
+	 */
+	public int integrate(double[] states, double[] inputs, int n) {
+		failures.set(0);
+		if (pool == null || n <= grain) {
+			integrateRange(states, inputs, 0, n);
+		} else {
+			pool.invoke(new CellRange(states, inputs, 0, n));
+		}
+		return failures.get();
+	}
+
+	/**
+	 * Integrates cells 0..n-1 held in buffers, e.g. the mapped file of a worker process (NetworkExchange)
+	 * Each task copies only its own block of cells to scratch arrays and back, so the states are never
+	 * copied to the heap as a whole
+	 * @param states cell-major states
+	 * @param inputs TGFB, IL1, IL6 and TNFa weights of every cell, packed 4 per cell
+	 * @return number of cells whose step size fell below the minimum
+	 */
+	public int integrate(DoubleBuffer states, DoubleBuffer inputs, int n) {
+		failures.set(0);
+		if (pool == null || n <= grain) {
+			for (int from = 0; from < n; from += grain) {
+				integrateRange(states, inputs, from, Math.min(n, from + grain));
+			}
+		} else {
+			pool.invoke(new BufferRange(states, inputs, 0, n));
+		}
+		return failures.get();
+	}
+
+	private void integrateRange(DoubleBuffer states, DoubleBuffer inputs, int from, int to) {
+		int species = network.getSpeciesCount();
+		int n = to - from;
+		double[][] block = blocks.get();
+		if (block[0].length < n * species) {
+			block[0] = new double[n * species];
+			block[1] = new double[n * SaucermanNetwork.INPUT_COUNT];
+		}
+		//duplicates, so the tasks don't share buffer positions
+		DoubleBuffer s = states.duplicate();
+		s.position(from * species);
+		s.get(block[0], 0, n * species);
+		DoubleBuffer in = inputs.duplicate();
+		in.position(from * SaucermanNetwork.INPUT_COUNT);
+		in.get(block[1], 0, n * SaucermanNetwork.INPUT_COUNT);
+		integrateRange(block[0], block[1], 0, n);
+		s.position(from * species);
+		s.put(block[0], 0, n * species);
+	}
+
+	private void integrateRange(double[] states, double[] inputs, int from, int to) {
+		if (lanes != null) {
+			failures.addAndGet(laneSolvers.get().integrate(states, inputs, from, to));
+			return;
+		}
+		CellIntegrator solver = solvers.get();
+		double[] w = weights.get();
+		int species = network.getSpeciesCount();
+		for (int i = from; i < to; i++) {
+			SaucermanNetwork.setInputs(w, inputs, i * SaucermanNetwork.INPUT_COUNT);
+			if (!solver.integrate(states, i * species, w)) {
+				failures.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return accepted steps of all cells so far. Call between ticks, not during integrate
+	 */
+	public long getSteps() {
+		long sum = 0;
+		synchronized (created) {
+			for (SolverStatistics s : created) {
+				sum += s.getSteps();
+			}
+		}
+		return sum;
+	}
+
+	public long getRejectedSteps() {
+		long sum = 0;
+		synchronized (created) {
+			for (SolverStatistics s : created) {
+				sum += s.getRejectedSteps();
+			}
+		}
+		return sum;
+	}
+
+	public long getEvaluations() {
+		long sum = 0;
+		synchronized (created) {
+			for (SolverStatistics s : created) {
+				sum += s.getEvaluations();
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Stops the worker threads
+	 */
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	private class CellRange extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final double[] states;
+		private final double[] inputs;
+		private final int from, to;
+
+		CellRange(double[] states, double[] inputs, int from, int to) {
+			this.states = states;
+			this.inputs = inputs;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				integrateRange(states, inputs, from, to);
+			} else {
+				int mid = split(from, to);
+				invokeAll(new CellRange(states, inputs, from, mid), new CellRange(states, inputs, mid, to));
+			}
+		}
+	}
+
+	private class BufferRange extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final DoubleBuffer states;
+		private final DoubleBuffer inputs;
+		private final int from, to;
+
+		BufferRange(DoubleBuffer states, DoubleBuffer inputs, int from, int to) {
+			this.states = states;
+			this.inputs = inputs;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				integrateRange(states, inputs, from, to);
+			} else {
+				int mid = split(from, to);
+				invokeAll(new BufferRange(states, inputs, from, mid), new BufferRange(states, inputs, mid, to));
+			}
+		}
+	}
+}
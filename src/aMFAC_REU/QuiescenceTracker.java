@@ -0,0 +1,224 @@
+/**
+ * Skips network integration for cells that have settled
+ * A cell whose state moved no more than the tolerance over its last tick goes to sleep.
+ * A sleeping cell keeps its state and is woken when one of its inputs, its site or its state
+ * before integration (e.g. rewritten by Fibroblast.getCellNetwork) moves more than the tolerance
+ * from what it was when the cell fell asleep. Slots follow NetworkStateStore, so release() must mirror it
+ */
+package aMFAC_REU;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class QuiescenceTracker {
+
+	private final int species;
+	private final int in = SaucermanNetwork.INPUT_COUNT;
+	private final double tolerance;
+
+	//per slot
+	private boolean[] asleep = new boolean[0];
+	private double[] sleepStates = new double[0];
+	private double[] sleepInputs = new double[0];
+	private int[] sleepSites = new int[0];
+
+	//active cells of this tick, packed
+	private int[] active = new int[0];
+	private double[] activeStates = new double[0];
+	private double[] activeInputs = new double[0];
+	private double[] before = new double[0];
+	private int activeCount;
+	private int sleeping;
+
+	public QuiescenceTracker(int species, double tolerance) {
+		this.species = species;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Wakes sleeping cells whose surroundings changed and packs the states and inputs
+	 * of the cells that need integrating
+	 * @param states cell-major states of all cells
+	 * @param inputs input weights of all cells, SaucermanNetwork.INPUT_COUNT per cell
+	 * @param sites grid site of every cell
+	 * @param n number of cells
+	 * @return the number of cells to integrate
+	 */
+	public int prepare(double[] states, double[] inputs, int[] sites, int n) {
+		ensure(n);
+		activeCount = 0;
+		for (int i = 0; i < n; i++) {
+			if (asleep[i] && moved(states, inputs, sites, i)) {
+				asleep[i] = false;
+			}
+			if (!asleep[i]) {
+				active[activeCount++] = i;
+			}
+		}
+		sleeping = n - activeCount;
+		if (activeStates.length < activeCount * species) {
+			activeStates = new double[activeCount * species];
+			before = new double[activeCount * species];
+			activeInputs = new double[activeCount * in];
+		}
+		for (int k = 0; k < activeCount; k++) {
+			int i = active[k];
+			System.arraycopy(states, i * species, activeStates, k * species, species);
+			System.arraycopy(inputs, i * in, activeInputs, k * in, in);
+		}
+		System.arraycopy(activeStates, 0, before, 0, activeCount * species);
+		return activeCount;
+	}
+
+	/**
+	 * States of the cells to integrate, packed in the order prepare() chose
+	 */
+	public double[] getActiveStates() {
+		return activeStates;
+	}
+
+	public double[] getActiveInputs() {
+		return activeInputs;
+	}
+
+	/**
+	 * Copies the integrated states back and puts cells that barely moved to sleep
+	 */
+	public void finish(double[] states, double[] inputs, int[] sites) {
+		for (int k = 0; k < activeCount; k++) {
+			int i = active[k];
+			int o = k * species;
+			System.arraycopy(activeStates, o, states, i * species, species);
+			double change = 0;
+			for (int s = 0; s < species; s++) {
+				change = Math.max(change, Math.abs(activeStates[o + s] - before[o + s]));
+			}
+			if (change <= tolerance) {
+				asleep[i] = true;
+				//compare later ticks with the state the solver started from, which already holds
+				//the inputs Fibroblast.getCellNetwork wrote
+				System.arraycopy(before, o, sleepStates, i * species, species);
+				System.arraycopy(inputs, i * in, sleepInputs, i * in, in);
+				sleepSites[i] = sites[i];
+				sleeping++;
+			}
+		}
+	}
+
+	/**
+	 * @return cells integrated in the last tick
+	 */
+	public int getActive() {
+		return activeCount;
+	}
+
+	/**
+	 * @return cells asleep now: those that fell asleep in the last tick or stayed asleep through it,
+	 * less any released since. The other live cells are awake
+	 */
+	public int getSleeping() {
+		return sleeping;
+	}
+
+	/**
+	 * Mirrors NetworkStateStore.release: the last slot moves into idx
+	 * @param idx the freed slot
+	 * @param last the last used slot before the release
+	 */
+	public void release(int idx, int last) {
+		if (idx < asleep.length && asleep[idx]) {
+			sleeping--;
+		}
+		if (last >= asleep.length) {
+			//the cell moving in was added after the last tick and is awake
+			if (idx < asleep.length) {
+				asleep[idx] = false;
+			}
+			return;
+		}
+		if (idx != last && idx < asleep.length) {
+			asleep[idx] = asleep[last];
+			System.arraycopy(sleepStates, last * species, sleepStates, idx * species, species);
+			System.arraycopy(sleepInputs, last * in, sleepInputs, idx * in, in);
+			sleepSites[idx] = sleepSites[last];
+		}
+		asleep[last] = false;
+	}
+
+	/**
+	 * @return bytes saveState writes for n cells
+	 */
+	public int stateBytes(int n) {
+		return n * (1 + 4 + 8 * (species + in));
+	}
+
+	/**
+	 * Writes the sleep flag and references of cells 0..n-1, for checkpoints
+	 */
+	public void saveState(ByteBuffer b, int n) {
+		ensure(n);
+		for (int i = 0; i < n; i++) {
+			b.put((byte) (asleep[i] ? 1 : 0));
+			b.putInt(sleepSites[i]);
+			for (int s = 0; s < species; s++) {
+				b.putDouble(sleepStates[i * species + s]);
+			}
+			for (int k = 0; k < in; k++) {
+				b.putDouble(sleepInputs[i * in + k]);
+			}
+		}
+	}
+
+	/**
+	 * Reads what saveState wrote
+	 */
+	public void restoreState(ByteBuffer b, int n) {
+		ensure(n);
+		sleeping = 0;
+		for (int i = 0; i < n; i++) {
+			asleep[i] = b.get() != 0;
+			if (asleep[i]) {
+				sleeping++;
+			}
+			sleepSites[i] = b.getInt();
+			for (int s = 0; s < species; s++) {
+				sleepStates[i * species + s] = b.getDouble();
+			}
+			for (int k = 0; k < in; k++) {
+				sleepInputs[i * in + k] = b.getDouble();
+			}
+		}
+	}
+
+	private boolean moved(double[] states, double[] inputs, int[] sites, int i) {
+		if (sites[i] != sleepSites[i]) {
+			return true;
+		}
+		for (int k = i * in; k < (i + 1) * in; k++) {
+			if (!(Math.abs(inputs[k] - sleepInputs[k]) <= tolerance)) {
+				return true;
+			}
+		}
+		for (int k = i * species; k < (i + 1) * species; k++) {
+			if (!(Math.abs(states[k] - sleepStates[k]) <= tolerance)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//new slots start awake
+	private void ensure(int n) {
+		if (asleep.length >= n) {
+			return;
+		}
+		int cap = Math.max(n, 2 * asleep.length);
+		asleep = Arrays.copyOf(asleep, cap);
+		sleepStates = Arrays.copyOf(sleepStates, cap * species);
+		sleepInputs = Arrays.copyOf(sleepInputs, cap * in);
+		sleepSites = Arrays.copyOf(sleepSites, cap);
+		if (active.length < cap) {
+			active = new int[cap];
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Converts a binary results file back to the csv files writeOutputData used to write,
+ * so dep_deg.m and other scripts keep working. Streams that were sampled (every N or change TOL)
+ * repeat their last written row, so every file again has one row per tick
+ *
+ * usage: ResultExporter results.amfr outputFolder [firstTick lastTick]
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ResultExporter {
+
+	public static void main(String[] args) {
+		if (args.length != 2 && args.length != 4) {
+			System.out.println("usage: ResultExporter results.amfr outputFolder [firstTick lastTick]");
+			System.exit(2);
+		}
+		try {
+			double first = args.length == 4 ? Double.parseDouble(args[2]) : Double.NEGATIVE_INFINITY;
+			double last = args.length == 4 ? Double.parseDouble(args[3]) : Double.POSITIVE_INFINITY;
+			int rows = export(new File(args[0]), new File(args[1]), first, last);
+			System.out.println("Exported " + rows + " ticks to " + args[1]);
+		} catch (IOException e) {
+			System.out.println(e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Appends the chunks with first <= tick <= last to one csv file per stream
+	 * @return the number of ticks exported
+	 */
+	public static int export(File results, File folder, double first, double last) throws IOException {
+		BinaryResultReader reader = new BinaryResultReader(results);
+		try {
+			String[] names = reader.getStreamNames();
+			boolean[] trailingDelimiter = new boolean[names.length];
+			for (int s = 0; s < names.length; s++) {
+				trailingDelimiter[s] = reader.hasTrailingDelimiter(s);
+			}
+			CsvResultSink csv = new CsvResultSink(folder, names, trailingDelimiter, reader.isSinglePrecision());
+			int rows = 0;
+			try {
+				double[][] held = new double[names.length][];
+				for (int c = 0; c < reader.getTickCount(); c++) {
+					double tick = reader.getTick(c);
+					if (tick > last) {
+						break;
+					}
+					TickSnapshot snapshot = reader.read(c);
+					for (int s = 0; s < names.length; s++) {
+						if (snapshot.getValues(s) != null) {
+							held[s] = snapshot.getValues(s);
+						}
+					}
+					if (tick >= first) {
+						csv.write(new TickSnapshot(tick, held.clone()));
+						rows++;
+					}
+				}
+			} finally {
+				csv.close();
+			}
+			return rows;
+		} finally {
+			reader.close();
+		}
+	}
+}
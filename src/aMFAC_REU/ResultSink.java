@@ -0,0 +1,45 @@
+/**
+ * Destination for the output streams written by the OutputPipeline
+ * Methods are only called from the pipeline's writer thread, except stateBytes and saveState
+ * (called while the writer is idle, see OutputPipeline.saveState) and resume (called before it starts)
+ */
+package aMFAC_REU;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface ResultSink {
+
+	void write(TickSnapshot snapshot) throws IOException;
+
+	/**
+	 * @return bytes of stream's data written so far (characters for text); may be read from any thread
+	 */
+	long getBytesWritten(int stream);
+
+	/**
+	 * Writes out everything buffered so far, without closing
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * @return bytes saveState writes
+	 */
+	int stateBytes();
+
+	/**
+	 * Writes how far the files are written and what the next write depends on, for checkpoints
+	 */
+	void saveState(ByteBuffer b) throws IOException;
+
+	/**
+	 * Reads what saveState wrote, cuts the files back to where they were when it was written
+	 * and continues them from there
+	 */
+	void resume(ByteBuffer b) throws IOException;
+
+	/**
+	 * Flushes and closes every file of the sink
+	 */
+	void close() throws IOException;
+}
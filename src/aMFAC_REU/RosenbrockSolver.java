@@ -0,0 +1,391 @@
+/**
+ * Linearly implicit Rosenbrock (2,3) pair for stiff regimes of the network
+ * Follows the formulas and step size control of MATLAB's ode23s.
+ * The Jacobian is built by finite differences over column groups that share no species,
+ * using the dependencies of the compiled network, and W = I - h*d*J is factored by an LU
+ * that skips zero entries. One instance holds the scratch arrays for one thread
+ */
+package aMFAC_REU;
+
+import java.util.Arrays;
+
+public class RosenbrockSolver implements CellIntegrator {
+
+	private static final double POW = 1.0 / 3.0;
+	private static final double D = 1.0 / (2.0 + Math.sqrt(2.0));
+	private static final double E32 = 6.0 + Math.sqrt(2.0);
+	private static final double SQRT_EPS = Math.sqrt(Math.ulp(1.0));
+
+	private final SaucermanNetwork network;
+	private final int n;
+	private final double rtol;
+	private final double threshold;
+
+	//sparsity: rows[rowStart[j]..rowStart[j+1]) are the equations that read species j
+	private final int[] rowStart;
+	private final int[] rows;
+	//columns perturbed together: groupCols[groupStart[g]..groupStart[g+1])
+	private final int[] groupStart;
+	private final int[] groupCols;
+
+	private final double[] jac; //row-major, only pattern entries are ever nonzero
+	private final double[] lu;  //factors of W, row-major
+	private final int[] perm;
+	private final int[] nz;     //nonzero columns of the current pivot row
+
+	private final double[] f0, f1, f2, k1, k2, k3;
+	private final double[] ytmp, ynew, fdel, del, rhs;
+	private final double[] stack;
+
+	private long steps;
+	private long rejected;
+	private long evaluations;
+
+	public RosenbrockSolver(SaucermanNetwork network) {
+		this.network = network;
+		n = network.getSpeciesCount();
+		rtol = network.getRelTol();
+		threshold = network.getAbsTol() / rtol;
+
+		//pattern by column
+		boolean[][] dep = network.getDependencies();
+		int[] count = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				if (dep[i][j]) {
+					count[j + 1]++;
+				}
+			}
+		}
+		for (int j = 0; j < n; j++) {
+			count[j + 1] += count[j];
+		}
+		rowStart = count.clone();
+		rows = new int[count[n]];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				if (dep[i][j]) {
+					rows[count[j]++] = i;
+				}
+			}
+		}
+
+		//greedy coloring: a column joins the first group none of whose columns share an equation with it
+		int[] color = new int[n];
+		boolean[][] rowTaken = new boolean[n][];
+		int groups = 0;
+		for (int j = 0; j < n; j++) {
+			int g = 0;
+			for (; g < groups; g++) {
+				boolean free = true;
+				for (int r = rowStart[j]; r < rowStart[j + 1] && free; r++) {
+					free = !rowTaken[g][rows[r]];
+				}
+				if (free) {
+					break;
+				}
+			}
+			if (g == groups) {
+				rowTaken[groups++] = new boolean[n];
+			}
+			for (int r = rowStart[j]; r < rowStart[j + 1]; r++) {
+				rowTaken[g][rows[r]] = true;
+			}
+			color[j] = g;
+		}
+		groupStart = new int[groups + 1];
+		for (int j = 0; j < n; j++) {
+			groupStart[color[j] + 1]++;
+		}
+		for (int g = 0; g < groups; g++) {
+			groupStart[g + 1] += groupStart[g];
+		}
+		groupCols = new int[n];
+		int[] fill = Arrays.copyOf(groupStart, groups);
+		for (int j = 0; j < n; j++) {
+			groupCols[fill[color[j]]++] = j;
+		}
+
+		jac = new double[n * n];
+		lu = new double[n * n];
+		perm = new int[n];
+		nz = new int[n];
+		f0 = new double[n];
+		f1 = new double[n];
+		f2 = new double[n];
+		k1 = new double[n];
+		k2 = new double[n];
+		k3 = new double[n];
+		ytmp = new double[n];
+		ynew = new double[n];
+		fdel = new double[n];
+		del = new double[n];
+		rhs = new double[n];
+		stack = new double[network.getStackDepth() + 1];
+	}
+
+	/**
+	 * @return number of column groups, i.e. extra right hand side evaluations per Jacobian
+	 */
+	public int getJacobianGroups() {
+		return groupStart.length - 1;
+	}
+
+	/**
+	 * @return accepted steps since this solver was created
+	 */
+	@Override
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return rejected step attempts since this solver was created
+	 */
+	@Override
+	public long getRejectedSteps() {
+		return rejected;
+	}
+
+	/**
+	 * @return right hand side evaluations since this solver was created
+	 */
+	@Override
+	public long getEvaluations() {
+		return evaluations;
+	}
+
+	@Override
+	public boolean integrate(double[] y, int off, double[] w) {
+		return integrate(y, off, w, network.getStartTime(), network.getEndTime());
+	}
+
+	public boolean integrate(double[] y, int off, double[] w, double t0, double tfinal) {
+		double t = t0;
+		double tdir = Math.signum(tfinal - t0);
+		double hmax = 0.1 * Math.abs(tfinal - t0); //ode23s default MaxStep
+
+		evaluations++;
+		network.rhs(y, off, w, f0, 0, stack);
+		jacobian(y, off, w);
+
+		//initial step from y'(t0)
+		double absh = Math.min(hmax, Math.abs(tfinal - t0));
+		double rh = 0;
+		for (int i = 0; i < n; i++) {
+			rh = Math.max(rh, Math.abs(f0[i]) / Math.max(Math.abs(y[off + i]), threshold));
+		}
+		rh = 1.25 * rh / Math.sqrt(rtol);
+		if (absh * rh > 1) {
+			absh = 1 / rh;
+		}
+		absh = Math.max(absh, 16 * Math.ulp(t));
+
+		boolean done = false;
+		while (!done) {
+			double hmin = 16 * Math.ulp(t);
+			absh = Math.min(hmax, Math.max(hmin, absh));
+			double h = tdir * absh;
+			if (1.1 * absh >= Math.abs(tfinal - t)) {
+				h = tfinal - t;
+				absh = Math.abs(h);
+				done = true;
+			}
+
+			boolean nofailed = true;
+			double err;
+			double tnew;
+			while (true) {
+				tnew = done ? tfinal : t + h;
+				h = tnew - t;
+				factor(h * D);
+
+				//k1 = W \ f0
+				System.arraycopy(f0, 0, k1, 0, n);
+				solve(k1);
+				for (int i = 0; i < n; i++) {
+					ytmp[i] = y[off + i] + 0.5 * h * k1[i];
+				}
+				evaluations++;
+				network.rhs(ytmp, 0, w, f1, 0, stack);
+
+				//k2 = W \ (f1 - k1) + k1
+				for (int i = 0; i < n; i++) {
+					k2[i] = f1[i] - k1[i];
+				}
+				solve(k2);
+				for (int i = 0; i < n; i++) {
+					k2[i] += k1[i];
+					ynew[i] = y[off + i] + h * k2[i];
+				}
+				evaluations++;
+				network.rhs(ynew, 0, w, f2, 0, stack);
+
+				//k3 = W \ (f2 - e32*(k2 - f1) - 2*(k1 - f0))
+				for (int i = 0; i < n; i++) {
+					k3[i] = f2[i] - E32 * (k2[i] - f1[i]) - 2 * (k1[i] - f0[i]);
+				}
+				solve(k3);
+
+				err = 0;
+				for (int i = 0; i < n; i++) {
+					double e = k1[i] - 2 * k2[i] + k3[i];
+					double scale = Math.max(Math.max(Math.abs(y[off + i]), Math.abs(ynew[i])), threshold);
+					err = Math.max(err, Math.abs(e) / scale);
+				}
+				err *= absh / 6;
+
+				if (err > rtol) {
+					rejected++;
+					if (absh <= hmin) {
+						return false;
+					}
+					if (nofailed) {
+						nofailed = false;
+						absh = Math.max(hmin, absh * Math.max(0.5, 0.8 * Math.pow(rtol / err, POW)));
+					} else {
+						absh = Math.max(hmin, 0.5 * absh);
+					}
+					h = tdir * absh;
+					done = false;
+				} else {
+					break;
+				}
+			}
+
+			if (!done && nofailed) {
+				double temp = 1.25 * Math.pow(err / rtol, POW);
+				if (temp > 0.2) {
+					absh = absh / temp;
+				} else {
+					absh = 5.0 * absh;
+				}
+			}
+
+			t = tnew;
+			steps++;
+			System.arraycopy(ynew, 0, y, off, n);
+			System.arraycopy(f2, 0, f0, 0, n);
+			if (!done) {
+				jacobian(y, off, w);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finite difference Jacobian at y, perturbing one column group per right hand side call
+	 * f0 must hold f(y)
+	 */
+	private void jacobian(double[] y, int off, double[] w) {
+		for (int g = 0; g + 1 < groupStart.length; g++) {
+			System.arraycopy(y, off, ytmp, 0, n);
+			for (int c = groupStart[g]; c < groupStart[g + 1]; c++) {
+				int j = groupCols[c];
+				double yj = y[off + j];
+				double d = SQRT_EPS * Math.max(Math.abs(yj), threshold);
+				ytmp[j] = yj + d;
+				del[j] = ytmp[j] - yj; //the step that was actually taken
+			}
+			evaluations++;
+			network.rhs(ytmp, 0, w, fdel, 0, stack);
+			for (int c = groupStart[g]; c < groupStart[g + 1]; c++) {
+				int j = groupCols[c];
+				for (int r = rowStart[j]; r < rowStart[j + 1]; r++) {
+					int i = rows[r];
+					jac[i * n + j] = (fdel[i] - f0[i]) / del[j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * LU factorization with partial pivoting of W = I - hd*J, skipping zero multipliers
+	 * and touching only the nonzero columns of each pivot row
+	 */
+	private void factor(double hd) {
+		for (int k = 0; k < n * n; k++) {
+			lu[k] = -hd * jac[k];
+		}
+		for (int i = 0; i < n; i++) {
+			lu[i * n + i] += 1;
+			perm[i] = i;
+		}
+		for (int k = 0; k < n; k++) {
+			int p = k;
+			double max = Math.abs(lu[k * n + k]);
+			for (int i = k + 1; i < n; i++) {
+				double a = Math.abs(lu[i * n + k]);
+				if (a > max) {
+					max = a;
+					p = i;
+				}
+			}
+			if (p != k) {
+				for (int j = 0; j < n; j++) {
+					double tmp = lu[k * n + j];
+					lu[k * n + j] = lu[p * n + j];
+					lu[p * n + j] = tmp;
+				}
+				int tmp = perm[k];
+				perm[k] = perm[p];
+				perm[p] = tmp;
+			}
+			double pivot = lu[k * n + k];
+			if (pivot == 0) {
+				continue; //singular; solve will produce inf/nan and the step is rejected
+			}
+			int m = 0;
+			for (int j = k + 1; j < n; j++) {
+				if (lu[k * n + j] != 0) {
+					nz[m++] = j;
+				}
+			}
+			for (int i = k + 1; i < n; i++) {
+				double a = lu[i * n + k];
+				if (a == 0) {
+					continue;
+				}
+				double l = a / pivot;
+				lu[i * n + k] = l;
+				int row = i * n;
+				int prow = k * n;
+				for (int c = 0; c < m; c++) {
+					int j = nz[c];
+					lu[row + j] -= l * lu[prow + j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Solves W x = b in place using the last factorization
+	 */
+	private void solve(double[] b) {
+		for (int i = 0; i < n; i++) {
+			rhs[i] = b[perm[i]];
+		}
+		for (int i = 0; i < n; i++) {
+			double s = rhs[i];
+			int row = i * n;
+			for (int j = 0; j < i; j++) {
+				double l = lu[row + j];
+				if (l != 0) {
+					s -= l * rhs[j];
+				}
+			}
+			rhs[i] = s;
+		}
+		for (int i = n - 1; i >= 0; i--) {
+			double s = rhs[i];
+			int row = i * n;
+			for (int j = i + 1; j < n; j++) {
+				double u = lu[row + j];
+				if (u != 0) {
+					s -= u * rhs[j];
+				}
+			}
+			b[i] = s / lu[row + i];
+		}
+	}
+}
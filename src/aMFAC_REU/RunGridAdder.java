@@ -0,0 +1,22 @@
+/**
+ * Places new agents at random free grid points like RandomGridAdder,
+ * but draws the points from the run's generator (see ModelRun) so concurrent runs stay reproducible
+ */
+package aMFAC_REU;
+
+import repast.simphony.space.Dimensions;
+import repast.simphony.space.grid.Grid;
+import repast.simphony.space.grid.GridAdder;
+
+public class RunGridAdder<T> implements GridAdder<T> {
+
+	@Override
+	public void add(Grid<T> grid, T object) {
+		Dimensions dims = grid.getDimensions();
+		int width = (int) dims.getWidth();
+		int height = (int) dims.getHeight();
+		//retry until the grid accepts the point, as RandomGridAdder does
+		while (!grid.moveTo(object, ModelRun.nextIntFromTo(0, width - 1), ModelRun.nextIntFromTo(0, height - 1))) {
+		}
+	}
+}
@@ -0,0 +1,609 @@
+/**
+ * Java version of the Saucerman fibroblast network stored in network.mat
+ * The ODElist strings are parsed once and compiled into a small postfix program
+ * so the right hand side can be evaluated without MATLAB
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SaucermanNetwork {
+
+	//opcodes of the compiled right hand side
+	static final int OP_CONST = 0;  //push consts[a]
+	static final int OP_Y = 1;      //push y[a]
+	static final int OP_W = 2;      //push w[a] (rpar(1,a+1))
+	static final int OP_ACT = 3;    //pop x, push act(x, rpar(:,a+1))
+	static final int OP_INHIB = 4;  //pop x, push inhib(x, rpar(:,a+1))
+	static final int OP_OR = 5;     //pop 2, push x + y - x*y
+	static final int OP_AND = 6;    //pop b values, push prod/w^(b-1) using rpar(1,a+1)
+	static final int OP_ADD = 7;
+	static final int OP_SUB = 8;
+	static final int OP_MUL = 9;
+	static final int OP_DIV = 10;
+	static final int OP_NEG = 11;
+	static final int OP_STORE = 12; //pop into dydt[a]
+
+	//columns of rpar that processCellBehavior.m overwrites for every cell (1-based in MATLAB)
+	//order matches the weights built in AMFACSpace.processCellBehavior: TGFB, IL1, IL6, TNFa
+	public static final int[] INPUT_COLUMNS = {1, 4, 3, 5};
+	public static final int INPUT_COUNT = INPUT_COLUMNS.length;
+
+	private final String[] speciesNames;
+	private final double[] tau;
+	private final double[] ymax;
+	private final double[] rparWeights; //row 1 of rpar
+	private final double[] hillN;       //row 2 of rpar
+	private final double[] hillBeta;    //beta of the hill activation, per column
+	private final double[] hillKn;      //K^n of the hill activation, per column
+
+	private final double[] tspan;
+	private final double relTol;
+	private final double absTol;
+
+	//compiled program: pairs of (opcode, operand) plus a third word for OP_AND
+	private final int[] code;
+	private final double[] consts;
+	private final int stackDepth;
+
+	/**
+	 * Loads and compiles the network from a network.mat file
+	 * @param networkMat path to network.mat
+	 */
+	public static SaucermanNetwork load(File networkMat) throws IOException {
+		return new SaucermanNetwork(MatFileReader.read(networkMat));
+	}
+
+	/**
+	 * Reads the initialNet variable of initialNet.mat
+	 * @param initialNetMat path to initialNet.mat
+	 * @return the initial network state
+	 */
+	public static double[] loadInitialState(File initialNetMat) throws IOException {
+		Object value = MatFileReader.read(initialNetMat).get("initialNet");
+		if (!(value instanceof MatFileReader.MatArray)) {
+			throw new IOException(initialNetMat + " does not contain initialNet");
+		}
+		return ((MatFileReader.MatArray) value).data.clone();
+	}
+
+	/**
+	 * Reads only the species names from params of a network.mat file
+	 */
+	public static String[] loadSpeciesNames(File networkMat) throws IOException {
+		Object[] params = (Object[]) MatFileReader.read(networkMat).get("params");
+		if (params == null || params.length < 4) {
+			throw new IOException(networkMat + " does not contain params");
+		}
+		Object[] names = (Object[]) params[3];
+		String[] speciesNames = new String[names.length];
+		for (int i = 0; i < names.length; i++) {
+			speciesNames[i] = (String) names[i];
+		}
+		return speciesNames;
+	}
+
+	@SuppressWarnings("unchecked")
+	SaucermanNetwork(Map<String, Object> vars) throws IOException {
+		Object[] odeList = (Object[]) vars.get("ODElist");
+		Object[] params = (Object[]) vars.get("params");
+		if (odeList == null || params == null || params.length < 4) {
+			throw new IOException("network.mat must contain ODElist and params");
+		}
+
+		MatFileReader.MatArray rpar = (MatFileReader.MatArray) params[0];
+		tau = ((MatFileReader.MatArray) params[1]).data.clone();
+		ymax = ((MatFileReader.MatArray) params[2]).data.clone();
+		Object[] names = (Object[]) params[3];
+		speciesNames = new String[names.length];
+		for (int i = 0; i < names.length; i++) {
+			speciesNames[i] = (String) names[i];
+		}
+
+		int cols = rpar.cols();
+		rparWeights = new double[cols];
+		hillN = new double[cols];
+		hillBeta = new double[cols];
+		hillKn = new double[cols];
+		for (int c = 0; c < cols; c++) {
+			double n = rpar.get(1, c);
+			double ec50 = rpar.get(2, c);
+			//same arithmetic as act() in ODE.m
+			double beta = (Math.pow(ec50, n) - 1) / (2 * Math.pow(ec50, n) - 1);
+			double k = Math.pow(beta - 1, 1 / n);
+			rparWeights[c] = rpar.get(0, c);
+			hillN[c] = n;
+			hillBeta[c] = beta;
+			hillKn[c] = Math.pow(k, n);
+		}
+
+		Object span = vars.get("tspan");
+		tspan = span instanceof MatFileReader.MatArray ? ((MatFileReader.MatArray) span).data.clone() : new double[] {0, 1};
+
+		//ode23 defaults unless network.mat carries an odeset struct
+		double rt = 1e-3;
+		double at = 1e-6;
+		Object options = vars.get("options");
+		if (options instanceof Map) {
+			Map<String, Object> opts = (Map<String, Object>) options;
+			rt = optionValue(opts.get("RelTol"), rt);
+			at = optionValue(opts.get("AbsTol"), at);
+		}
+		relTol = rt;
+		absTol = at;
+
+		Compiler compiler = new Compiler();
+		for (Object line : odeList) {
+			compiler.statement((String) line);
+		}
+		code = compiler.code();
+		consts = compiler.consts();
+		stackDepth = compiler.maxDepth;
+	}
+
+	private static double optionValue(Object o, double fallback) {
+		if (o instanceof MatFileReader.MatArray && ((MatFileReader.MatArray) o).data.length > 0) {
+			return ((MatFileReader.MatArray) o).data[0];
+		}
+		return fallback;
+	}
+
+	public int getSpeciesCount() {
+		return tau.length;
+	}
+
+	public String[] getSpeciesNames() {
+		return speciesNames.clone();
+	}
+
+	public int getStackDepth() {
+		return stackDepth;
+	}
+
+	public double getStartTime() {
+		return tspan[0];
+	}
+
+	public double getEndTime() {
+		return tspan[tspan.length - 1];
+	}
+
+	public double getRelTol() {
+		return relTol;
+	}
+
+	public double getAbsTol() {
+		return absTol;
+	}
+
+	/**
+	 * The compiled program and hill constants, for right hand sides that run the program themselves
+	 * (VectorLaneIntegrator). Not copies, so they must not be modified
+	 */
+	int[] getCode() {
+		return code;
+	}
+
+	double[] getConsts() {
+		return consts;
+	}
+
+	double[] getHillN() {
+		return hillN;
+	}
+
+	double[] getHillBeta() {
+		return hillBeta;
+	}
+
+	double[] getHillKn() {
+		return hillKn;
+	}
+
+	/**
+	 * Builds row 1 of rpar the way processCellBehavior.m does before the per-cell inputs are set
+	 * @return a new weight vector; callers fill INPUT_COLUMNS for each cell
+	 */
+	public double[] createWeights() {
+		double[] w = rparWeights.clone();
+		Arrays.fill(w, 0, 11, 0.25); //p{1}(1,1:11), inputs are overwritten per cell
+		w[11] = 0; //p{1}(1,12:13) turns off latent TGF-B feedback
+		w[12] = 0;
+		w[14] = 0; //p{1}(1,15:17) turns off IL-6 feedback
+		w[15] = 0;
+		w[16] = 0;
+		return w;
+	}
+
+	/**
+	 * Copies the four cytokine weights of one cell into its weight vector
+	 * @param w weight vector from createWeights
+	 * @param inputs TGFB, IL1, IL6 and TNFa weights
+	 * @param off offset of the first weight in inputs
+	 */
+	public static void setInputs(double[] w, double[] inputs, int off) {
+		for (int i = 0; i < INPUT_COUNT; i++) {
+			w[INPUT_COLUMNS[i]] = inputs[off + i];
+		}
+	}
+
+	/**
+	 * Evaluates dydt for one cell. Equivalent to ODE.m with the ODElist of network.mat
+	 * @param y network state
+	 * @param yOff offset of the state in y
+	 * @param w row 1 of rpar for this cell
+	 * @param dydt output
+	 * @param dOff offset of the output in dydt
+	 * @param stack scratch array of at least getStackDepth() entries
+	 */
+	public void rhs(double[] y, int yOff, double[] w, double[] dydt, int dOff, double[] stack) {
+		final int[] code = this.code;
+		int sp = -1;
+		int pc = 0;
+		while (pc < code.length) {
+			int op = code[pc];
+			int a = code[pc + 1];
+			pc += 2;
+			switch (op) {
+				case OP_CONST:
+					stack[++sp] = consts[a];
+					break;
+				case OP_Y:
+					stack[++sp] = y[yOff + a];
+					break;
+				case OP_W:
+					stack[++sp] = w[a];
+					break;
+				case OP_ACT:
+					stack[sp] = act(stack[sp], w[a], a);
+					break;
+				case OP_INHIB:
+					stack[sp] = w[a] - act(stack[sp], w[a], a);
+					break;
+				case OP_OR: {
+					double b = stack[sp--];
+					double x = stack[sp];
+					stack[sp] = x + b - x * b;
+					break;
+				}
+				case OP_AND: {
+					int n = code[pc++];
+					double wa = w[a];
+					double prod = 1;
+					for (int i = sp - n + 1; i <= sp; i++) {
+						prod *= stack[i];
+					}
+					sp -= n - 1;
+					stack[sp] = wa == 0 ? 0 : prod / Math.pow(wa, n - 1);
+					break;
+				}
+				case OP_ADD: {
+					double b = stack[sp--];
+					stack[sp] += b;
+					break;
+				}
+				case OP_SUB: {
+					double b = stack[sp--];
+					stack[sp] -= b;
+					break;
+				}
+				case OP_MUL: {
+					double b = stack[sp--];
+					stack[sp] *= b;
+					break;
+				}
+				case OP_DIV: {
+					double b = stack[sp--];
+					stack[sp] /= b;
+					break;
+				}
+				case OP_NEG:
+					stack[sp] = -stack[sp];
+					break;
+				case OP_STORE:
+					dydt[dOff + a] = stack[sp--];
+					break;
+				default:
+					throw new IllegalStateException("Bad opcode " + op);
+			}
+		}
+	}
+
+	/**
+	 * Which species each equation reads, taken from the compiled program
+	 * @return dep[i][j] is true if dydt(i) depends on y(j)
+	 */
+	public boolean[][] getDependencies() {
+		int n = getSpeciesCount();
+		boolean[][] dep = new boolean[n][n];
+		boolean[] reads = new boolean[n];
+		int pc = 0;
+		while (pc < code.length) {
+			int op = code[pc];
+			int a = code[pc + 1];
+			pc += op == OP_AND ? 3 : 2;
+			if (op == OP_Y) {
+				reads[a] = true;
+			} else if (op == OP_STORE) {
+				for (int j = 0; j < n; j++) {
+					dep[a][j] |= reads[j];
+				}
+				Arrays.fill(reads, false);
+			}
+		}
+		return dep;
+	}
+
+	/**
+	 * Hill activation from ODE.m, capped at the weight
+	 */
+	private double act(double x, double w, int col) {
+		double xn = Math.pow(x, hillN[col]);
+		double f = w * (hillBeta[col] * xn) / (hillKn[col] + xn);
+		return f > w ? w : f;
+	}
+
+	/**
+	 * Recursive descent parser for the MATLAB statements in ODElist.
+	 * Only the subset used by the network files is supported.
+	 */
+	private class Compiler {
+		private final Map<String, Integer> species = new HashMap<String, Integer>();
+		private final List<Integer> out = new ArrayList<Integer>();
+		private final List<Double> constList = new ArrayList<Double>();
+		private final boolean[] assigned = new boolean[tau.length];
+		private int depth;
+		int maxDepth;
+
+		private String src;
+		private int pos;
+
+		void statement(String line) throws IOException {
+			src = line;
+			pos = 0;
+			String lhs = ident();
+			skip();
+			if (peek() == '(') {
+				//dydt(Name) = expr;
+				expect('(');
+				int idx = speciesIndex();
+				expect(')');
+				expect('=');
+				depth = 0;
+				expr();
+				emit(OP_STORE, idx);
+				depth--;
+				assigned[idx] = true;
+			} else {
+				expect('=');
+				skip();
+				if (Character.isDigit(peek())) {
+					//Name = index;
+					species.put(lhs, (int) number() - 1);
+				}
+				//dydt = zeros(n,1) needs no code
+			}
+		}
+
+		int[] code() throws IOException {
+			for (int i = 0; i < assigned.length; i++) {
+				if (!assigned[i]) {
+					throw new IOException("ODElist has no equation for species " + (i + 1));
+				}
+			}
+			int[] c = new int[out.size()];
+			for (int i = 0; i < c.length; i++) {
+				c[i] = out.get(i);
+			}
+			return c;
+		}
+
+		double[] consts() {
+			double[] c = new double[constList.size()];
+			for (int i = 0; i < c.length; i++) {
+				c[i] = constList.get(i);
+			}
+			return c;
+		}
+
+		private void expr() throws IOException {
+			term();
+			while (true) {
+				skip();
+				char c = peek();
+				if (c == '+' || c == '-') {
+					pos++;
+					term();
+					emit(c == '+' ? OP_ADD : OP_SUB, 0);
+					depth--;
+				} else {
+					return;
+				}
+			}
+		}
+
+		private void term() throws IOException {
+			factor();
+			while (true) {
+				skip();
+				char c = peek();
+				if (c == '*' || c == '/') {
+					pos++;
+					factor();
+					emit(c == '*' ? OP_MUL : OP_DIV, 0);
+					depth--;
+				} else {
+					return;
+				}
+			}
+		}
+
+		private void factor() throws IOException {
+			skip();
+			char c = peek();
+			if (c == '-') {
+				pos++;
+				factor();
+				emit(OP_NEG, 0);
+			} else if (c == '(') {
+				pos++;
+				expr();
+				expect(')');
+			} else if (Character.isDigit(c) || c == '.') {
+				push(OP_CONST, constant(number()));
+			} else {
+				call(ident());
+			}
+		}
+
+		private void call(String fn) throws IOException {
+			expect('(');
+			if (fn.equals("y")) {
+				push(OP_Y, speciesIndex());
+				expect(')');
+			} else if (fn.equals("ymax") || fn.equals("tau")) {
+				int idx = speciesIndex();
+				expect(')');
+				push(OP_CONST, constant(fn.equals("ymax") ? ymax[idx] : tau[idx]));
+			} else if (fn.equals("rpar")) {
+				//rpar(1,k) as a value
+				int row = (int) number();
+				expect(',');
+				int col = (int) number() - 1;
+				expect(')');
+				if (row != 1) {
+					throw error("only rpar(1,k) can be used as a value");
+				}
+				push(OP_W, col);
+			} else if (fn.equals("act") || fn.equals("inhib")) {
+				expr();
+				expect(',');
+				int col = column();
+				expect(')');
+				emit(fn.equals("act") ? OP_ACT : OP_INHIB, col);
+			} else if (fn.equals("OR")) {
+				expr();
+				expect(',');
+				expr();
+				expect(')');
+				emit(OP_OR, 0);
+				depth--;
+			} else if (fn.equals("AND")) {
+				int col = column();
+				int n = 0;
+				skip();
+				while (peek() == ',') {
+					pos++;
+					expr();
+					n++;
+					skip();
+				}
+				expect(')');
+				emit(OP_AND, col);
+				out.add(n);
+				depth -= n - 1;
+			} else {
+				throw error("unknown function " + fn);
+			}
+		}
+
+		//rpar(:,k) argument of act, inhib and AND
+		private int column() throws IOException {
+			String name = ident();
+			if (!name.equals("rpar")) {
+				throw error("expected rpar(:,k)");
+			}
+			expect('(');
+			expect(':');
+			expect(',');
+			int col = (int) number() - 1;
+			expect(')');
+			return col;
+		}
+
+		private int speciesIndex() throws IOException {
+			skip();
+			if (Character.isDigit(peek())) {
+				return (int) number() - 1;
+			}
+			String name = ident();
+			Integer idx = species.get(name);
+			if (idx == null) {
+				throw error("unknown species " + name);
+			}
+			return idx;
+		}
+
+		private void push(int op, int a) {
+			emit(op, a);
+			depth++;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		private void emit(int op, int a) {
+			out.add(op);
+			out.add(a);
+		}
+
+		private int constant(double v) {
+			constList.add(v);
+			return constList.size() - 1;
+		}
+
+		private String ident() throws IOException {
+			skip();
+			int start = pos;
+			while (pos < src.length() && (Character.isLetterOrDigit(src.charAt(pos)) || src.charAt(pos) == '_')) {
+				pos++;
+			}
+			if (start == pos) {
+				throw error("expected a name");
+			}
+			return src.substring(start, pos);
+		}
+
+		private double number() throws IOException {
+			skip();
+			int start = pos;
+			while (pos < src.length() && (Character.isDigit(src.charAt(pos)) || src.charAt(pos) == '.'
+					|| src.charAt(pos) == 'e' || src.charAt(pos) == 'E'
+					|| ((src.charAt(pos) == '-' || src.charAt(pos) == '+') && pos > start
+							&& (src.charAt(pos - 1) == 'e' || src.charAt(pos - 1) == 'E')))) {
+				pos++;
+			}
+			try {
+				return Double.parseDouble(src.substring(start, pos));
+			} catch (NumberFormatException e) {
+				throw error("expected a number");
+			}
+		}
+
+		private void expect(char c) throws IOException {
+			skip();
+			if (peek() != c) {
+				throw error("expected '" + c + "'");
+			}
+			pos++;
+		}
+
+		private char peek() {
+			return pos < src.length() ? src.charAt(pos) : ';';
+		}
+
+		private void skip() {
+			while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private IOException error(String msg) {
+			return new IOException("Cannot parse ODElist entry \"" + src + "\" at " + pos + ": " + msg);
+		}
+	}
+}
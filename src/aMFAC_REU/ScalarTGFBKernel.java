@@ -0,0 +1,23 @@
+/**
+ * TGFBKernel without the Vector API
+ */
+package aMFAC_REU;
+
+public class ScalarTGFBKernel implements TGFBKernel {
+
+	@Override
+	public void apply(double[] data, int stride, int tgfb, int latent, double[] activation, boolean[] occupied,
+			int sites, double activeKeep, double latentDeg) {
+		for (int k = 0, c = 0; k < sites; k++, c += stride) {
+			if (!occupied[k]) {
+				continue;
+			}
+			double a = activation[k];
+			double t = data[c + tgfb];
+			double l = data[c + latent];
+			double al = a * l;
+			data[c + tgfb] = (t + al) * activeKeep;
+			data[c + latent] = l - al - latentDeg * l;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Network solver that runs in a separate worker process (NetworkWorker)
+ * States and weights are shared through a memory-mapped NetworkExchange file, so a solver
+ * crash can't take down the simulation and no per-tick serialization is needed.
+ * The worker integrates the states in place in the file. This side still copies them into the file
+ * and back once per tick: AMFACSpace hands over a heap array that the cache and quiescence
+ * tracker have compacted to the cells being solved, so it can't live in the file itself
+ */
+package aMFAC_REU;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SharedMemoryNetworkSolver implements NetworkSolver {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final File networkFile;
+	private final File initialNetFile;
+	private final String method;
+	private final int threads;
+
+	private File exchangeFile;
+	private NetworkExchange exchange;
+	private Process worker;
+	private OutputStream toWorker;
+	private InputStream fromWorker;
+
+	/**
+	 * @param networkFile network.mat
+	 * @param initialNetFile initialNet.mat
+	 * @param method ode23, ode23s, or ode23lanes or ode23lockstep for the lane integrator
+	 * @param threads worker threads used inside the worker process, 0 for every core
+	 */
+	public SharedMemoryNetworkSolver(File networkFile, File initialNetFile, String method, int threads) {
+		this.networkFile = networkFile;
+		this.initialNetFile = initialNetFile;
+		this.method = method;
+		this.threads = threads;
+	}
+
+	@Override
+	public double[] loadInitialState() throws Exception {
+		double[] initial = SaucermanNetwork.loadInitialState(initialNetFile);
+
+		exchangeFile = File.createTempFile("amfac-network", ".exchange");
+		exchangeFile.deleteOnExit();
+		exchange = NetworkExchange.create(exchangeFile, initial.length, SaucermanNetwork.INPUT_COUNT, INITIAL_CAPACITY);
+
+		//the worker only needs the model classes, not Repast
+		String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classPath = new File(NetworkWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(javaBin);
+		cmd.addAll(VectorSupport.jvmOptions());
+		cmd.add("-cp");
+		cmd.add(classPath);
+		cmd.add(NetworkWorker.class.getName());
+		cmd.add(exchangeFile.getAbsolutePath());
+		cmd.add(networkFile.getAbsolutePath());
+		cmd.add(initialNetFile.getAbsolutePath());
+		cmd.add(Integer.toString(threads));
+		cmd.add(method);
+		worker = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		toWorker = worker.getOutputStream();
+		fromWorker = worker.getInputStream();
+		return initial;
+	}
+
+	@Override
+	public int solve(double[] states, int species, double[] inputs, int n) throws Exception {
+		if (exchange.ensureCapacity(n)) {
+			command(NetworkExchange.CMD_REMAP);
+		}
+		exchange.write(states, inputs, n);
+		command(NetworkExchange.CMD_SOLVE);
+		exchange.readStates(states, n);
+		return exchange.getFailures();
+	}
+
+	private void command(int cmd) throws IOException {
+		toWorker.write(cmd);
+		toWorker.flush();
+		int reply = fromWorker.read();
+		if (reply == -1) {
+			throw new IOException("Network worker exited");
+		} else if (reply != NetworkExchange.REPLY_OK) {
+			throw new IOException("Network worker failed, see its stack trace above");
+		}
+	}
+
+	@Override
+	public void close() {
+		if (worker != null) {
+			try {
+				toWorker.write(NetworkExchange.CMD_QUIT);
+				toWorker.close();
+				if (!worker.waitFor(5, TimeUnit.SECONDS)) {
+					worker.destroy();
+				}
+			} catch (Exception e) {
+				worker.destroy();
+			}
+			worker = null;
+		}
+		if (exchange != null) {
+			exchange.close();
+			exchangeFile.delete();
+			exchange = null;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+/**
+ * Work counts of a network solver that integrates in this JVM
+ * Totals since the solver was loaded; read them between ticks
+ */
+package aMFAC_REU;
+
+public interface SolverStatistics {
+
+	long getSteps();
+
+	long getRejectedSteps();
+
+	/**
+	 * @return right hand side evaluations, Jacobian columns included
+	 */
+	long getEvaluations();
+}
@@ -0,0 +1,247 @@
+/**
+ * Runs a parameter sweep inside one JVM, several AMFACSpace runs at a time
+ * network.mat is compiled once and shared read-only by every run; each run has its own
+ * parameters, random numbers and results folder (see ModelRun), and is stepped by a HeadlessEngine.
+ *
+ * The sweep file has one line per swept parameter, values separated by commas:
+ *   activedegRate = 0.01, 0.041, 0.1
+ *   TGFB_feedback = true, false
+ * Parameters joined with / vary together, e.g. gridWidth/gridHeight = 50/50, 100/100.
+ * replicates = N repeats every combination with a different seed.
+ * Runs go to outputFolder/run_0001 ..., listed with their values in outputFolder/runs.csv
+ *
+ * usage: SweepRunner sweep.txt [outputFolder [threads]]
+ */
+package aMFAC_REU;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import repast.simphony.parameter.Parameters;
+
+public class SweepRunner {
+
+	private final ModelParameters parameters;
+	private final SaucermanNetwork network;
+	private final double[] initialState;
+
+	//swept parameter names, one group per line of the sweep file, and the values of each group
+	private final List<String[]> groups = new ArrayList<String[]>();
+	private final List<List<String[]>> groupValues = new ArrayList<List<String[]>>();
+	private int replicates = 1;
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 3) {
+			System.out.println("usage: SweepRunner sweep.txt [outputFolder [threads]]");
+			System.exit(2);
+		}
+		try {
+			File folder = new File(args.length > 1 ? args[1] : "Sweep");
+			int threads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+			SweepRunner runner = new SweepRunner(ModelParameters.load(ModelParameters.DEFAULT_FILE),
+					new File("network.mat"), new File("initialNet.mat"));
+			runner.readSweep(new File(args[0]));
+			int failed = runner.run(folder, threads);
+			System.exit(failed == 0 ? 0 : 1);
+		} catch (IOException e) {
+			System.out.println(e);
+			System.exit(1);
+		}
+	}
+
+	public SweepRunner(ModelParameters parameters, File networkFile, File initialNetFile) throws IOException {
+		this.parameters = parameters;
+		network = SaucermanNetwork.load(networkFile);
+		initialState = SaucermanNetwork.loadInitialState(initialNetFile);
+	}
+
+	/**
+	 * Reads the swept parameters and their values
+	 */
+	public void readSweep(File sweepFile) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(sweepFile));
+		try {
+			String line;
+			int lineNo = 0;
+			while ((line = br.readLine()) != null) {
+				lineNo++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String where = sweepFile.getName() + ":" + lineNo + ": ";
+				int eq = line.indexOf('=');
+				if (eq <= 0) {
+					throw new IOException(where + "expected name = value, value, ...");
+				}
+				String[] names = line.substring(0, eq).trim().split("\\s*/\\s*");
+				String[] values = line.substring(eq + 1).split(",");
+				if (names.length == 1 && names[0].equals("replicates")) {
+					replicates = Integer.parseInt(values[0].trim());
+					continue;
+				}
+				List<String[]> combos = new ArrayList<String[]>();
+				for (String value : values) {
+					String[] parts = value.trim().split("\\s*/\\s*");
+					if (parts.length != names.length) {
+						throw new IOException(where + value.trim() + " needs " + names.length + " values");
+					}
+					for (int i = 0; i < names.length; i++) {
+						parameters.convert(names[i], parts[i]); //fail now on unknown names and bad values
+					}
+					combos.add(parts);
+				}
+				groups.add(names);
+				groupValues.add(combos);
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * @return the parameter values of every run, in run order
+	 */
+	public List<Map<String, String>> getRuns() {
+		List<Map<String, String>> runs = new ArrayList<Map<String, String>>();
+		runs.add(new LinkedHashMap<String, String>());
+		for (int g = 0; g < groups.size(); g++) {
+			List<Map<String, String>> next = new ArrayList<Map<String, String>>();
+			for (Map<String, String> run : runs) {
+				for (String[] values : groupValues.get(g)) {
+					Map<String, String> m = new LinkedHashMap<String, String>(run);
+					for (int i = 0; i < values.length; i++) {
+						m.put(groups.get(g)[i], values[i]);
+					}
+					next.add(m);
+				}
+			}
+			runs = next;
+		}
+		List<Map<String, String>> all = new ArrayList<Map<String, String>>();
+		for (int r = 0; r < replicates; r++) {
+			all.addAll(runs);
+		}
+		return all;
+	}
+
+	/**
+	 * Runs every combination and waits for them to finish
+	 * @param threads runs at a time; 0 or less uses every available core
+	 * @return the number of runs that failed
+	 */
+	public int run(File folder, int threads) throws IOException {
+		final List<Map<String, String>> runs = getRuns();
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		folder.mkdirs();
+		writeRunIndex(new File(folder, "runs.csv"), runs);
+		System.out.println("Sweep of " + runs.size() + " runs on " + threads + " threads");
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < runs.size(); i++) {
+			final int index = i;
+			final File runFolder = new File(folder, runName(i));
+			results.add(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return runOne(index, runs.get(index), runFolder, runs.size());
+				}
+			}));
+		}
+		pool.shutdown();
+
+		int failed = 0;
+		for (Future<Boolean> f : results) {
+			try {
+				if (!f.get()) {
+					failed++;
+				}
+			} catch (Exception e) {
+				System.out.println(e);
+				failed++;
+			}
+		}
+		try {
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.println("Sweep finished, " + failed + " of " + runs.size() + " runs failed");
+		return failed;
+	}
+
+	private boolean runOne(int index, Map<String, String> values, File folder, int total) {
+		long start = System.currentTimeMillis();
+		try {
+			Map<String, String> overrides = new LinkedHashMap<String, String>(values);
+			//runs already fill the cores, so each one solves its cells on its own thread unless swept
+			if (!overrides.containsKey("networkThreads")) {
+				overrides.put("networkThreads", "1");
+			}
+			Parameters p = parameters.create(overrides);
+			folder.mkdirs();
+
+			new HeadlessEngine(new ModelRun(p, seedOf(index, values, p), folder, network, initialState)).run();
+			System.out.println("Run " + (index + 1) + " of " + total + " finished in "
+					+ (System.currentTimeMillis() - start) / 1000.0 + " s");
+			return true;
+		} catch (Exception e) {
+			System.out.println("Run " + (index + 1) + " failed: " + e);
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * randomSeed if it is swept, otherwise the default randomSeed (or 1) plus the run index so replicates differ
+	 */
+	private static int seedOf(int index, Map<String, String> values, Parameters p) {
+		Object seed = p.getValue("randomSeed");
+		if (values.containsKey("randomSeed") && seed != null) {
+			return (Integer) seed;
+		}
+		return (seed != null ? (Integer) seed : 1) + index;
+	}
+
+	private static String runName(int index) {
+		return String.format("run_%04d", index + 1);
+	}
+
+	private void writeRunIndex(File file, List<Map<String, String>> runs) throws IOException {
+		PrintWriter pw = new PrintWriter(new FileWriter(file));
+		try {
+			StringBuilder header = new StringBuilder("run");
+			for (String[] names : groups) {
+				for (String name : names) {
+					header.append(',').append(name);
+				}
+			}
+			pw.println(header);
+			for (int i = 0; i < runs.size(); i++) {
+				StringBuilder row = new StringBuilder(runName(i));
+				for (String value : runs.get(i).values()) {
+					row.append(',').append(value);
+				}
+				pw.println(row);
+			}
+		} finally {
+			pw.close();
+		}
+	}
+}
@@ -0,0 +1,26 @@
+/**
+ * Whole-grid update of active and latent TGF-B from the MMP activation of the fibroblast at each site
+ * For every occupied site k, with T and L the active and latent TGF-B and a the activation:
+ *   T = (T + a*L) * activeKeep
+ *   L = L - a*L - latentDeg*L
+ * Sites without a fibroblast are left unchanged. ScalarTGFBKernel is the plain loop; VectorTGFBKernel
+ * (see vector/ReadMe.txt) does the same operations in the same order on SIMD lanes, so both give identical fields
+ */
+package aMFAC_REU;
+
+public interface TGFBKernel {
+
+	/**
+	 * @param data interleaved field, site k's layers start at k*stride
+	 * @param stride layers per site
+	 * @param tgfb layer of active TGF-B
+	 * @param latent layer of latent TGF-B
+	 * @param activation activation of every occupied site
+	 * @param occupied whether a site is updated
+	 * @param sites number of sites
+	 * @param activeKeep fraction of active TGF-B kept per tick (1 - degradation)
+	 * @param latentDeg fraction of latent TGF-B degraded per tick
+	 */
+	void apply(double[] data, int stride, int tgfb, int latent, double[] activation, boolean[] occupied, int sites,
+			double activeKeep, double latentDeg);
+}
@@ -0,0 +1,385 @@
+/**
+ * Per-tick timings and counters of a run, turned on with the metrics parameter
+ * metrics is off or a comma list of:
+ *   jmx   registers a TickMetricsMBean (aMFAC_REU:type=TickMetrics) for jconsole / VisualVM
+ *   jfr   commits a TickEvent per tick to a running flight recording (Java 11+, or 8u262+;
+ *         the event classes are built from jfr/src, see jfr/ReadMe.txt)
+ *   csv   writes a row per tick to Results/metrics.csv
+ * Phases are the scheduled methods plus the network solve (inside goSecond) and the output
+ * submission (inside goLast). Fibroblast phases add up the time of every cell.
+ * With quiescenceTolerance on, the live cells are split into awake and sleeping as they stand after the tick.
+ * Latencies go into log2 histograms of nanoseconds, so nothing grows with the run length.
+ * When metrics is off the space holds no TickMetrics and every timing point is a null check
+ *
+ * Bytes written count what the output writer thread has finished, so they can lag a tick or two
+ */
+package aMFAC_REU;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class TickMetrics implements TickMetricsMBean {
+
+	public static final int DIFFUSE = 0;
+	public static final int GO_FIRST = 1;
+	public static final int GO_SECOND = 2;
+	public static final int GO_THIRD = 3;
+	public static final int GO_LAST = 4;
+	public static final int SOLVE = 5;
+	public static final int OUTPUT = 6;
+	private static final String[] PHASES = {"diffuseLayers", "goFirst", "goSecond", "goThird", "goLast", "solve",
+			"output"};
+	private static final int BUCKETS = 64;
+
+	private final File folder;
+	private ObjectName name;
+	private TickRecorder jfr;
+	private PrintWriter csv;
+	private boolean headerWritten;
+
+	private SolverStatistics solver;
+	private QuiescenceTracker quiescence;
+	private OutputPipeline output;
+	private String[] streams = new String[0];
+
+	//this tick
+	private final long[] current = new long[PHASES.length];
+
+	//totals
+	private final long[][] histograms = new long[PHASES.length][BUCKETS];
+	private final long[] counts = new long[PHASES.length];
+	private final long[] sums = new long[PHASES.length];
+	private final long[] max = new long[PHASES.length];
+	private final long[] last = new long[PHASES.length];
+	private double tick;
+	private int liveCells, sleepingCells;
+	private long steps, rejected, evaluations;
+	private long[] bytes = new long[0];
+
+	/**
+	 * @param options the metrics parameter
+	 * @return null if metrics is off
+	 */
+	public static TickMetrics create(String options, File folder) {
+		if (options == null || options.trim().isEmpty() || options.trim().equalsIgnoreCase("off")) {
+			return null;
+		}
+		TickMetrics m = new TickMetrics(folder);
+		for (String o : options.split(",")) {
+			o = o.trim();
+			if (o.equalsIgnoreCase("jmx")) {
+				m.registerMBean();
+			} else if (o.equalsIgnoreCase("jfr")) {
+				m.jfr = loadJfr();
+			} else if (o.equalsIgnoreCase("csv")) {
+				m.openCsv();
+			} else if (!o.isEmpty()) {
+				System.out.println("Warning: unknown metrics option " + o + " (use off or jmx, jfr, csv)");
+			}
+		}
+		return m;
+	}
+
+	private TickMetrics(File folder) {
+		this.folder = folder;
+	}
+
+	/**
+	 * @param solver source of the integrator counters, may be null
+	 */
+	public void setSolver(SolverStatistics solver) {
+		this.solver = solver;
+	}
+
+	/**
+	 * @param quiescence source of the sleeping cell count, null when every cell is integrated
+	 */
+	public void setQuiescence(QuiescenceTracker quiescence) {
+		this.quiescence = quiescence;
+	}
+
+	/**
+	 * @param output source of the bytes written
+	 * @param streams name of every output stream
+	 */
+	public synchronized void setOutput(OutputPipeline output, String[] streams) {
+		this.output = output;
+		this.streams = streams.clone();
+		bytes = new long[streams.length];
+	}
+
+	/**
+	 * Adds the time since start (a System.nanoTime()) to phase
+	 */
+	public void add(int phase, long start) {
+		current[phase] += System.nanoTime() - start;
+	}
+
+	/**
+	 * Records the tick that just finished and starts the next one
+	 */
+	public void endTick(double tick, int liveCells) {
+		int sleeping = quiescence != null ? quiescence.getSleeping() : 0;
+		long s = 0, r = 0, e = 0;
+		if (solver != null) {
+			s = solver.getSteps();
+			r = solver.getRejectedSteps();
+			e = solver.getEvaluations();
+		}
+		long[] b = new long[streams.length];
+		long allBytes = 0;
+		for (int i = 0; i < b.length; i++) {
+			b[i] = output.getBytesWritten(i);
+			allBytes += b[i];
+		}
+
+		if (csv != null) {
+			writeRow(tick, liveCells, sleeping, s, r, e, b);
+		}
+		if (jfr != null) {
+			jfr.commit(tick, liveCells, sleeping, current, s - steps, r - rejected, e - evaluations,
+					allBytes - sum(bytes));
+		}
+
+		synchronized (this) {
+			for (int p = 0; p < PHASES.length; p++) {
+				long t = current[p];
+				histograms[p][bucket(t)]++;
+				counts[p]++;
+				sums[p] += t;
+				max[p] = Math.max(max[p], t);
+				last[p] = t;
+				current[p] = 0;
+			}
+			this.tick = tick;
+			this.liveCells = liveCells;
+			sleepingCells = sleeping;
+			steps = s;
+			rejected = r;
+			evaluations = e;
+			bytes = b;
+		}
+	}
+
+	/**
+	 * Closes metrics.csv and unregisters the MBean
+	 */
+	public void close() {
+		if (csv != null) {
+			csv.close();
+			csv = null;
+		}
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (Exception e) {
+				System.out.println(e);
+			}
+			name = null;
+		}
+	}
+
+	private void writeRow(double tick, int liveCells, int sleeping, long s, long r, long e, long[] b) {
+		StringBuilder row = new StringBuilder();
+		row.append(tick).append(',').append(liveCells).append(',').append(liveCells - sleeping).append(',')
+				.append(sleeping);
+		for (int p = 0; p < PHASES.length; p++) {
+			row.append(',').append(current[p] / 1e6);
+		}
+		row.append(',').append(s - steps).append(',').append(r - rejected).append(',').append(e - evaluations);
+		for (int i = 0; i < b.length; i++) {
+			row.append(',').append(b[i] - (i < bytes.length ? bytes[i] : 0));
+		}
+		if (!headerWritten) {
+			headerWritten = true;
+			StringBuilder header = new StringBuilder("tick,liveCells,awakeCells,sleepingCells");
+			for (String phase : PHASES) {
+				header.append(',').append(phase).append("_ms");
+			}
+			header.append(",solverSteps,rejectedSteps,rhsEvaluations");
+			for (String stream : streams) {
+				header.append(',').append(stream).append("_bytes");
+			}
+			csv.println(header);
+		}
+		csv.println(row);
+	}
+
+	private void openCsv() {
+		try {
+			folder.mkdirs();
+			csv = new PrintWriter(new BufferedWriter(new FileWriter(new File(folder, "metrics.csv"))));
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+	}
+
+	private void registerMBean() {
+		try {
+			//runs of a sweep share the JVM, so each is told apart by its results folder
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName n = new ObjectName("aMFAC_REU:type=TickMetrics,run=" + ObjectName.quote(folder.getPath()));
+			if (server.isRegistered(n)) {
+				server.unregisterMBean(n);
+			}
+			server.registerMBean(this, n);
+			name = n;
+		} catch (Exception e) {
+			System.out.println("Warning: can't register the metrics MBean");
+			System.out.println(e);
+		}
+	}
+
+	//JfrTickRecorder is compiled from jfr/src, so it may be missing
+	private static TickRecorder loadJfr() {
+		try {
+			return (TickRecorder) Class.forName("aMFAC_REU.JfrTickRecorder").getDeclaredConstructor().newInstance();
+		} catch (Throwable e) {
+			//class missing, or no jdk.jfr in this JVM (NoClassDefFoundError)
+			System.out.println("Warning: flight recorder events not available (" + e + "), metrics jfr is ignored"
+					+ " (see jfr/ReadMe.txt)");
+			return null;
+		}
+	}
+
+	private static int bucket(long nanos) {
+		return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	private static long sum(long[] values) {
+		long s = 0;
+		for (long v : values) {
+			s += v;
+		}
+		return s;
+	}
+
+	//upper bound of the bucket holding quantile q, capped at the maximum
+	private double percentile(int p, double q) {
+		if (counts[p] == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(q * counts[p]);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += histograms[p][b];
+			if (seen >= rank) {
+				return Math.min(b >= 62 ? Long.MAX_VALUE : 2L << b, max[p]) / 1e6;
+			}
+		}
+		return max[p] / 1e6;
+	}
+
+	@Override
+	public synchronized double getTick() {
+		return tick;
+	}
+
+	@Override
+	public synchronized int getLiveCells() {
+		return liveCells;
+	}
+
+	@Override
+	public synchronized int getAwakeCells() {
+		return liveCells - sleepingCells;
+	}
+
+	@Override
+	public synchronized int getSleepingCells() {
+		return sleepingCells;
+	}
+
+	@Override
+	public String[] getPhaseNames() {
+		return PHASES.clone();
+	}
+
+	@Override
+	public synchronized double[] getLastMillis() {
+		double[] ms = new double[PHASES.length];
+		for (int p = 0; p < ms.length; p++) {
+			ms[p] = last[p] / 1e6;
+		}
+		return ms;
+	}
+
+	@Override
+	public synchronized double[] getMeanMillis() {
+		double[] ms = new double[PHASES.length];
+		for (int p = 0; p < ms.length; p++) {
+			ms[p] = counts[p] == 0 ? 0 : sums[p] / 1e6 / counts[p];
+		}
+		return ms;
+	}
+
+	@Override
+	public synchronized double[] getP50Millis() {
+		double[] ms = new double[PHASES.length];
+		for (int p = 0; p < ms.length; p++) {
+			ms[p] = percentile(p, 0.5);
+		}
+		return ms;
+	}
+
+	@Override
+	public synchronized double[] getP99Millis() {
+		double[] ms = new double[PHASES.length];
+		for (int p = 0; p < ms.length; p++) {
+			ms[p] = percentile(p, 0.99);
+		}
+		return ms;
+	}
+
+	@Override
+	public synchronized double[] getMaxMillis() {
+		double[] ms = new double[PHASES.length];
+		for (int p = 0; p < ms.length; p++) {
+			ms[p] = max[p] / 1e6;
+		}
+		return ms;
+	}
+
+	@Override
+	public synchronized long getSolverSteps() {
+		return steps;
+	}
+
+	@Override
+	public synchronized long getRejectedSteps() {
+		return rejected;
+	}
+
+	@Override
+	public synchronized long getRhsEvaluations() {
+		return evaluations;
+	}
+
+	@Override
+	public synchronized String[] getStreamNames() {
+		return streams.clone();
+	}
+
+	@Override
+	public synchronized long[] getBytesWritten() {
+		return bytes.clone();
+	}
+
+	@Override
+	public synchronized void resetHistograms() {
+		for (int p = 0; p < PHASES.length; p++) {
+			Arrays.fill(histograms[p], 0);
+			counts[p] = 0;
+			sums[p] = 0;
+			max[p] = 0;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * Management interface of TickMetrics, registered as aMFAC_REU:type=TickMetrics
+ * Times are milliseconds per tick; counters are totals since the run started
+ */
+package aMFAC_REU;
+
+public interface TickMetricsMBean {
+
+	double getTick();
+
+	int getLiveCells();
+
+	/**
+	 * @return live cells that aren't asleep after the last tick; all of them without quiescenceTolerance
+	 */
+	int getAwakeCells();
+
+	int getSleepingCells();
+
+	String[] getPhaseNames();
+
+	/**
+	 * @return time of every phase in the last tick
+	 */
+	double[] getLastMillis();
+
+	double[] getMeanMillis();
+
+	/**
+	 * Percentiles come from log2 buckets, so they are upper bounds within a factor of 2
+	 */
+	double[] getP50Millis();
+
+	double[] getP99Millis();
+
+	double[] getMaxMillis();
+
+	long getSolverSteps();
+
+	long getRejectedSteps();
+
+	long getRhsEvaluations();
+
+	String[] getStreamNames();
+
+	long[] getBytesWritten();
+
+	/**
+	 * Clears the latency histograms
+	 */
+	void resetHistograms();
+}
@@ -0,0 +1,19 @@
+/**
+ * Receives the timings of every tick from TickMetrics
+ * The flight recorder implementation (JfrTickRecorder) lives in jfr/src, since jdk.jfr isn't part of the Java 8 API
+ */
+package aMFAC_REU;
+
+public interface TickRecorder {
+
+	/**
+	 * @param sleepingCells live cells asleep after the tick, the others are awake
+	 * @param phases nanoseconds of every phase this tick, in TickMetrics order
+	 * @param steps solver steps this tick
+	 * @param rejected rejected solver steps this tick
+	 * @param evaluations right-hand side evaluations this tick
+	 * @param bytes output bytes written since the last tick
+	 */
+	void commit(double tick, int liveCells, int sleepingCells, long[] phases, long steps, long rejected, long evaluations,
+			long bytes);
+}
@@ -0,0 +1,36 @@
+/**
+ * Values of every output stream for one tick
+ * Built on the simulation thread and handed to the OutputPipeline; never modified afterwards
+ */
+package aMFAC_REU;
+
+public final class TickSnapshot {
+
+	private final double tick;
+	private final double[][] values;
+
+	/**
+	 * @param tick the schedule tick
+	 * @param values one array per output stream, in OutputPipeline stream order, null for streams
+	 *               not written this tick. The arrays are not copied
+	 */
+	public TickSnapshot(double tick, double[][] values) {
+		this.tick = tick;
+		this.values = values;
+	}
+
+	public double getTick() {
+		return tick;
+	}
+
+	public int getStreamCount() {
+		return values.length;
+	}
+
+	/**
+	 * @return the values of a stream, null if it isn't written this tick
+	 */
+	public double[] getValues(int stream) {
+		return values[stream];
+	}
+}
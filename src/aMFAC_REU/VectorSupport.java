@@ -0,0 +1,64 @@
+/**
+ * Loads the kernels that use the JDK Vector API (jdk.incubator.vector)
+ * They are compiled separately from vector/src (see vector/ReadMe.txt) because the model itself
+ * builds for Java 8. When they aren't on the classpath, or the JVM wasn't started with
+ * --add-modules jdk.incubator.vector, the scalar versions are used instead
+ */
+package aMFAC_REU;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+public class VectorSupport {
+
+	private VectorSupport() {
+	}
+
+	/**
+	 * @param setting the vectorKernels parameter: auto, or off for the scalar kernels
+	 * @param className class of the vector kernel
+	 * @param fallback the scalar kernel
+	 * @return an instance of className, or fallback if it can't be loaded
+	 */
+	public static <T> T load(String setting, String className, Class<T> type, T fallback) {
+		return load(setting, className, type, fallback, new Class<?>[0]);
+	}
+
+	/**
+	 * As load, calling the constructor of className that takes parameterTypes with args
+	 * @param fallback may be null when the caller has its own scalar path
+	 */
+	public static <T> T load(String setting, String className, Class<T> type, T fallback, Class<?>[] parameterTypes,
+			Object... args) {
+		if (setting == null || setting.equalsIgnoreCase("off")) {
+			return fallback;
+		}
+		try {
+			Object kernel = Class.forName(className).getDeclaredConstructor(parameterTypes).newInstance(args);
+			System.out.println("Using " + kernel);
+			return type.cast(kernel);
+		} catch (Throwable e) {
+			//class missing, or jdk.incubator.vector not resolved (NoClassDefFoundError)
+			System.out.println("Vector API not available (" + e + "), using "
+					+ (fallback != null ? fallback.getClass().getSimpleName() : "the scalar version"));
+			return fallback;
+		}
+	}
+
+	/**
+	 * @return the JVM options that give a worker process the Vector API, if this JVM was started with it
+	 */
+	public static List<String> jvmOptions() {
+		List<String> options = new ArrayList<String>();
+		List<String> args = ManagementFactory.getRuntimeMXBean().getInputArguments();
+		for (int i = 0; i < args.size(); i++) {
+			if (args.get(i).contains("jdk.incubator.vector")) {
+				options.add("--add-modules");
+				options.add("jdk.incubator.vector");
+				break;
+			}
+		}
+		return options;
+	}
+}
@@ -0,0 +1,499 @@
+/**
+ * Bogacki-Shampine (2,3) integration of one cell per SIMD lane
+ * The states of the cells in the lanes are held species-major (y[s*lanes + lane]) and the compiled program
+ * of SaucermanNetwork runs once per stage for all of them, so the interpreter's dispatch and the hill
+ * powers are shared by a whole vector of cells.
+ *
+ * Per-lane step control repeats BogackiShampineSolver's ode23 control for every lane on its own; a lane
+ * that reaches the end of tspan takes the next cell right away, so the lanes stay full. The hill powers
+ * use Math.pow lane by lane, so every cell gets exactly the per-cell solver's result whatever shares its block.
+ * Lockstep integration gives all lanes one step size, from the largest error of any lane, as if the block
+ * were one system. It needs no per-lane bookkeeping but every cell takes the steps of the stiffest one,
+ * so a cell's result depends on the other cells of its block. It also uses the faster vector power,
+ * whose rounding differs from Math.pow (and before and after it is compiled)
+ */
+package aMFAC_REU;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorLaneIntegrator implements LaneIntegrator {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final int L = SPECIES.length();
+
+	//same constants as BogackiShampineSolver
+	private static final double POW = 1.0 / 3.0;
+	private static final double E1 = -5.0 / 72.0;
+	private static final double E2 = 1.0 / 12.0;
+	private static final double E3 = 1.0 / 9.0;
+	private static final double E4 = -1.0 / 8.0;
+
+	private final SaucermanNetwork network;
+	private final boolean lockstep;
+	private final int n;
+	private final double rtol, threshold;
+	private final double t0, tfinal, tdir, hmax;
+
+	private final int[] code;
+	private final double[] consts, hillN, hillBeta, hillKn;
+	private final int[] andSlot; //slot of each OP_AND in andPow, by program counter
+	private final double[] baseWeights;
+
+	//species-major blocks, one entry per lane
+	private final double[] y, f1, f2, f3, f4, ytmp, ynew;
+	private final double[] w;       //row 1 of rpar of every lane, column-major
+	private final double[] andPow;  //w^(b-1) of every OP_AND, computed once per cell with Math.pow
+	private final double[] stack;
+	private final double[] err, hv;
+	private final double[] powScratch;
+	private final boolean[] accept;
+
+	//step control of every lane
+	private final int[] cell; //cell in the lane, -1 if it is idle
+	private final double[] t, absh, h, hmin, tnew, rh;
+	private final boolean[] done, nofailed;
+
+	//one cell, for the first evaluation when it enters a lane
+	private final double[] cellY, cellF, cellW, cellStack;
+
+	private long steps;
+	private long rejected;
+	private long evaluations;
+
+	public VectorLaneIntegrator(SaucermanNetwork network, boolean lockstep) {
+		this.network = network;
+		this.lockstep = lockstep;
+		n = network.getSpeciesCount();
+		rtol = network.getRelTol();
+		threshold = network.getAbsTol() / rtol;
+		t0 = network.getStartTime();
+		tfinal = network.getEndTime();
+		tdir = Math.signum(tfinal - t0);
+		hmax = 0.1 * Math.abs(tfinal - t0); //ode23 default MaxStep
+
+		code = network.getCode();
+		consts = network.getConsts();
+		hillN = network.getHillN();
+		hillBeta = network.getHillBeta();
+		hillKn = network.getHillKn();
+		baseWeights = network.createWeights();
+		andSlot = new int[code.length];
+		int ands = 0;
+		for (int pc = 0; pc < code.length; pc += code[pc] == SaucermanNetwork.OP_AND ? 3 : 2) {
+			if (code[pc] == SaucermanNetwork.OP_AND) {
+				andSlot[pc] = ands++;
+			}
+		}
+
+		y = new double[n * L];
+		f1 = new double[n * L];
+		f2 = new double[n * L];
+		f3 = new double[n * L];
+		f4 = new double[n * L];
+		ytmp = new double[n * L];
+		ynew = new double[n * L];
+		w = new double[baseWeights.length * L];
+		andPow = new double[ands * L];
+		stack = new double[(network.getStackDepth() + 1) * L];
+		err = new double[L];
+		hv = new double[L];
+		powScratch = new double[L];
+		accept = new boolean[L];
+
+		cell = new int[L];
+		t = new double[L];
+		absh = new double[L];
+		h = new double[L];
+		hmin = new double[L];
+		tnew = new double[L];
+		rh = new double[L];
+		done = new boolean[L];
+		nofailed = new boolean[L];
+
+		cellY = new double[n];
+		cellF = new double[n];
+		cellW = new double[baseWeights.length];
+		cellStack = new double[network.getStackDepth() + 1];
+	}
+
+	@Override
+	public LaneIntegrator create() {
+		return new VectorLaneIntegrator(network, lockstep);
+	}
+
+	@Override
+	public int getLanes() {
+		return L;
+	}
+
+	@Override
+	public long getSteps() {
+		return steps;
+	}
+
+	@Override
+	public long getRejectedSteps() {
+		return rejected;
+	}
+
+	@Override
+	public long getEvaluations() {
+		return evaluations;
+	}
+
+	@Override
+	public int integrate(double[] states, double[] inputs, int from, int to) {
+		int failures = 0;
+		int next = from;
+		Arrays.fill(cell, -1);
+		Arrays.fill(y, 0); //idle lanes compute on zeros, not on whatever was left
+		Arrays.fill(h, 0);
+		while (true) {
+			//fill the idle lanes; in lockstep only once the whole block is done
+			int active = 0;
+			for (int lane = 0; lane < L; lane++) {
+				if (cell[lane] >= 0) {
+					active++;
+				}
+			}
+			if (!lockstep || active == 0) {
+				double rhMax = 0;
+				for (int lane = 0; lane < L && next < to; lane++) {
+					if (cell[lane] < 0) {
+						load(lane, next++, states, inputs);
+						rhMax = Math.max(rhMax, rh[lane]);
+						active++;
+						if (!lockstep) {
+							start(lane, rh[lane]);
+						}
+					}
+				}
+				if (lockstep) {
+					for (int lane = 0; lane < L; lane++) {
+						if (cell[lane] >= 0) {
+							start(lane, rhMax);
+						}
+					}
+				}
+			}
+			if (active == 0) {
+				return failures;
+			}
+			failures += attempt(states, active);
+		}
+	}
+
+	/**
+	 * Moves cell i into lane and evaluates its first derivative
+	 */
+	private void load(int lane, int i, double[] states, double[] inputs) {
+		cell[lane] = i;
+		int off = i * n;
+		for (int s = 0; s < n; s++) {
+			cellY[s] = states[off + s];
+			y[s * L + lane] = cellY[s];
+		}
+		System.arraycopy(baseWeights, 0, cellW, 0, cellW.length);
+		SaucermanNetwork.setInputs(cellW, inputs, i * SaucermanNetwork.INPUT_COUNT);
+		for (int c = 0; c < cellW.length; c++) {
+			w[c * L + lane] = cellW[c];
+		}
+		for (int pc = 0; pc < code.length; pc += code[pc] == SaucermanNetwork.OP_AND ? 3 : 2) {
+			if (code[pc] == SaucermanNetwork.OP_AND) {
+				andPow[andSlot[pc] * L + lane] = Math.pow(cellW[code[pc + 1]], code[pc + 2] - 1);
+			}
+		}
+
+		//the same evaluation BogackiShampineSolver starts with
+		evaluations++;
+		network.rhs(cellY, 0, cellW, cellF, 0, cellStack);
+		double r = 0;
+		for (int s = 0; s < n; s++) {
+			f1[s * L + lane] = cellF[s];
+			r = Math.max(r, Math.abs(cellF[s]) / Math.max(Math.abs(cellY[s]), threshold));
+		}
+		rh[lane] = r;
+	}
+
+	/**
+	 * Initial step of a lane from y'(t0), then the set up of its first step
+	 */
+	private void start(int lane, double r) {
+		t[lane] = t0;
+		double a = Math.min(hmax, Math.abs(tfinal - t0));
+		r /= 0.8 * Math.pow(rtol, POW);
+		if (a * r > 1) {
+			a = 1 / r;
+		}
+		absh[lane] = Math.max(a, 16 * Math.ulp(t0));
+		beginStep(lane);
+	}
+
+	private void beginStep(int lane) {
+		hmin[lane] = 16 * Math.ulp(t[lane]);
+		absh[lane] = Math.min(hmax, Math.max(hmin[lane], absh[lane]));
+		h[lane] = tdir * absh[lane];
+		done[lane] = false;
+		if (1.1 * absh[lane] >= Math.abs(tfinal - t[lane])) {
+			h[lane] = tfinal - t[lane];
+			absh[lane] = Math.abs(h[lane]);
+			done[lane] = true;
+		}
+		nofailed[lane] = true;
+	}
+
+	/**
+	 * Tries one step in every lane and accepts or rejects it lane by lane
+	 * @return cells that failed
+	 */
+	private int attempt(double[] states, int active) {
+		for (int lane = 0; lane < L; lane++) {
+			hv[lane] = h[lane] * 0.5;
+		}
+		stage(ytmp, f1, hv);
+		evaluations += active;
+		rhs(ytmp, f2);
+		for (int lane = 0; lane < L; lane++) {
+			hv[lane] = h[lane] * 0.75;
+		}
+		stage(ytmp, f2, hv);
+		evaluations += active;
+		rhs(ytmp, f3);
+
+		for (int lane = 0; lane < L; lane++) {
+			tnew[lane] = done[lane] ? tfinal : t[lane] + h[lane];
+			h[lane] = tnew[lane] - t[lane];
+		}
+		DoubleVector h1 = DoubleVector.fromArray(SPECIES, h, 0).mul(2.0 / 9.0);
+		DoubleVector h2 = DoubleVector.fromArray(SPECIES, h, 0).mul(1.0 / 3.0);
+		DoubleVector h3 = DoubleVector.fromArray(SPECIES, h, 0).mul(4.0 / 9.0);
+		for (int s = 0; s < n * L; s += L) {
+			DoubleVector d = h1.mul(DoubleVector.fromArray(SPECIES, f1, s))
+					.add(h2.mul(DoubleVector.fromArray(SPECIES, f2, s)))
+					.add(h3.mul(DoubleVector.fromArray(SPECIES, f3, s)));
+			DoubleVector.fromArray(SPECIES, y, s).add(d).intoArray(ynew, s);
+		}
+		evaluations += active;
+		rhs(ynew, f4);
+
+		DoubleVector e = DoubleVector.zero(SPECIES);
+		for (int s = 0; s < n * L; s += L) {
+			DoubleVector est = DoubleVector.fromArray(SPECIES, f1, s).mul(E1)
+					.add(DoubleVector.fromArray(SPECIES, f2, s).mul(E2))
+					.add(DoubleVector.fromArray(SPECIES, f3, s).mul(E3))
+					.add(DoubleVector.fromArray(SPECIES, f4, s).mul(E4));
+			DoubleVector scale = DoubleVector.fromArray(SPECIES, y, s).abs()
+					.max(DoubleVector.fromArray(SPECIES, ynew, s).abs()).max(threshold);
+			e = e.max(est.abs().div(scale));
+		}
+		e.intoArray(err, 0);
+		if (lockstep) {
+			double max = 0;
+			for (int lane = 0; lane < L; lane++) {
+				if (cell[lane] >= 0) {
+					max = Math.max(max, err[lane]);
+				}
+			}
+			Arrays.fill(err, max);
+		}
+
+		int failures = 0;
+		for (int lane = 0; lane < L; lane++) {
+			accept[lane] = false;
+			if (cell[lane] < 0) {
+				continue;
+			}
+			double er = err[lane] * absh[lane];
+			if (er > rtol) {
+				rejected++;
+				if (absh[lane] <= hmin[lane]) {
+					//left at the last accepted step, like the per-cell solver
+					failures++;
+					store(lane, states);
+					continue;
+				}
+				if (nofailed[lane]) {
+					nofailed[lane] = false;
+					absh[lane] = Math.max(hmin[lane], absh[lane] * Math.max(0.5, 0.8 * Math.pow(rtol / er, POW)));
+				} else {
+					absh[lane] = Math.max(hmin[lane], 0.5 * absh[lane]);
+				}
+				h[lane] = tdir * absh[lane];
+				done[lane] = false;
+			} else {
+				if (!done[lane] && nofailed[lane]) {
+					double temp = 1.25 * Math.pow(er / rtol, POW);
+					if (temp > 0.2) {
+						absh[lane] = absh[lane] / temp;
+					} else {
+						absh[lane] = 5.0 * absh[lane];
+					}
+				}
+				t[lane] = tnew[lane];
+				steps++;
+				accept[lane] = true;
+			}
+		}
+
+		//accepted lanes move to ynew, reusing f4 as the next f1 (FSAL)
+		VectorMask<Double> m = VectorMask.fromArray(SPECIES, accept, 0);
+		for (int s = 0; s < n * L; s += L) {
+			DoubleVector.fromArray(SPECIES, y, s).blend(DoubleVector.fromArray(SPECIES, ynew, s), m).intoArray(y, s);
+			DoubleVector.fromArray(SPECIES, f1, s).blend(DoubleVector.fromArray(SPECIES, f4, s), m).intoArray(f1, s);
+		}
+		for (int lane = 0; lane < L; lane++) {
+			if (accept[lane]) {
+				if (done[lane]) {
+					store(lane, states);
+				} else {
+					beginStep(lane);
+				}
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * out = y + hs*f, hs per lane
+	 */
+	private void stage(double[] out, double[] f, double[] hs) {
+		DoubleVector hl = DoubleVector.fromArray(SPECIES, hs, 0);
+		for (int s = 0; s < n * L; s += L) {
+			DoubleVector.fromArray(SPECIES, y, s).add(hl.mul(DoubleVector.fromArray(SPECIES, f, s))).intoArray(out, s);
+		}
+	}
+
+	/**
+	 * Writes the state of a lane back to its cell and frees the lane
+	 */
+	private void store(int lane, double[] states) {
+		int off = cell[lane] * n;
+		for (int s = 0; s < n; s++) {
+			states[off + s] = y[s * L + lane];
+		}
+		cell[lane] = -1;
+		h[lane] = 0;
+	}
+
+	/**
+	 * SaucermanNetwork.rhs for every lane at once, with a vector on each stack entry
+	 */
+	private void rhs(double[] yb, double[] dydt) {
+		final int[] code = this.code;
+		final double[] stack = this.stack;
+		int sp = -L;
+		int pc = 0;
+		while (pc < code.length) {
+			int op = code[pc];
+			int a = code[pc + 1];
+			pc += 2;
+			switch (op) {
+				case SaucermanNetwork.OP_CONST:
+					sp += L;
+					DoubleVector.broadcast(SPECIES, consts[a]).intoArray(stack, sp);
+					break;
+				case SaucermanNetwork.OP_Y:
+					sp += L;
+					DoubleVector.fromArray(SPECIES, yb, a * L).intoArray(stack, sp);
+					break;
+				case SaucermanNetwork.OP_W:
+					sp += L;
+					DoubleVector.fromArray(SPECIES, w, a * L).intoArray(stack, sp);
+					break;
+				case SaucermanNetwork.OP_ACT:
+					act(DoubleVector.fromArray(SPECIES, stack, sp), a).intoArray(stack, sp);
+					break;
+				case SaucermanNetwork.OP_INHIB: {
+					DoubleVector wa = DoubleVector.fromArray(SPECIES, w, a * L);
+					wa.sub(act(DoubleVector.fromArray(SPECIES, stack, sp), a)).intoArray(stack, sp);
+					break;
+				}
+				case SaucermanNetwork.OP_OR: {
+					DoubleVector b = DoubleVector.fromArray(SPECIES, stack, sp);
+					sp -= L;
+					DoubleVector x = DoubleVector.fromArray(SPECIES, stack, sp);
+					x.add(b).sub(x.mul(b)).intoArray(stack, sp);
+					break;
+				}
+				case SaucermanNetwork.OP_AND: {
+					int slot = andSlot[pc - 2];
+					int count = code[pc++];
+					DoubleVector prod = DoubleVector.broadcast(SPECIES, 1.0);
+					for (int i = sp - (count - 1) * L; i <= sp; i += L) {
+						prod = prod.mul(DoubleVector.fromArray(SPECIES, stack, i));
+					}
+					sp -= (count - 1) * L;
+					DoubleVector wa = DoubleVector.fromArray(SPECIES, w, a * L);
+					prod.div(DoubleVector.fromArray(SPECIES, andPow, slot * L))
+							.blend(0.0, wa.compare(VectorOperators.EQ, 0.0)).intoArray(stack, sp);
+					break;
+				}
+				case SaucermanNetwork.OP_ADD: {
+					DoubleVector b = DoubleVector.fromArray(SPECIES, stack, sp);
+					sp -= L;
+					DoubleVector.fromArray(SPECIES, stack, sp).add(b).intoArray(stack, sp);
+					break;
+				}
+				case SaucermanNetwork.OP_SUB: {
+					DoubleVector b = DoubleVector.fromArray(SPECIES, stack, sp);
+					sp -= L;
+					DoubleVector.fromArray(SPECIES, stack, sp).sub(b).intoArray(stack, sp);
+					break;
+				}
+				case SaucermanNetwork.OP_MUL: {
+					DoubleVector b = DoubleVector.fromArray(SPECIES, stack, sp);
+					sp -= L;
+					DoubleVector.fromArray(SPECIES, stack, sp).mul(b).intoArray(stack, sp);
+					break;
+				}
+				case SaucermanNetwork.OP_DIV: {
+					DoubleVector b = DoubleVector.fromArray(SPECIES, stack, sp);
+					sp -= L;
+					DoubleVector.fromArray(SPECIES, stack, sp).div(b).intoArray(stack, sp);
+					break;
+				}
+				case SaucermanNetwork.OP_NEG:
+					DoubleVector.fromArray(SPECIES, stack, sp).neg().intoArray(stack, sp);
+					break;
+				case SaucermanNetwork.OP_STORE:
+					DoubleVector.fromArray(SPECIES, stack, sp).intoArray(dydt, a * L);
+					sp -= L;
+					break;
+				default:
+					throw new IllegalStateException("Bad opcode " + op);
+			}
+		}
+	}
+
+	/**
+	 * Hill activation of SaucermanNetwork.act, capped at the weight
+	 */
+	private DoubleVector act(DoubleVector x, int col) {
+		DoubleVector wa = DoubleVector.fromArray(SPECIES, w, col * L);
+		DoubleVector xn;
+		if (lockstep) {
+			xn = x.pow(hillN[col]);
+		} else {
+			//the vector pow rounds differently from Math.pow, and differently again before it is compiled,
+			//which would make a cell's result depend on its lane and on the JIT's progress
+			x.intoArray(powScratch, 0);
+			double hn = hillN[col];
+			for (int lane = 0; lane < L; lane++) {
+				powScratch[lane] = Math.pow(powScratch[lane], hn);
+			}
+			xn = DoubleVector.fromArray(SPECIES, powScratch, 0);
+		}
+		DoubleVector f = wa.mul(xn.mul(hillBeta[col])).div(xn.add(hillKn[col]));
+		return f.blend(wa, f.compare(VectorOperators.GT, wa));
+	}
+
+	@Override
+	public String toString() {
+		return "VectorLaneIntegrator (" + L + " lanes, " + (lockstep ? "lockstep" : "per-lane steps") + ")";
+	}
+}